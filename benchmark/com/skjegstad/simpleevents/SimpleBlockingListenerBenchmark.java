@@ -0,0 +1,105 @@
+/*
+ 
+SimpleBlockingListenerBenchmark.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Time to deliver 10000 events to an asynchronous listener that blocks 
+ * for 100 ms per event, as if waiting for I/O, on platform threads and on
+ * virtual threads. Virtual threads require a JVM that supports them.
+ * 
+ * @author Magnus Skjegstad
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimpleBlockingListenerBenchmark {
+    private static final int EVENTS = 10000;
+    
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String threads;
+    
+    private ExecutorService executorService;
+    private SimpleEventManager manager;
+    private volatile CountDownLatch done;
+    
+    @Setup
+    public void setup() {
+        if ("VIRTUAL".equals(threads)) {
+            if (!SimpleEventManager.isVirtualThreadSupported())
+                throw new IllegalStateException("Virtual threads are not supported by this JVM");
+            executorService = SimpleEventManager.newVirtualThreadExecutor();
+        } else {
+            executorService = Executors.newCachedThreadPool();
+        }
+        manager = new SimpleEventManager(executorService);
+        
+        manager.getDefaultPipe().listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                done.countDown();
+            }
+        });
+    }
+    
+    @TearDown
+    public void tearDown() {
+        manager.shutdown();
+    }
+    
+    @Benchmark
+    public void triggerBlocking() throws InterruptedException {
+        done = new CountDownLatch(EVENTS);
+        SimpleEvent event = new SimpleEvent() {};
+        SimpleEventPipe pipe = manager.getDefaultPipe();
+        for (int i = 0; i < EVENTS; i++)
+            pipe.trigger(event);
+        if (!done.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException("Blocking listeners did not finish within 60 seconds");
+    }
+}
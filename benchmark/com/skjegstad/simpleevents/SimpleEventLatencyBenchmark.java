@@ -0,0 +1,103 @@
+/*
+ 
+SimpleEventLatencyBenchmark.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * End-to-end latency from trigger until an asynchronous listener has 
+ * received the event. Sampled, so JMH reports latency percentiles.
+ * 
+ * @author Magnus Skjegstad
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleEventLatencyBenchmark {
+    
+    @Param({"ASYNC", "ORDERED", "RING"})
+    public String mode;
+    
+    private ExecutorService executorService;
+    private SimpleEventPipe pipe;
+    private final SequenceEvent event = new SequenceEvent();
+    private volatile long receivedSequence = 0;
+    private long sequence = 0;
+    
+    @Setup
+    public void setup() {
+        executorService = Executors.newCachedThreadPool();
+        if ("RING".equals(mode)) {
+            pipe = new SimpleRingBufferEventPipe(executorService, 1024, SimpleWaitStrategies.YIELD, false);
+        } else {
+            pipe = new SimpleEventPipe(executorService);
+            pipe.setAsyncOrdered("ORDERED".equals(mode));
+        }
+        
+        pipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent e) {
+                receivedSequence = ((SequenceEvent) e).sequence;
+            }
+        });
+    }
+    
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+    
+    @Benchmark
+    public long triggerAndAwait() {
+        // The event is reused, as only one event is in flight at a time
+        long next = ++sequence;
+        event.sequence = next;
+        pipe.trigger(event);
+        while (receivedSequence != next) {
+            // wait for the listener
+        }
+        return next;
+    }
+    
+    static class SequenceEvent implements SimpleEvent {
+        volatile long sequence;
+    }
+}
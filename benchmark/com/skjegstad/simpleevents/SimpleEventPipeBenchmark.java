@@ -0,0 +1,117 @@
+/*
+ 
+SimpleEventPipeBenchmark.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Trigger throughput for sync and async listeners. The number of producer
+ * threads is set by @link SimpleEventsBenchmark.
+ * <p>
+ * ASYNC uses ordered delivery with a bounded, blocking mailbox, so the
+ * measured rate is what the listeners actually consume rather than how 
+ * fast work can be queued. RING uses a multi-producer ring buffer pipe.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleEventPipeBenchmark {
+    
+    @Param({"SYNC", "ASYNC", "RING"})
+    public String mode;
+    
+    @Param({"1", "10", "100", "1000"})
+    public int listeners;
+    
+    private ExecutorService executorService;
+    private SimpleEventPipe pipe;
+    private final SimpleEvent event = new SimpleEvent() {};
+    
+    @Setup
+    public void setup() {
+        executorService = Executors.newCachedThreadPool();
+        if ("RING".equals(mode)) {
+            pipe = new SimpleRingBufferEventPipe(executorService, 1024, SimpleWaitStrategies.PARK, true);
+        } else {
+            pipe = new SimpleEventPipe(executorService);
+            pipe.setAsyncMailbox(1024, SimpleOverflowPolicy.BLOCK);
+        }
+        
+        for (int i = 0; i < listeners; i++) {
+            if ("SYNC".equals(mode))
+                pipe.listen(new SyncListener());
+            else
+                pipe.listen(new AsyncListener());
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+    
+    @Benchmark
+    public void trigger() {
+        pipe.trigger(event);
+    }
+    
+    static class SyncListener implements SimpleEventListener {
+        SimpleEvent lastEvent;
+        
+        @Override
+        public void receiveEvent(SimpleEvent event) {
+            lastEvent = event;
+        }
+    }
+    
+    static class AsyncListener implements SimpleAsyncEventListener {
+        SimpleEvent lastEvent;
+        
+        @Override
+        public void receiveEvent(SimpleEvent event) {
+            lastEvent = event;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ 
+SimpleEventsBenchmark.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ *
+ * Runs the JMH benchmarks. Trigger throughput is measured with 1 to 64 
+ * producer threads and the GC profiler, which reports the allocation rate
+ * per event as gc.alloc.rate.norm. Async latency percentiles are measured
+ * with a single producer, followed by the time to deliver events to 
+ * blocking listeners. Command line arguments are passed on to JMH. If 
+ * they include benchmarks, only those are run, once, with the command line
+ * options.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventsBenchmark {
+    private static final int[] PRODUCER_THREADS = {1, 2, 4, 8, 16, 32, 64};
+    
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        File resultsDir = new File(System.getProperty("benchmark.results.dir", "."));
+        
+        // Benchmarks selected on the command line are run once, as JMH would
+        if (!commandLine.getIncludes().isEmpty()) {
+            new Runner(commandLine).run();
+            return;
+        }
+        
+        for (int threads : PRODUCER_THREADS) {
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(SimpleEventPipeBenchmark.class.getName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultsDir, "trigger-" + threads + "-threads.json").getPath())
+                    .build()).run();
+        }
+        
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .include(SimpleEventLatencyBenchmark.class.getName())
+                .threads(1)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(resultsDir, "latency.json").getPath())
+                .build()).run();
+        
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .include(SimpleBlockingListenerBenchmark.class.getName())
+                .threads(1)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(resultsDir, "blocking-listeners.json").getPath())
+                .build()).run();
+    }
+}
@@ -0,0 +1,4 @@
+package com.skjegstad.simpleevents.jmh_generated;
+public class SimpleBlockingListenerBenchmark_jmhType extends SimpleBlockingListenerBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package com.skjegstad.simpleevents.jmh_generated;
+public class SimpleEventLatencyBenchmark_jmhType extends SimpleEventLatencyBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package com.skjegstad.simpleevents.jmh_generated;
+public class SimpleEventPipeBenchmark_jmhType extends SimpleEventPipeBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,125 @@
+/*
+ 
+SimpleAdaptiveThrottle.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Rate limiter that adapts its rate to the load of the pipe it limits.
+ * <p>
+ * Every adjustment interval, the triggering thread that passes the 
+ * interval first checks the pending asynchronous deliveries of the pipe 
+ * and, if metrics are enabled on the pipe, the 99th percentile of the time
+ * spent in asynchronous listeners during the interval. If either is above
+ * its target, the rate is halved, otherwise it is raised by a twentieth of
+ * the range between the minimum and maximum rate. Producers are then held
+ * back before the shared executor backs up, which keeps latency stable for
+ * the other pipes during a spike.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleAdaptiveThrottle extends SimpleRateLimiter {
+    private static final long ADJUST_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    
+    private final double minRate;
+    private final double maxRate;
+    private final long targetQueueDepth;
+    private final long targetLatencyNanos;
+    private final AtomicLong nextAdjust = new AtomicLong(System.nanoTime() + ADJUST_INTERVAL);
+    private final long[] latencyCounts = SimpleEventMetrics.Histogram.newCounts(); // guarded by the nextAdjust CAS
+    private volatile boolean overloaded = false;
+
+    /**
+     * Create a new adaptive throttle, starting at the maximum rate.
+     * 
+     * @param minRate lowest rate in events per second.
+     * @param maxRate highest rate in events per second.
+     * @param burst size of the token bucket.
+     * @param targetQueueDepth pending asynchronous deliveries above which 
+     *        the rate is reduced.
+     * @param targetLatency listener latency above which the rate is reduced.
+     * @param unit unit of the target latency.
+     */
+    public SimpleAdaptiveThrottle(double minRate, double maxRate, int burst, long targetQueueDepth, long targetLatency, TimeUnit unit) {
+        super(maxRate, burst);
+        if (!(minRate > 0) || minRate > maxRate)
+            throw new IllegalArgumentException("Minimum rate must be positive and at most the maximum rate");
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.targetQueueDepth = targetQueueDepth;
+        this.targetLatencyNanos = unit.toNanos(targetLatency);
+    }
+
+    @Override
+    void update(SimpleEventPipe pipe, long now) {
+        long adjustAt = nextAdjust.get();
+        if (now - adjustAt < 0 || !nextAdjust.compareAndSet(adjustAt, now + ADJUST_INTERVAL))
+            return;
+        
+        boolean overload = pipe.getPendingDeliveries() > targetQueueDepth;
+        SimpleEventMetrics m = pipe.getMetrics();
+        if (m != null) {
+            long p99 = m.asyncExecutionTime().percentileSince(latencyCounts, 0.99);
+            if (p99 > targetLatencyNanos)
+                overload = true;
+        }
+        overloaded = overload;
+        
+        double rate = getRate();
+        if (overload)
+            rate = Math.max(minRate, rate / 2);
+        else
+            rate = Math.min(maxRate, rate + (maxRate - minRate) / 20);
+        setRate(rate);
+    }
+    
+    /**
+     * Returns true if the pipe was above its target queue depth or latency
+     * at the last adjustment.
+     * 
+     * @return true if the rate is being reduced.
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * Returns the lowest rate of the throttle.
+     * 
+     * @return events per second.
+     */
+    public double getMinRate() {
+        return minRate;
+    }
+
+    /**
+     * Returns the highest rate of the throttle.
+     * 
+     * @return events per second.
+     */
+    public double getMaxRate() {
+        return maxRate;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ 
+SimpleDeadLetterEvent.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+
+/**
+ *
+ * Event triggered on the dead-letter pipe when a listener failed to handle 
+ * an event. See @link SimpleEventManager#getDeadLetterPipe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleDeadLetterEvent implements SimpleEvent {
+    private final SimpleEventPipe pipe;
+    private final SimpleEvent event;
+    private final SimpleEventListener listener;
+    private final Throwable exception;
+    private final int attempts;
+
+    /**
+     * Create a new dead-letter event.
+     * 
+     * @param pipe pipe the event was triggered on.
+     * @param event event that could not be delivered, or null if it could 
+     *        not be read.
+     * @param listener listener that failed, or null if the event failed 
+     *        before it reached a listener.
+     * @param exception exception thrown by the listener on the last attempt.
+     * @param attempts number of delivery attempts.
+     */
+    public SimpleDeadLetterEvent(SimpleEventPipe pipe, SimpleEvent event, SimpleEventListener listener, Throwable exception, int attempts) {
+        this.pipe = pipe;
+        this.event = event;
+        this.listener = listener;
+        this.exception = exception;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Returns the pipe the event was triggered on.
+     * 
+     * @return source pipe.
+     */
+    public SimpleEventPipe getPipe() {
+        return pipe;
+    }
+
+    /**
+     * Returns the event that could not be delivered.
+     * 
+     * @return failed event, or null if it could not be read, e.g. by a 
+     * @link SimpleSharedMemoryEventPipe.
+     */
+    public SimpleEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Returns the listener that failed.
+     * 
+     * @return failed listener, or null if the event failed before it 
+     * reached a listener.
+     */
+    public SimpleEventListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Returns the exception thrown by the listener on the last attempt.
+     * 
+     * @return listener exception.
+     */
+    public Throwable getException() {
+        return exception;
+    }
+
+    /**
+     * Returns the number of times delivery was attempted.
+     * 
+     * @return delivery attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+}
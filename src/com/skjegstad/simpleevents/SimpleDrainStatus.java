@@ -0,0 +1,65 @@
+/*
+ 
+SimpleDrainStatus.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+/**
+ *
+ * Drain status of a pipe during or after a graceful shutdown, see
+ * @link SimpleEventManager#shutdownGracefully.
+ * 
+ * @author Magnus Skjegstad
+ */
+public final class SimpleDrainStatus {
+    private final boolean shutdown;
+    private final long pendingDeliveries;
+    private final long rejectedEvents;
+
+    SimpleDrainStatus(boolean shutdown, long pendingDeliveries, long rejectedEvents) {
+        this.shutdown = shutdown;
+        this.pendingDeliveries = pendingDeliveries;
+        this.rejectedEvents = rejectedEvents;
+    }
+    
+    static SimpleDrainStatus of(SimpleEventPipe pipe) {
+        return new SimpleDrainStatus(pipe.isShutdown(), Math.max(0, pipe.getPendingDeliveries()), pipe.getRejectedEvents());
+    }
+
+    /** @return true if the pipe no longer accepts events. */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /** @return asynchronous deliveries not yet done. After shutdown, these were dropped. */
+    public long getPendingDeliveries() {
+        return pendingDeliveries;
+    }
+
+    /** @return events rejected by the pipe, including triggers after shutdown started. */
+    public long getRejectedEvents() {
+        return rejectedEvents;
+    }
+
+    /** @return true if the pipe is shut down and all its deliveries are done. */
+    public boolean isDrained() {
+        return shutdown && pendingDeliveries == 0;
+    }
+}
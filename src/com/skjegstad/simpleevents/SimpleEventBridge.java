@@ -0,0 +1,623 @@
+/*
+ 
+SimpleEventBridge.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventSerializer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Mirrors named pipes of a SimpleEventManager to other managers over TCP.
+ * <p>
+ * Events triggered on a bridged pipe are serialized and sent to every
+ * connected bridge, which triggers them on its pipe with the same name.
+ * Events received from another bridge are not forwarded again, so bridges
+ * should be connected directly to each other. All sockets are handled by
+ * a single thread using non-blocking I/O, and sync listeners of received
+ * events run on this thread.
+ * </p>
+ * <p>
+ * Events to each peer are numbered and kept in a bounded resend buffer.
+ * When a connection is lost, outgoing connections are retried and the 
+ * peers exchange the last sequence number they received, so events sent
+ * while disconnected are resent as long as they are still in the buffer. 
+ * Events that fall out of the buffer before they are sent are counted by
+ * @link #getDroppedEvents. 
+ * </p>
+ * <p>
+ * Consecutive events for the same pipe are batched into frames: 
+ * frame length, type, pipe name, first sequence number and event count,
+ * followed by the length and serialized bytes of each event.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventBridge {
+    private static final byte FRAME_HELLO = 1;
+    private static final byte FRAME_EVENTS = 2;
+    private static final int MAX_FRAME_SIZE = 1 << 20;
+    private static final int BUFFER_SIZE = MAX_FRAME_SIZE + 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final SimpleEventManager manager;
+    private final SimpleEventSerializer serializer;
+    private final int resendBufferSize;
+    private final long reconnectDelayMillis;
+    private final long nodeId = new Random().nextLong();
+    
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Object registrationLock = new Object();
+    private final Map<String, SimpleEventListener> bridgedPipes = new ConcurrentHashMap<String, SimpleEventListener>();
+    private final CopyOnWriteArrayList<Link> links = new CopyOnWriteArrayList<Link>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final AtomicLong droppedEvents = new AtomicLong(0);
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>();
+    private volatile boolean running = true;
+    private SimpleEvent inbound; // event being triggered by the I/O thread
+
+    /**
+     * Create a bridge for the given manager with a resend buffer of 65536
+     * events per peer and a reconnect delay of one second.
+     * 
+     * @param manager manager owning the bridged pipes.
+     * @param serializer serializer used to send and receive events.
+     * @throws IOException if the selector could not be opened.
+     */
+    public SimpleEventBridge(SimpleEventManager manager, SimpleEventSerializer serializer) throws IOException {
+        this(manager, serializer, 65536, 1000);
+    }
+    
+    /**
+     * Create a bridge for the given manager.
+     * 
+     * @param manager manager owning the bridged pipes.
+     * @param serializer serializer used to send and receive events.
+     * @param resendBufferSize number of events kept for resending to each peer.
+     * @param reconnectDelayMillis time between attempts to reconnect to a peer.
+     * @throws IOException if the selector could not be opened.
+     */
+    public SimpleEventBridge(SimpleEventManager manager, SimpleEventSerializer serializer, int resendBufferSize, long reconnectDelayMillis) throws IOException {
+        if (resendBufferSize < 1)
+            throw new IllegalArgumentException("Resend buffer must hold at least one event");
+        this.manager = manager;
+        this.serializer = serializer;
+        this.resendBufferSize = resendBufferSize;
+        this.reconnectDelayMillis = reconnectDelayMillis;
+        this.selector = Selector.open();
+        
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector();
+            }
+        }, "SimpleEventBridge");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+    
+    /**
+     * Mirror the pipe with the given name to all peers. The pipe is created
+     * with @link SimpleEventManager#getPipe(String) if it does not exist.
+     * 
+     * @param pipeName name of the pipe.
+     */
+    public synchronized void bridge(final String pipeName) {
+        if (bridgedPipes.containsKey(pipeName))
+            return;
+        SimpleEventListener listener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                if (Thread.currentThread() == ioThread && event == inbound)
+                    return; // received from a peer
+                send(pipeName, event);
+            }
+        };
+        bridgedPipes.put(pipeName, listener);
+        manager.getPipe(pipeName).listen(listener);
+    }
+    
+    /**
+     * Accept connections from other bridges on the given address.
+     * 
+     * @param address local address, port 0 chooses a free port.
+     * @return address the bridge is listening on.
+     * @throws IOException if the address could not be bound.
+     */
+    public InetSocketAddress bind(InetSocketAddress address) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(address);
+        server.configureBlocking(false);
+        synchronized (registrationLock) {
+            selector.wakeup();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+    
+    /**
+     * Connect to the bridge at the given address. Events are buffered for the 
+     * peer from now on, and the connection is retried until the bridge is closed.
+     * 
+     * @param address address of the other bridge.
+     */
+    public void connect(InetSocketAddress address) {
+        Link link = new Link(address);
+        links.add(link);
+        wakeup();
+    }
+    
+    /**
+     * Returns the number of peers currently connected. Events are only 
+     * buffered for a peer that connects to this bridge after it has 
+     * connected once.
+     * 
+     * @return number of connected peers.
+     */
+    public int getConnectedPeers() {
+        int connected = 0;
+        for (Link link : links) {
+            Connection connection = link.connection;
+            if (connection != null && connection.handshaken)
+                connected++;
+        }
+        return connected;
+    }
+    
+    /**
+     * Returns the number of events that were dropped from a resend buffer 
+     * before they could be sent.
+     * 
+     * @return number of dropped events.
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+    
+    /**
+     * Stop bridging and close all connections.
+     */
+    public synchronized void close() {
+        running = false;
+        for (Map.Entry<String, SimpleEventListener> e : bridgedPipes.entrySet())
+            manager.getPipe(e.getKey()).unlisten(e.getValue());
+        bridgedPipes.clear();
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void send(String pipeName, SimpleEvent event) {
+        if (links.isEmpty())
+            return;
+        Record record = new Record(pipeName, serialize(event));
+        boolean wake = false;
+        for (Link link : links)
+            wake |= link.add(record);
+        if (wake)
+            wakeup();
+    }
+    
+    private byte[] serialize(SimpleEvent event) {
+        ByteBuffer buffer = scratch.get();
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(256);
+        while (true) {
+            buffer.clear();
+            try {
+                serializer.write(event, buffer);
+                break;
+            } catch (BufferOverflowException ex) {
+                if (buffer.capacity() >= MAX_FRAME_SIZE / 2)
+                    throw new IllegalArgumentException("Event too large to bridge: " + event);
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+        scratch.set(buffer);
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+    
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+    
+    private void runSelector() {
+        try {
+            while (running) {
+                selector.select(reconnectDelayMillis > 0 ? reconnectDelayMillis : 1);
+                synchronized (registrationLock) { 
+                    // wait for registrations from other threads
+                }
+                wakeupPending.set(false);
+                
+                Set<SelectionKey> keys = selector.selectedKeys();
+                for (Iterator<SelectionKey> i = keys.iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept((ServerSocketChannel) key.channel());
+                        else if (key.isConnectable())
+                            finishConnect(key);
+                        else {
+                            if (key.isReadable())
+                                read(key);
+                            if (key.isValid() && key.isWritable())
+                                write((Connection) key.attachment());
+                        }
+                    } catch (IOException ex) {
+                        disconnect((Connection) key.attachment());
+                    } catch (RuntimeException ex) {
+                        disconnect((Connection) key.attachment());
+                    }
+                }
+                
+                long now = System.currentTimeMillis();
+                for (Link link : links) {
+                    if (link.address != null && link.connection == null && now >= link.reconnectAt)
+                        startConnect(link);
+                    Connection connection = link.connection;
+                    if (connection != null && connection.handshaken) {
+                        try {
+                            write(connection);
+                        } catch (IOException ex) {
+                            disconnect(connection);
+                        } catch (RuntimeException ex) {
+                            disconnect(connection);
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // selector failed, stop bridging
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+    
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel, null);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+    
+    private void startConnect(Link link) {
+        link.reconnectAt = System.currentTimeMillis() + reconnectDelayMillis;
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel, link);
+            link.connection = connection;
+            if (channel.connect(link.address)) {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                sendHello(connection);
+            } else
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+        } catch (IOException ex) {
+            link.connection = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+    
+    private void finishConnect(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        connection.channel.finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+        sendHello(connection);
+    }
+    
+    private void disconnect(Connection connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.channel.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+        Link link = connection.link;
+        if (link != null && link.connection == connection) {
+            link.connection = null;
+            link.reconnectAt = System.currentTimeMillis() + reconnectDelayMillis;
+        }
+    }
+    
+    private void sendHello(Connection connection) throws IOException {
+        Link link = connection.link;
+        ByteBuffer buffer = connection.writeBuffer;
+        buffer.putInt(1 + 8 + 8 + 8);
+        buffer.put(FRAME_HELLO);
+        buffer.putLong(nodeId);
+        buffer.putLong(link.remoteNodeId);
+        buffer.putLong(link.lastReceived);
+        flushWriteBuffer(connection);
+    }
+    
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.readBuffer;
+        if (connection.channel.read(buffer) < 0)
+            throw new IOException("Connection closed by peer");
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length <= 0 || length > MAX_FRAME_SIZE)
+                throw new IOException("Invalid frame length " + length);
+            if (buffer.remaining() < 4 + length)
+                break;
+            buffer.getInt();
+            int end = buffer.position() + length;
+            byte type = buffer.get();
+            if (type == FRAME_HELLO)
+                receiveHello(connection, buffer);
+            else if (type == FRAME_EVENTS && connection.handshaken)
+                receiveEvents(connection.link, buffer);
+            else
+                throw new IOException("Unexpected frame type " + type);
+            buffer.position(end);
+        }
+        buffer.compact();
+    }
+    
+    private void receiveHello(Connection connection, ByteBuffer buffer) throws IOException {
+        long remoteNodeId = buffer.getLong();
+        long expectedNodeId = buffer.getLong();
+        long lastReceived = buffer.getLong();
+        // the peer's position only applies if it was talking to this instance
+        long remoteLastReceived = expectedNodeId == nodeId ? lastReceived : 0;
+        
+        Link link = connection.link;
+        if (link == null) { // accepted connection, find the peer by its id
+            for (Link l : links)
+                if (l.address == null && l.remoteNodeId == remoteNodeId)
+                    link = l;
+            if (link == null) {
+                link = new Link(null);
+                links.add(link);
+            }
+            if (link.connection != null)
+                disconnect(link.connection);
+            link.connection = connection;
+            connection.link = link;
+        }
+        
+        synchronized (link) {
+            if (link.remoteNodeId != remoteNodeId) { // new peer or restarted peer
+                link.remoteNodeId = remoteNodeId;
+                link.lastReceived = 0;
+            }
+            link.sendSequence = Math.max(remoteLastReceived + 1, link.oldestSequence());
+            if (remoteLastReceived + 1 < link.sendSequence)
+                droppedEvents.addAndGet(link.sendSequence - remoteLastReceived - 1);
+        }
+        if (connection.link.address == null)
+            sendHello(connection);
+        connection.handshaken = true;
+    }
+    
+    private void receiveEvents(Link link, ByteBuffer buffer) {
+        byte[] name = new byte[buffer.getShort() & 0xffff];
+        buffer.get(name);
+        String pipeName = new String(name, UTF8);
+        long sequence = buffer.getLong();
+        int count = buffer.getInt();
+        
+        SimpleEventPipe pipe = bridgedPipes.containsKey(pipeName) ? manager.getPipe(pipeName) : null;
+        for (int i = 0; i < count; i++, sequence++) {
+            int length = buffer.getInt();
+            int end = buffer.position() + length;
+            if (sequence > link.lastReceived) {
+                link.lastReceived = sequence;
+                if (pipe != null) {
+                    ByteBuffer slice = buffer.slice();
+                    slice.limit(length);
+                    inbound = serializer.read(slice);
+                    try {
+                        pipe.trigger(inbound);
+                    } catch (RuntimeException ex) {
+                        // listener failures are not the peer's problem
+                    } finally {
+                        inbound = null;
+                    }
+                }
+            }
+            buffer.position(end);
+        }
+    }
+    
+    private void write(Connection connection) throws IOException {
+        Link link = connection.link;
+        ByteBuffer buffer = connection.writeBuffer;
+        if (!connection.handshaken) { // only the hello may be sent
+            flushWriteBuffer(connection);
+            return;
+        }
+        synchronized (link) {
+            if (link.sendSequence == link.nextSequence && buffer.position() == 0)
+                return;
+            while (link.sendSequence < link.nextSequence) {
+                Record first = link.get(link.sendSequence);
+                byte[] name = first.pipeName.getBytes(UTF8);
+                int header = 4 + 1 + 2 + name.length + 8 + 4;
+                if (buffer.remaining() < header + 4 + first.bytes.length)
+                    break;
+                
+                int start = buffer.position();
+                buffer.position(start + header);
+                int count = 0;
+                long sequence = link.sendSequence;
+                while (sequence < link.nextSequence) {
+                    Record record = link.get(sequence);
+                    if (!record.pipeName.equals(first.pipeName) || buffer.remaining() < 4 + record.bytes.length 
+                            || buffer.position() - start + 4 + record.bytes.length > MAX_FRAME_SIZE)
+                        break;
+                    buffer.putInt(record.bytes.length);
+                    buffer.put(record.bytes);
+                    count++;
+                    sequence++;
+                }
+                buffer.putInt(start, buffer.position() - start - 4);
+                buffer.put(start + 4, FRAME_EVENTS);
+                buffer.putShort(start + 5, (short) name.length);
+                for (int i = 0; i < name.length; i++)
+                    buffer.put(start + 7 + i, name[i]);
+                buffer.putLong(start + 7 + name.length, link.sendSequence);
+                buffer.putInt(start + 15 + name.length, count);
+                link.sendSequence = sequence;
+            }
+        }
+        flushWriteBuffer(connection);
+    }
+    
+    private void flushWriteBuffer(Connection connection) throws IOException {
+        ByteBuffer buffer = connection.writeBuffer;
+        buffer.flip();
+        connection.channel.write(buffer);
+        buffer.compact();
+        int ops = buffer.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (connection.key.interestOps() != ops)
+            connection.key.interestOps(ops);
+    }
+    
+    /**
+     * Serialized event waiting to be sent.
+     */
+    private static final class Record {
+        final String pipeName;
+        final byte[] bytes;
+        
+        Record(String pipeName, byte[] bytes) {
+            this.pipeName = pipeName;
+            this.bytes = bytes;
+        }
+    }
+    
+    /**
+     * State for one peer, kept across reconnects. The resend buffer is a
+     * ring of the last events, indexed by sequence number.
+     */
+    private final class Link {
+        final InetSocketAddress address; // null for accepted connections
+        final Record[] records = new Record[resendBufferSize];
+        long nextSequence = 1;
+        long sendSequence = 1;
+        long lastReceived = 0;
+        long remoteNodeId = 0;
+        long reconnectAt = 0;
+        volatile Connection connection;
+        
+        Link(InetSocketAddress address) {
+            this.address = address;
+        }
+        
+        /**
+         * Add a record to the resend buffer.
+         * 
+         * @return true if the record can be sent now.
+         */
+        synchronized boolean add(Record record) {
+            if (nextSequence - sendSequence >= records.length) { // overwriting an unsent event
+                sendSequence++;
+                droppedEvents.incrementAndGet();
+            }
+            records[(int) (nextSequence % records.length)] = record;
+            nextSequence++;
+            Connection c = connection;
+            return c != null && c.handshaken;
+        }
+        
+        Record get(long sequence) {
+            return records[(int) (sequence % records.length)];
+        }
+        
+        long oldestSequence() {
+            return Math.max(1, nextSequence - records.length);
+        }
+    }
+    
+    /**
+     * An open socket to a peer.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        Link link;
+        SelectionKey key;
+        volatile boolean handshaken = false;
+        
+        Connection(SocketChannel channel, Link link) {
+            this.channel = channel;
+            this.link = link;
+        }
+    }
+}
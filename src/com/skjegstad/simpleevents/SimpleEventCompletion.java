@@ -0,0 +1,121 @@
+/*
+ 
+SimpleEventCompletion.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Tracks the deliveries of an event triggered with 
+ * @link SimpleEventPipe#triggerAsync and completes its future when all of 
+ * them are done.
+ * <p>
+ * The trigger itself holds one delivery until all listeners are known, so 
+ * the future cannot complete before the trigger returns. Failed deliveries
+ * are collected and reported together in a 
+ * @link SimpleEventDeliveryException.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+final class SimpleEventCompletion {
+    final Key key;
+    final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    private final AtomicInteger remaining = new AtomicInteger(1);
+    private final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+    
+    SimpleEventCompletion(SimpleEvent event) {
+        this.key = new Key(event);
+    }
+    
+    /**
+     * Add deliveries that have to finish before the future completes.
+     * 
+     * @param count number of deliveries.
+     * @return false if the completion is already done and can not be reused.
+     */
+    boolean add(int count) {
+        while (true) {
+            int current = remaining.get();
+            if (current == 0)
+                return false;
+            if (remaining.compareAndSet(current, current + count))
+                return true;
+        }
+    }
+    
+    /**
+     * Record a failed delivery. The delivery must still be passed to done.
+     * 
+     * @param failure exception thrown by the listener, or the reason the
+     * event was dropped.
+     */
+    void fail(Throwable failure) {
+        failures.add(failure);
+    }
+    
+    /**
+     * Mark deliveries as done.
+     * 
+     * @param count number of deliveries.
+     * @return true if all deliveries are done and the future should be
+     * completed with @link #complete.
+     */
+    boolean done(int count) {
+        return remaining.addAndGet(-count) == 0;
+    }
+    
+    /**
+     * Complete the future, exceptionally if any delivery failed.
+     */
+    void complete() {
+        if (failures.isEmpty())
+            future.complete(null);
+        else
+            future.completeExceptionally(new SimpleEventDeliveryException(key.event, new ArrayList<Throwable>(failures)));
+    }
+    
+    /**
+     * Map key comparing events by identity, as events may override equals.
+     */
+    static final class Key {
+        final SimpleEvent event;
+        
+        Key(SimpleEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(event);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).event == event;
+        }
+    }
+}
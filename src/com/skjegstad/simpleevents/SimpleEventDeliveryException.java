@@ -0,0 +1,76 @@
+/*
+ 
+SimpleEventDeliveryException.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * Exception completing the future returned by 
+ * @link SimpleEventPipe#triggerAsync when one or more listeners failed to 
+ * handle the event, or the event was dropped before reaching them. The 
+ * first failure is the cause and the rest are added as suppressed 
+ * exceptions.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventDeliveryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    private final transient SimpleEvent event;
+    private final List<Throwable> failures;
+
+    /**
+     * Create a new delivery exception.
+     * 
+     * @param event event that was not delivered to all listeners.
+     * @param failures exceptions from the failed deliveries. Must not be empty.
+     */
+    public SimpleEventDeliveryException(SimpleEvent event, List<Throwable> failures) {
+        super(failures.size() + " failed deliveries of event " + event, failures.get(0));
+        this.event = event;
+        this.failures = Collections.unmodifiableList(failures);
+        for (int i = 1; i < failures.size(); i++)
+            addSuppressed(failures.get(i));
+    }
+
+    /**
+     * Returns the event that was not delivered to all listeners.
+     * 
+     * @return event.
+     */
+    public SimpleEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Returns the exceptions from the failed deliveries, in the order they
+     * were recorded.
+     * 
+     * @return failures.
+     */
+    public List<Throwable> getFailures() {
+        return failures;
+    }
+}
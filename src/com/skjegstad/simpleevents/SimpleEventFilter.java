@@ -0,0 +1,168 @@
+/*
+ 
+SimpleEventFilter.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleKeyedEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ *
+ * Condition attached to a listener when it is added to a pipe, see 
+ * @link SimpleEventPipe#listen(Class, SimpleEventFilter, SimpleEventListener).
+ * Events that do not match are never handed to the listener, so no task is
+ * created for asynchronous listeners that would discard them.
+ * <p>
+ * A filter is either a predicate or an equality condition on an attribute 
+ * of the event, and filters can be combined with @link #and. The pipe 
+ * groups listeners whose filters compare the same attribute in a hash 
+ * index on the attribute value, so an event is routed to the matching 
+ * listeners with one lookup instead of testing every listener. Attributes
+ * are compared by identity, so listeners should share the attribute 
+ * function, e.g. by keeping it in a constant. Further conditions are 
+ * tested on the listeners found in the index.
+ * </p>
+ * 
+ * @param <E> type of events the filter is applied to.
+ * @author Magnus Skjegstad
+ */
+public final class SimpleEventFilter<E extends SimpleEvent> {
+    /**
+     * Attribute returning the key of a @link SimpleKeyedEvent.
+     */
+    public static final Function<SimpleKeyedEvent, Object> EVENT_KEY = new Function<SimpleKeyedEvent, Object>() {
+        @Override
+        public Object apply(SimpleKeyedEvent event) {
+            return event.getEventKey();
+        }
+    };
+    
+    // Indexed equality condition, or null if the filter only has predicates
+    final Function<? super E, ?> attribute;
+    final Object value;
+    private final List<Predicate<? super E>> conditions;
+    
+    private SimpleEventFilter(Function<? super E, ?> attribute, Object value, List<Predicate<? super E>> conditions) {
+        this.attribute = attribute;
+        this.value = value;
+        this.conditions = conditions;
+    }
+    
+    /**
+     * Returns a filter matching the events accepted by the predicate. The 
+     * predicate is tested on the triggering thread for every event of the
+     * listener type.
+     * 
+     * @param predicate condition on the event.
+     * @return predicate filter.
+     */
+    public static <E extends SimpleEvent> SimpleEventFilter<E> where(Predicate<? super E> predicate) {
+        List<Predicate<? super E>> conditions = new ArrayList<Predicate<? super E>>(1);
+        conditions.add(predicate);
+        return new SimpleEventFilter<E>(null, null, Collections.unmodifiableList(conditions));
+    }
+    
+    /**
+     * Returns a filter matching events where the attribute equals the 
+     * value, as defined by equals. Listeners with equality filters on the 
+     * same attribute are indexed by the value.
+     * 
+     * @param attribute function reading the attribute from the event.
+     * @param value value to match, may be null.
+     * @return equality filter.
+     */
+    public static <E extends SimpleEvent> SimpleEventFilter<E> whereEquals(Function<? super E, ?> attribute, Object value) {
+        if (attribute == null)
+            throw new IllegalArgumentException("Attribute can not be null");
+        return new SimpleEventFilter<E>(attribute, value, Collections.<Predicate<? super E>>emptyList());
+    }
+    
+    /**
+     * Returns a filter matching keyed events with the given key.
+     * 
+     * @param key event key to match.
+     * @return equality filter on @link #EVENT_KEY.
+     */
+    public static SimpleEventFilter<SimpleKeyedEvent> whereKeyEquals(Object key) {
+        return whereEquals(EVENT_KEY, key);
+    }
+    
+    /**
+     * Returns a filter matching events that match both this filter and the
+     * other. The first equality condition of the two is used for indexing.
+     * 
+     * @param other filter to combine with.
+     * @return combined filter.
+     */
+    public SimpleEventFilter<E> and(SimpleEventFilter<? super E> other) {
+        List<Predicate<? super E>> combined = new ArrayList<Predicate<? super E>>(conditions);
+        combined.addAll(other.conditions);
+        Function<? super E, ?> indexed = attribute;
+        Object indexedValue = value;
+        if (indexed == null) {
+            indexed = other.attribute;
+            indexedValue = other.value;
+        } else if (other.attribute != null) {
+            combined.add(equalTo(other.attribute, other.value));
+        }
+        return new SimpleEventFilter<E>(indexed, indexedValue, Collections.unmodifiableList(combined));
+    }
+    
+    /**
+     * Returns true if the event matches the filter.
+     * 
+     * @param event event to test.
+     * @return true if the event matches.
+     */
+    public boolean test(E event) {
+        if (attribute != null && !equal(attribute.apply(event), value))
+            return false;
+        return testConditions(event);
+    }
+    
+    /**
+     * Test the conditions that are not covered by the index.
+     */
+    boolean testConditions(E event) {
+        for (int i = 0; i < conditions.size(); i++)
+            if (!conditions.get(i).test(event))
+                return false;
+        return true;
+    }
+    
+    private static <E> Predicate<E> equalTo(final Function<? super E, ?> attribute, final Object value) {
+        return new Predicate<E>() {
+            @Override
+            public boolean test(E event) {
+                return equal(attribute.apply(event), value);
+            }
+        };
+    }
+    
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
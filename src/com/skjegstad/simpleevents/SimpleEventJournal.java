@@ -0,0 +1,372 @@
+/*
+ 
+SimpleEventJournal.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventSerializer;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Append-only journal of events, stored in memory-mapped segment files.
+ * <p>
+ * Each event gets an offset, starting from 0. Events are serialized 
+ * directly into the mapped segment and stored as a length followed by the
+ * serialized bytes. The length is written last, so a record is only visible
+ * once it is complete. When a segment is full, a new segment is started, and
+ * the oldest segments are deleted when there are more than maxSegments.
+ * </p>
+ * <p>
+ * Segments are flushed to disk by a background thread every flush interval,
+ * so a single fsync covers all events appended since the last flush. With a
+ * flush interval of 0, every append is flushed before it returns.
+ * </p>
+ * <p>
+ * Attach the journal to a pipe with @link SimpleEventPipe#setJournal. 
+ * Reopening a journal directory recovers the events written before.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventJournal {
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int LENGTH_SIZE = 4;
+    
+    private final File directory;
+    private final SimpleEventSerializer serializer;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long flushIntervalMillis;
+    private final ScheduledExecutorService flusher;
+    
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment active;
+    private long nextOffset;
+    private boolean dirty = false;
+    private boolean closed = false;
+
+    /**
+     * Open or create a journal in the given directory.
+     * 
+     * @param directory directory holding the segment files.
+     * @param serializer serializer used to read and write events.
+     * @param segmentSize size of each segment file in bytes.
+     * @param maxSegments number of segments to keep.
+     * @param flushIntervalMillis time between flushes to disk, or 0 to flush on every append.
+     * @throws IOException if the journal could not be opened.
+     */
+    public SimpleEventJournal(File directory, SimpleEventSerializer serializer, int segmentSize, int maxSegments, long flushIntervalMillis) throws IOException {
+        if (segmentSize <= LENGTH_SIZE)
+            throw new IllegalArgumentException("Segment size too small");
+        if (maxSegments < 1)
+            throw new IllegalArgumentException("At least one segment must be kept");
+        this.directory = directory;
+        this.serializer = serializer;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.flushIntervalMillis = flushIntervalMillis;
+        
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create journal directory " + directory);
+        recover();
+        
+        if (flushIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SimpleEventJournal-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+    
+    /**
+     * Map the existing segment files and find the end of the last one.
+     */
+    private void recover() throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(names); // zero-padded base offsets sort in offset order
+        
+        for (String name : names) {
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            File file = new File(directory, name);
+            Segment segment = new Segment(baseOffset, file, map(file, file.length()));
+            segment.scan();
+            segments.add(segment);
+        }
+        
+        if (segments.isEmpty()) {
+            active = createSegment(0);
+            segments.add(active);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+        nextOffset = active.baseOffset + active.count;
+        applyRetention();
+    }
+    
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size)
+                raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+    }
+    
+    private Segment createSegment(long baseOffset) throws IOException {
+        File file = new File(directory, String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+        return new Segment(baseOffset, file, map(file, segmentSize));
+    }
+    
+    private void applyRetention() {
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            oldest.file.delete();
+        }
+    }
+    
+    /**
+     * Append an event to the journal. Pipes hold the journal lock while
+     * appending and looking up listeners, so events are journaled in the
+     * order they are delivered.
+     * 
+     * @param event event to append.
+     * @return offset of the event.
+     * @throws IllegalStateException if the journal is closed or could not be written.
+     * @throws IllegalArgumentException if the event does not fit in a segment.
+     */
+    public synchronized long append(SimpleEvent event) {
+        if (closed)
+            throw new IllegalStateException("Journal is closed");
+        
+        if (!active.tryAppend(event)) {
+            roll();
+            if (!active.tryAppend(event))
+                throw new IllegalArgumentException("Event does not fit in a journal segment: " + event);
+        }
+        
+        dirty = true;
+        if (flushIntervalMillis <= 0)
+            flush();
+        return nextOffset++;
+    }
+    
+    /**
+     * Start a new segment and delete old segments beyond the retention limit.
+     */
+    private void roll() {
+        active.buffer.force();
+        try {
+            active = createSegment(nextOffset);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to create journal segment", ex);
+        }
+        segments.add(active);
+        applyRetention();
+    }
+    
+    /**
+     * Flush appended events to disk.
+     */
+    public void flush() {
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            if (!dirty || closed)
+                return;
+            dirty = false;
+            buffer = active.buffer;
+        }
+        buffer.force();
+    }
+    
+    /**
+     * Returns the offset of the oldest event still in the journal.
+     * 
+     * @return first offset.
+     */
+    public synchronized long getStartOffset() {
+        return segments.get(0).baseOffset;
+    }
+    
+    /**
+     * Returns the offset the next appended event will get.
+     * 
+     * @return end offset.
+     */
+    public synchronized long getEndOffset() {
+        return nextOffset;
+    }
+    
+    /**
+     * Pass the journaled events from fromOffset up to, but not including,
+     * toOffset to the listener, on the calling thread. Events older than the
+     * start offset are no longer available and are skipped.
+     * 
+     * @param fromOffset offset of the first event.
+     * @param toOffset offset after the last event.
+     * @param listener listener receiving the events.
+     * @return offset after the last event passed to the listener.
+     */
+    public long replay(long fromOffset, long toOffset, SimpleEventListener listener) {
+        Segment[] snapshot;
+        int[] ends;
+        long[] counts;
+        synchronized (this) {
+            snapshot = segments.toArray(new Segment[segments.size()]);
+            ends = new int[snapshot.length];
+            counts = new long[snapshot.length];
+            for (int i = 0; i < snapshot.length; i++) {
+                ends[i] = snapshot[i].position;
+                counts[i] = snapshot[i].count;
+            }
+            toOffset = Math.min(toOffset, nextOffset);
+        }
+        
+        long offset = Math.max(fromOffset, snapshot[0].baseOffset);
+        for (int i = 0; i < snapshot.length && offset < toOffset; i++) {
+            Segment segment = snapshot[i];
+            if (segment.baseOffset + counts[i] <= offset)
+                continue;
+            
+            ByteBuffer buffer = segment.buffer.duplicate();
+            long recordOffset = segment.baseOffset;
+            int position = 0;
+            while (position < ends[i] && recordOffset < toOffset) {
+                int length = buffer.getInt(position);
+                if (recordOffset >= offset) {
+                    buffer.limit(position + LENGTH_SIZE + length);
+                    buffer.position(position + LENGTH_SIZE);
+                    listener.receiveEvent(serializer.read(buffer.slice()));
+                    buffer.clear();
+                    offset = recordOffset + 1;
+                }
+                position += LENGTH_SIZE + length;
+                recordOffset++;
+            }
+        }
+        return offset;
+    }
+    
+    /**
+     * Flush and close the journal. The segment files are kept.
+     */
+    public void close() {
+        if (flusher != null)
+            flusher.shutdown();
+        flush();
+        synchronized (this) {
+            closed = true;
+        }
+    }
+    
+    /**
+     * One segment file. Position and count are guarded by the journal lock.
+     */
+    private final class Segment {
+        final long baseOffset;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position = 0;
+        long count = 0;
+
+        Segment(long baseOffset, File file, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.file = file;
+            this.buffer = buffer;
+        }
+        
+        /**
+         * Find the end of the complete records in the segment.
+         */
+        void scan() {
+            int capacity = buffer.capacity();
+            while (position + LENGTH_SIZE <= capacity) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + LENGTH_SIZE + length > capacity)
+                    break;
+                position += LENGTH_SIZE + length;
+                count++;
+            }
+        }
+        
+        /**
+         * Serialize the event directly into the segment.
+         * 
+         * @return false if the event does not fit in the remaining space.
+         */
+        boolean tryAppend(SimpleEvent event) {
+            int capacity = buffer.capacity();
+            if (position + LENGTH_SIZE > capacity)
+                return false;
+            
+            ByteBuffer target = buffer.duplicate();
+            target.position(position + LENGTH_SIZE);
+            target = target.slice();
+            try {
+                serializer.write(event, target);
+            } catch (BufferOverflowException ex) {
+                return false;
+            }
+            int length = target.position();
+            if (length == 0)
+                throw new IllegalArgumentException("Serialized event is empty: " + event);
+            
+            buffer.putInt(position, length); // commit the record
+            position += LENGTH_SIZE + length;
+            count++;
+            return true;
+        }
+    }
+}
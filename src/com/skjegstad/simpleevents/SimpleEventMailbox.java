@@ -0,0 +1,341 @@
+/*
+ 
+SimpleEventMailbox.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncBatchEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleKeyedEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Queue of pending events for one asynchronous listener. 
+ * <p>
+ * Events are appended by trigger and drained by a single task on the
+ * executor, which delivers up to a batch of events per run. At most one
+ * drain task is scheduled at a time, so the listener receives events in
+ * the order they were offered and never has more than one task in flight.
+ * </p>
+ * <p>
+ * The capacity and overflow policy are read from the pipe on every offer.
+ * With conflation enabled, a keyed event replaces the pending event with
+ * the same key, so the queue holds at most one event per key.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+final class SimpleEventMailbox implements Runnable {
+    // Events delivered one at a time per run before the thread is given back to the pool
+    private static final int THROUGHPUT = 64;
+    
+    private final SimpleEventListener listener;
+    private final SimpleEventPipe pipe;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<SimpleEvent> queue = new ArrayDeque<SimpleEvent>();
+    private final HashMap<Object, Pending> pendingKeys = new HashMap<Object, Pending>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Create a new mailbox for the given listener.
+     * 
+     * @param listener listener receiving the events.
+     * @param pipe pipe providing the mailbox settings and counters.
+     */
+    SimpleEventMailbox(SimpleEventListener listener, SimpleEventPipe pipe) {
+        this.listener = listener;
+        this.pipe = pipe;
+    }
+    
+    /**
+     * Append an event and schedule the drain task if it is not already
+     * scheduled. If the mailbox is full, the overflow policy of the pipe
+     * decides what happens.
+     * 
+     * @param event event to deliver.
+     * @throws RejectedExecutionException if the mailbox is full and the policy is FAIL.
+     */
+    void offer(SimpleEvent event) {
+        int capacity = pipe.getAsyncMailboxCapacity();
+        SimpleOverflowPolicy policy = pipe.getAsyncOverflowPolicy();
+        boolean conflation = pipe.isAsyncConflation();
+        boolean timed = pipe.getMetrics() != null;
+        
+        lock.lock();
+        try {
+            Object key = null;
+            if (conflation && event instanceof SimpleKeyedEvent) {
+                key = ((SimpleKeyedEvent) event).getEventKey();
+                if (coalesce(key, event))
+                    return;
+            }
+            
+            if (capacity > 0 && queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        long startTs = System.nanoTime();
+                        try {
+                            while (queue.size() >= capacity) {
+                                notFull.await();
+                                // the key may have been queued while we waited
+                                if (key != null && coalesce(key, event))
+                                    return;
+                            }
+                        } catch (InterruptedException ex) { // give up on this event, but keep the interrupt
+                            Thread.currentThread().interrupt();
+                            pipe.asyncDropped(event);
+                            return;
+                        } finally {
+                            pipe.blockedNanos.addAndGet(System.nanoTime() - startTs);
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        pipe.asyncDropped(event);
+                        return;
+                    case DROP_OLDEST:
+                    case COALESCE:
+                        pipe.asyncDropped(poll());
+                        break;
+                    case FAIL:
+                        pipe.rejectedEvents.incrementAndGet();
+                        throw new RejectedExecutionException("Mailbox full, rejected event " + event);
+                }
+            }
+            
+            if (key != null || timed) {
+                Pending pending = new Pending(key, event, timed ? System.nanoTime() : 0);
+                if (key != null)
+                    pendingKeys.put(key, pending);
+                queue.addLast(pending);
+            } else {
+                queue.addLast(event);
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        schedule(event);
+    }
+    
+    /**
+     * Replace the pending event with the same key, if any. Must be called 
+     * with the lock held.
+     * 
+     * @return true if the event replaced a pending event.
+     */
+    private boolean coalesce(Object key, SimpleEvent event) {
+        Pending pending = pendingKeys.get(key);
+        if (pending == null)
+            return false;
+        pipe.asyncDone(pending.event, 1);
+        pending.event = event;
+        pipe.coalescedEvents.incrementAndGet();
+        return true;
+    }
+    
+    /**
+     * Returns the number of events waiting to be delivered.
+     * 
+     * @return pending events.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Schedule the drain task if it is not already scheduled. If the executor
+     * rejects the task, nothing would drain the queue, so the queued events 
+     * are removed and marked as done, except the offered event, which the 
+     * caller marks as done when the exception reaches it.
+     * 
+     * @param offered event being offered, or null.
+     * @throws RejectedExecutionException if the executor rejected the task.
+     */
+    private void schedule(SimpleEvent offered) {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            pipe.execute(this, pipe.priorityOf(listener, null));
+        } catch (RuntimeException ex) {
+            scheduled.set(false);
+            List<SimpleEvent> discarded = new ArrayList<SimpleEvent>();
+            lock.lock();
+            try {
+                drainTo(discarded, Integer.MAX_VALUE);
+            } finally {
+                lock.unlock();
+            }
+            boolean skipped = false;
+            for (SimpleEvent event : discarded) {
+                if (!skipped && event == offered)
+                    skipped = true;
+                else
+                    pipe.asyncDone(event, 1);
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Remove the oldest event. Must be called with the lock held.
+     */
+    private SimpleEvent poll() {
+        SimpleEvent event = queue.pollFirst();
+        if (event instanceof Pending) {
+            Pending pending = (Pending) event;
+            if (pending.key != null)
+                pendingKeys.remove(pending.key);
+            SimpleEventMetrics m = pipe.getMetrics();
+            if (m != null && pending.enqueuedTs != 0)
+                m.recordAsyncQueueWait(System.nanoTime() - pending.enqueuedTs);
+            event = pending.event;
+        }
+        return event;
+    }
+    
+    /**
+     * Move up to maxBatchSize events to the batch. Must be called with the
+     * lock held.
+     */
+    private void drainTo(List<SimpleEvent> batch, int maxBatchSize) {
+        boolean drained = false;
+        while (batch.size() < maxBatchSize && !queue.isEmpty()) {
+            batch.add(poll());
+            drained = true;
+        }
+        if (drained)
+            notFull.signalAll();
+    }
+
+    /**
+     * Deliver pending events. Without batching, up to THROUGHPUT events are 
+     * delivered one at a time. With batching, one batch is delivered, and if
+     * the batch is not full the task waits up to the linger time for more
+     * events before delivering it.
+     */
+    @Override
+    public void run() {
+        try {
+            if (pipe.getAsyncBatchSize() == 0) {
+                for (int i = 0; i < THROUGHPUT; i++) {
+                    SimpleEvent event;
+                    lock.lock();
+                    try {
+                        if (queue.isEmpty())
+                            break;
+                        event = poll();
+                        notFull.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    pipe.deliverAsyncEvent(listener, event);
+                }
+                return;
+            }
+            
+            int maxBatchSize = pipe.getAsyncBatchSize();
+            long lingerNanos = TimeUnit.MILLISECONDS.toNanos(pipe.getAsyncBatchLinger());
+            
+            List<SimpleEvent> batch = new ArrayList<SimpleEvent>(Math.min(maxBatchSize, 1024));
+            lock.lock();
+            try {
+                drainTo(batch, maxBatchSize);
+                
+                if (lingerNanos > 0 && batch.size() < maxBatchSize) {
+                    long deadline = System.nanoTime() + lingerNanos;
+                    try {
+                        while (batch.size() < maxBatchSize) {
+                            if (queue.isEmpty()) {
+                                long remaining = deadline - System.nanoTime();
+                                if (remaining <= 0)
+                                    break;
+                                notEmpty.awaitNanos(remaining);
+                            } else {
+                                drainTo(batch, maxBatchSize);
+                            }
+                        }
+                    } catch (InterruptedException ex) { // deliver what we have, but keep the interrupt for the listener
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            
+            deliver(batch);
+        } finally {
+            scheduled.set(false);
+            if (size() > 0) {
+                try {
+                    schedule(null);
+                } catch (RuntimeException ex) {
+                    // the queued events were discarded
+                }
+            }
+        }
+    }
+    
+    private void deliver(List<SimpleEvent> batch) {
+        if (batch.isEmpty())
+            return;
+        
+        if (listener instanceof SimpleAsyncBatchEventListener) {
+            pipe.deliverAsyncEvents((SimpleAsyncBatchEventListener) listener, Collections.unmodifiableList(batch));
+        } else {
+            for (SimpleEvent event : batch)
+                pipe.deliverAsyncEvent(listener, event);
+        }
+    }
+    
+    /**
+     * Queue element for a keyed event that may be replaced by a newer event
+     * with the same key before delivery, or for an event whose queue time is
+     * measured.
+     */
+    private static final class Pending implements SimpleEvent {
+        final Object key;
+        final long enqueuedTs;
+        SimpleEvent event;
+
+        Pending(Object key, SimpleEvent event, long enqueuedTs) {
+            this.key = key;
+            this.event = event;
+            this.enqueuedTs = enqueuedTs;
+        }
+    }
+}
@@ -22,23 +22,78 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package com.skjegstad.simpleevents;
 
 
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventPipeFactory;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
  * Class for managing event pipes.
+ * <p>
+ * Pipe names may be hierarchical, with segments separated by dots, e.g.
+ * "orders.eu.created". Listeners can subscribe to all pipes matching a
+ * pattern such as "orders.*.created" or "orders.#" with 
+ * @link #listen(String, SimpleEventListener). The listener is registered
+ * directly on every matching pipe, including pipes created later, so 
+ * triggering an event on a pipe does not involve any pattern matching.
+ * </p>
+ * <p>
+ * Pipes are kept until they are closed with @link #closePipe, until the
+ * last handle from @link #acquirePipe is closed, or until they are evicted
+ * after being idle. With an idle timeout set, a background sweeper removes
+ * pipes that have had no triggers, no new listeners and no getPipe calls
+ * for the idle time, and that have no listeners except those subscribed
+ * with a pattern. Pipes with open handles and the default and dead-letter
+ * pipes are never evicted. A pipe that is used while it is being evicted 
+ * is kept, but code holding on to a pipe for a long time without using it
+ * should acquire a handle.
+ * </p>
  * 
  * @author Magnus Skjegstad
  */
-public class SimpleEventManager {
+public class SimpleEventManager implements SimpleEventManagerMXBean {
     
     private ConcurrentHashMap<String,SimpleEventPipe> eventPipes = new ConcurrentHashMap();
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ExecutorService executorService;
+    private volatile boolean metricsEnabled = false;
+    private volatile ObjectName mbeanName = null;
+    // Pattern subscriptions, also guards adding and removing pipes in eventPipes
+    private final SimpleTopicTrie<Subscription> subscriptions = new SimpleTopicTrie<Subscription>();
+    private volatile long pipeIdleTimeout = 0;
+    private ScheduledExecutorService sweeper = null;
+    private final AtomicLong evictedPipes = new AtomicLong(0);
+    private volatile boolean shuttingDown = false;
+    private volatile Map<String, SimpleDrainStatus> finalDrainStatus = null;
+    
+    // Number of slowest listeners included in each pipe metrics snapshot
+    private static final int SLOWEST_LISTENERS = 10;
+    
+    private static final SimpleEventPipeFactory DEFAULT_PIPE_FACTORY = new SimpleEventPipeFactory() {
+        @Override
+        public SimpleEventPipe createPipe(ExecutorService executorService) {
+            return new SimpleEventPipe(executorService);
+        }
+    };
     
     protected String defaultContext = "DEFAULT_CONTEXT";  
+    protected String deadLetterContext = "DEAD_LETTERS";
     protected String instanceName = "EVENTMGR-" + Thread.currentThread().getId();
 
     /**
@@ -46,6 +101,7 @@ public class SimpleEventManager {
      * 
      */
     public SimpleEventManager() {
+        this(Executors.newCachedThreadPool());
     }
 
     /**
@@ -55,14 +111,73 @@ public class SimpleEventManager {
      * @param name unique name of the event manager.
      */
     public SimpleEventManager(String name) {
+        this(name, Executors.newCachedThreadPool());
+    }
+    
+    /**
+     * Create new instance of SimpleEventManager that runs asynchronous 
+     * listeners on the given ExecutorService. The ExecutorService is shut
+     * down when the event manager is shut down.
+     * 
+     * @param executorService ExecutorService used by all event pipes, e.g. 
+     *        from @link #newVirtualThreadExecutor.
+     */
+    public SimpleEventManager(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+    
+    /**
+     * Create new instance of SimpleEventManager with the given name that runs
+     * asynchronous listeners on the given ExecutorService.
+     * 
+     * @param name unique name of the event manager.
+     * @param executorService ExecutorService used by all event pipes.
+     */
+    public SimpleEventManager(String name, ExecutorService executorService) {
+        this(executorService);
         instanceName = name;
     }
+    
+    /**
+     * Returns true if the running JVM supports virtual threads.
+     * 
+     * @return true if @link #newVirtualThreadExecutor can be used.
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Create an ExecutorService that starts a new virtual thread for each 
+     * task. Asynchronous listeners that block on I/O then do not tie up
+     * platform threads, so many thousands of deliveries can be in flight. 
+     * Requires a JVM with virtual threads (Java 21 or later).
+     * 
+     * @return new virtual thread ExecutorService.
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException ex) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", ex);
+        } catch (Exception ex) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor", ex);
+        }
+    }
 
     /**
      * Returns the name of this instance set by the constructor. 
      * 
      * @return 
      */
+    @Override
     public String getInstanceName() {
         return instanceName;
     }
@@ -77,15 +192,304 @@ public class SimpleEventManager {
      * @return new or existing event pipe with the given name.
      */
     public SimpleEventPipe getPipe(String name) {
+        return getPipe(name, DEFAULT_PIPE_FACTORY);
+    }
+    
+    /**
+     * Returns a stream of the events of the given type on the named pipe,
+     * for transforming and aggregating them. See @link SimpleEventStream.
+     * 
+     * @param name name of the source pipe.
+     * @param type type of events in the stream.
+     * @return event stream.
+     */
+    public <E extends SimpleEvent> SimpleEventStream<E> stream(String name, Class<E> type) {
+        return SimpleEventStream.from(getPipe(name), type);
+    }
+    
+    /**
+     * 
+     * Get an instance of the named event pipe. If the pipe does not exist, it
+     * is created by the given factory. If the pipe already exists, the
+     * existing pipe is returned regardless of how it was created.
+     * 
+     * @param name name of event pipe.
+     * @param factory factory used to create the pipe if it does not exist,
+     *        e.g. @link SimpleRingBufferEventPipe#factory.
+     * @return new or existing event pipe with the given name.
+     */
+    public SimpleEventPipe getPipe(String name, SimpleEventPipeFactory factory) {
         SimpleEventPipe pipe = eventPipes.get(name);
+        if (pipe != null) {
+            pipe.touch();
+            // If the sweeper evicted the pipe before it saw the touch, start over
+            if (pipeIdleTimeout == 0 || eventPipes.get(name) == pipe)
+                return pipe;
+            pipe = null;
+        }
         if (pipe == null) {
-            eventPipes.putIfAbsent(name, new SimpleEventPipe(executorService));
-            pipe = eventPipes.get(name);
+            SimpleEventPipe created = factory.createPipe(executorService);
+            if (metricsEnabled)
+                created.setMetricsEnabled(true);
+            if (!name.equals(deadLetterContext))
+                created.setDeadLetterPipe(getDeadLetterPipe());
+            if (shuttingDown)
+                created.stopTriggers();
+            
+            synchronized (subscriptions) {
+                pipe = eventPipes.get(name);
+                if (pipe == null) {
+                    // Subscribe matching patterns before the pipe is visible
+                    for (Subscription subscription : subscriptions.match(name))
+                        subscription.listen(created);
+                    eventPipes.put(name, created);
+                    pipe = created;
+                }
+            }
+            // Another thread added the pipe first, close ours so it does not leak e.g. shard workers
+            if (pipe != created)
+                created.removeAllListeners();
         }
         
         return pipe;
     }
     
+    /**
+     * Get the named event pipe and take a handle to it. The pipe is not
+     * evicted while the handle is open, and is closed when the last handle 
+     * to it is closed.
+     * 
+     * @param name name of event pipe.
+     * @return handle to a new or existing event pipe.
+     */
+    public SimpleEventPipeHandle acquirePipe(String name) {
+        while (true) {
+            SimpleEventPipe pipe = getPipe(name);
+            synchronized (subscriptions) {
+                if (eventPipes.get(name) == pipe) { // not closed in the meantime
+                    pipe.handles++;
+                    return new SimpleEventPipeHandle(this, name, pipe);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Create a new event pipe with a unique name and take a handle to it. 
+     * The pipe is closed when the handle is closed.
+     * 
+     * @param owner name of the entity requesting the event pipe.
+     * @return handle to the unique event pipe.
+     */
+    public SimpleEventPipeHandle acquireUniquePipe(String owner) {
+        return acquirePipe(owner + "-" + UUID.randomUUID().toString());
+    }
+    
+    /**
+     * Release a handle, closing the pipe if it was the last one.
+     */
+    void releasePipe(String name, SimpleEventPipe pipe) {
+        boolean close;
+        synchronized (subscriptions) {
+            pipe.handles--;
+            close = pipe.handles == 0 && eventPipes.remove(name, pipe);
+            if (close)
+                forgetSubscriptions(name, pipe);
+        }
+        if (close)
+            pipe.removeAllListeners();
+    }
+    
+    /**
+     * Close the named event pipe. The pipe is removed from this manager and
+     * all its listeners are removed, even if handles to it are still open.
+     * A later call to getPipe with the same name creates a new pipe.
+     * 
+     * @param name name of event pipe.
+     * @return true if the pipe existed.
+     */
+    public boolean closePipe(String name) {
+        SimpleEventPipe pipe;
+        synchronized (subscriptions) {
+            pipe = eventPipes.remove(name);
+            if (pipe != null)
+                forgetSubscriptions(name, pipe);
+        }
+        if (pipe == null)
+            return false;
+        pipe.removeAllListeners();
+        return true;
+    }
+    
+    /**
+     * Returns the number of pipes in this manager.
+     * 
+     * @return number of pipes.
+     */
+    public int getPipeCount() {
+        return eventPipes.size();
+    }
+    
+    /**
+     * Evict pipes that have been idle for the given time. A background 
+     * thread checks for idle pipes twice per idle time. Disabled by default.
+     * 
+     * @param idleTimeoutMillis idle time before a pipe is evicted, or 0 to disable eviction.
+     */
+    public synchronized void setPipeIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0)
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        pipeIdleTimeout = idleTimeoutMillis;
+        if (idleTimeoutMillis > 0) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SimpleEventManager-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long interval = Math.max(1, idleTimeoutMillis / 2);
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdlePipes();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Returns the idle time before a pipe is evicted.
+     * 
+     * @return idle timeout in milliseconds, or 0 if eviction is disabled.
+     */
+    public long getPipeIdleTimeout() {
+        return pipeIdleTimeout;
+    }
+    
+    /**
+     * Returns the number of pipes evicted because they were idle.
+     * 
+     * @return evicted pipes.
+     */
+    public long getEvictedPipes() {
+        return evictedPipes.get();
+    }
+    
+    /**
+     * Remove pipes that have not been used for the idle timeout. A pipe 
+     * counts as used if it was touched since the last sweep, or if it has
+     * handles or listeners that were not added by a pattern subscription.
+     */
+    void evictIdlePipes() {
+        long timeout = pipeIdleTimeout;
+        if (timeout == 0)
+            return;
+        long now = System.currentTimeMillis();
+        List<SimpleEventPipe> evicted = new ArrayList<SimpleEventPipe>();
+        
+        synchronized (subscriptions) {
+            for (Map.Entry<String, SimpleEventPipe> entry : eventPipes.entrySet()) {
+                String name = entry.getKey();
+                SimpleEventPipe pipe = entry.getValue();
+                if (name.equals(defaultContext) || name.equals(deadLetterContext))
+                    continue;
+                
+                boolean listened = pipe.getListenerCount() > subscriptions.match(name).size();
+                if (pipe.touched || listened || pipe.handles > 0) {
+                    pipe.touched = false;
+                    pipe.idleSince = now;
+                    continue;
+                }
+                if (now - pipe.idleSince < timeout)
+                    continue;
+                
+                eventPipes.remove(name);
+                if (pipe.touched) { // used while we were removing it
+                    eventPipes.put(name, pipe);
+                    continue;
+                }
+                forgetSubscriptions(name, pipe);
+                evicted.add(pipe);
+            }
+        }
+        
+        for (SimpleEventPipe pipe : evicted)
+            pipe.removeAllListeners();
+        evictedPipes.addAndGet(evicted.size());
+    }
+    
+    /**
+     * Listen to all events on pipes with names matching the given pattern, 
+     * including pipes created later. In the pattern, "*" matches one segment
+     * of the pipe name and "#" matches any number of segments.
+     * A listener subscribed with several patterns matching the same pipe 
+     * receives each event once per pattern, and registrations made with
+     * @link SimpleEventPipe#listen are separate from those made here.
+     * 
+     * @param pattern pipe name pattern, e.g. "orders.*.created".
+     * @param listener event listener.
+     */
+    public void listen(String pattern, SimpleEventListener listener) {
+        listen(pattern, SimpleEvent.class, listener);
+    }
+    
+    /**
+     * Listen to events of the given type on pipes with names matching the
+     * given pattern, including pipes created later. See 
+     * @link #listen(String, SimpleEventListener).
+     * 
+     * @param pattern pipe name pattern, e.g. "orders.#".
+     * @param type class of events to receive.
+     * @param listener event listener.
+     */
+    public <E extends SimpleEvent> void listen(String pattern, Class<E> type, SimpleEventListener listener) {
+        synchronized (subscriptions) {
+            Subscription subscription = new Subscription(type, listener);
+            subscriptions.add(pattern, subscription);
+            for (Map.Entry<String, SimpleEventPipe> entry : eventPipes.entrySet())
+                if (SimpleTopicTrie.matches(pattern, entry.getKey()))
+                    subscription.listen(entry.getValue());
+        }
+    }
+    
+    /**
+     * Remove a listener subscribed with a pattern from all matching pipes.
+     * Only the registrations made for this pattern are removed, so the 
+     * listener keeps receiving events through other patterns and through
+     * @link SimpleEventPipe#listen.
+     * 
+     * @param pattern pattern used to subscribe the listener.
+     * @param listener event listener.
+     * @return true if the listener was subscribed with the pattern.
+     */
+    public boolean unlisten(String pattern, SimpleEventListener listener) {
+        synchronized (subscriptions) {
+            Subscription subscription = subscriptions.remove(pattern, new Subscription(SimpleEvent.class, listener));
+            if (subscription == null)
+                return false;
+            for (Map.Entry<SimpleEventPipe, SimpleEventRegistry.Entry> entry : subscription.registrations.entrySet())
+                entry.getKey().deregister(entry.getValue());
+            subscription.registrations.clear();
+            return true;
+        }
+    }
+    
+    /**
+     * Forget the registrations of pattern subscriptions on a pipe that is
+     * removed from this manager. Must be called with the subscriptions lock
+     * held.
+     */
+    private void forgetSubscriptions(String name, SimpleEventPipe pipe) {
+        for (Subscription subscription : subscriptions.match(name))
+            subscription.registrations.remove(pipe);
+    }
+    
     /**
      * 
      * Returns the default event pipe.
@@ -97,7 +501,20 @@ public class SimpleEventManager {
     }
     
     /**
-     * Create a new event pipe with a unique name.
+     * 
+     * Returns the dead-letter pipe. Pipes created by this event manager 
+     * trigger a @link SimpleDeadLetterEvent on this pipe when a listener 
+     * fails to handle an event.
+     * 
+     * @return dead-letter pipe.
+     */
+    public SimpleEventPipe getDeadLetterPipe() {
+        return getPipe(deadLetterContext);
+    }
+    
+    /**
+     * Create a new event pipe with a unique name. The pipe is kept until it
+     * is closed or evicted, see @link #acquireUniquePipe.
      * 
      * @param owner name of the entity requesting the event pipe.
      * @return unique event pipe name.
@@ -106,14 +523,208 @@ public class SimpleEventManager {
         return getPipe(owner + "-" + UUID.randomUUID().toString());
     }
     
+    /**
+     * Enable or disable metrics for all current and future event pipes of
+     * this event manager. Metrics are disabled by default.
+     * 
+     * @param enabled true to collect metrics.
+     */
+    @Override
+    public void setMetricsEnabled(boolean enabled) {
+        metricsEnabled = enabled;
+        for (SimpleEventPipe pipe : eventPipes.values())
+            pipe.setMetricsEnabled(enabled);
+    }
+
+    /**
+     * Returns true if metrics are enabled for new event pipes.
+     * 
+     * @return true if metrics are enabled.
+     */
+    @Override
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+    
+    /**
+     * Returns a metrics snapshot of each event pipe with metrics enabled,
+     * keyed by pipe name. Each snapshot lists the ten slowest listeners of
+     * the pipe.
+     * 
+     * @return pipe metrics by pipe name.
+     */
+    @Override
+    public Map<String, SimpleEventMetrics.Snapshot> getMetrics() {
+        Map<String, SimpleEventMetrics.Snapshot> snapshots = new HashMap<String, SimpleEventMetrics.Snapshot>();
+        for (Map.Entry<String, SimpleEventPipe> entry : eventPipes.entrySet()) {
+            SimpleEventMetrics metrics = entry.getValue().getMetrics();
+            if (metrics != null)
+                snapshots.put(entry.getKey(), metrics.snapshot(SLOWEST_LISTENERS));
+        }
+        return snapshots;
+    }
+    
+    /**
+     * Register this event manager with the platform MBean server, under
+     * com.skjegstad.simpleevents:type=SimpleEventManager,name=instance name.
+     * The MBean is unregistered on shutdown.
+     * 
+     * @throws JMException if the MBean could not be registered.
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName("com.skjegstad.simpleevents:type=SimpleEventManager,name=" + ObjectName.quote(instanceName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        mbeanName = name;
+    }
+    
     /**
      * Shutdown all event pipes associated with this event manager. Running
-     * event listeners will receive an interrupt.
+     * event listeners will receive an interrupt, pending asynchronous
+     * events are dropped and all listeners are removed. See 
+     * @link #shutdownGracefully.
      * 
      */
     public void shutdown() {
+        setPipeIdleTimeout(0);
         executorService.shutdownNow();
-        eventPipes = new ConcurrentHashMap();
+        close();
+    }
+    
+    /**
+     * Shutdown all event pipes, letting pending asynchronous deliveries 
+     * finish first.
+     * <p>
+     * All pipes immediately stop accepting events, so trigger throws a 
+     * RejectedExecutionException, also for listeners triggering events 
+     * while they drain. Pending deliveries then continue in parallel on the
+     * ExecutorService until all pipes are drained or the timeout expires.
+     * After that, the ExecutorService is shut down, and listeners still 
+     * running at the deadline are interrupted. Deliveries that were not done
+     * are dropped and reported per pipe by @link #getDrainStatus.
+     * </p>
+     * 
+     * @param timeout maximum time to wait for pending deliveries.
+     * @param unit unit of the timeout.
+     * @return number of asynchronous deliveries dropped.
+     * @throws InterruptedException if interrupted while waiting. The manager is then shut down immediately.
+     */
+    public long shutdownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        setPipeIdleTimeout(0);
+        Map<String, SimpleEventPipe> pipes;
+        synchronized (subscriptions) {
+            shuttingDown = true;
+            pipes = new HashMap<String, SimpleEventPipe>(eventPipes);
+        }
+        for (SimpleEventPipe pipe : pipes.values())
+            pipe.stopTriggers();
+        
+        long dropped = 0;
+        try {
+            while (pendingDeliveries(pipes) > 0 && System.nanoTime() < deadline)
+                Thread.sleep(1);
+            
+            // Stop long-running consumers, e.g. of ring buffer pipes
+            for (SimpleEventPipe pipe : pipes.values())
+                pipe.removeAllListeners();
+            executorService.shutdown();
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0)
+                executorService.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+        } finally {
+            // Also when interrupted, so the manager is not left half shut down
+            executorService.shutdownNow();
+            
+            Map<String, SimpleDrainStatus> status = new HashMap<String, SimpleDrainStatus>();
+            for (Map.Entry<String, SimpleEventPipe> entry : pipes.entrySet()) {
+                SimpleDrainStatus pipeStatus = SimpleDrainStatus.of(entry.getValue());
+                dropped += pipeStatus.getPendingDeliveries();
+                status.put(entry.getKey(), pipeStatus);
+            }
+            finalDrainStatus = status;
+            close();
+        }
+        return dropped;
+    }
+    
+    private static long pendingDeliveries(Map<String, SimpleEventPipe> pipes) {
+        long pending = 0;
+        for (SimpleEventPipe pipe : pipes.values())
+            pending += Math.max(0, pipe.getPendingDeliveries());
+        return pending;
+    }
+    
+    /**
+     * Returns the drain status of each pipe, keyed by pipe name. During a 
+     * graceful shutdown this shows the deliveries still pending, and after 
+     * it, the deliveries that were dropped.
+     * 
+     * @return drain status by pipe name.
+     */
+    @Override
+    public Map<String, SimpleDrainStatus> getDrainStatus() {
+        Map<String, SimpleDrainStatus> status = finalDrainStatus;
+        if (status != null)
+            return status;
+        status = new HashMap<String, SimpleDrainStatus>();
+        for (Map.Entry<String, SimpleEventPipe> entry : eventPipes.entrySet())
+            status.put(entry.getKey(), SimpleDrainStatus.of(entry.getValue()));
+        return status;
+    }
+    
+    /**
+     * Forget all pipes, remove their listeners and unregister the MBean.
+     */
+    private void close() {
+        Map<String, SimpleEventPipe> pipes;
+        synchronized (subscriptions) {
+            pipes = eventPipes;
+            for (Map.Entry<String, SimpleEventPipe> entry : pipes.entrySet())
+                forgetSubscriptions(entry.getKey(), entry.getValue());
+            eventPipes = new ConcurrentHashMap();
+        }
+        
+        // Stop long-running consumers, e.g. of ring buffer and partitioned pipes
+        for (SimpleEventPipe pipe : pipes.values())
+            pipe.removeAllListeners();
+        
+        ObjectName name = mbeanName;
+        if (name != null) {
+            mbeanName = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ex) { // already unregistered
+            }
+        }
     }
     
+    /**
+     * Listener subscribed to a pipe name pattern, with its registration on
+     * each matching pipe. Subscriptions are equal if they have the same 
+     * listener. Guarded by the subscriptions lock.
+     */
+    private static final class Subscription {
+        final Class<? extends SimpleEvent> type;
+        final SimpleEventListener listener;
+        final Map<SimpleEventPipe, SimpleEventRegistry.Entry> registrations = new IdentityHashMap<SimpleEventPipe, SimpleEventRegistry.Entry>();
+        
+        Subscription(Class<? extends SimpleEvent> type, SimpleEventListener listener) {
+            this.type = type;
+            this.listener = listener;
+        }
+        
+        void listen(SimpleEventPipe pipe) {
+            registrations.put(pipe, pipe.register(type, null, listener));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Subscription && ((Subscription) obj).listener.equals(listener);
+        }
+
+        @Override
+        public int hashCode() {
+            return listener.hashCode();
+        }
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ 
+SimpleEventManagerMXBean.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.Map;
+
+/**
+ *
+ * Management interface of the event manager, exposed through JMX by 
+ * @link SimpleEventManager#registerMBean.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleEventManagerMXBean {
+    public String getInstanceName();
+    
+    public boolean isMetricsEnabled();
+    
+    public void setMetricsEnabled(boolean enabled);
+    
+    public Map<String, SimpleEventMetrics.Snapshot> getMetrics();
+    
+    public Map<String, SimpleDrainStatus> getDrainStatus();
+}
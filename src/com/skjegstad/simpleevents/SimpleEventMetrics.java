@@ -0,0 +1,434 @@
+/*
+ 
+SimpleEventMetrics.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * Metrics for one event pipe. 
+ * <p>
+ * Counters are striped over several cache lines so producers on different
+ * threads do not contend, and durations are recorded in log-linear 
+ * histograms with a relative error of about 12%. Metrics are only collected
+ * while enabled on the pipe; a disabled pipe skips all recording.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public final class SimpleEventMetrics {
+    private final StripedCounter triggeredEvents = new StripedCounter();
+    private final StripedCounter exceptions = new StripedCounter();
+    private final Histogram syncTime = new Histogram();
+    private final Histogram asyncQueueWait = new Histogram();
+    private final Histogram asyncExecutionTime = new Histogram();
+    private final ConcurrentHashMap<SimpleEventListener, ListenerStats> listenerStats = new ConcurrentHashMap<SimpleEventListener, ListenerStats>();
+    
+    private final Object snapshotLock = new Object();
+    private long lastSnapshotNanos = System.nanoTime();
+    private long lastSnapshotTriggered = 0;
+    
+    void recordTrigger() {
+        triggeredEvents.increment();
+    }
+    
+    void recordException() {
+        exceptions.increment();
+    }
+    
+    void recordSync(SimpleEventListener listener, long nanos) {
+        syncTime.record(nanos);
+        listenerStats(listener).record(nanos);
+    }
+    
+    Histogram asyncExecutionTime() {
+        return asyncExecutionTime;
+    }
+    
+    void recordAsyncQueueWait(long nanos) {
+        asyncQueueWait.record(nanos);
+    }
+    
+    void recordAsync(SimpleEventListener listener, long nanos) {
+        asyncExecutionTime.record(nanos);
+        listenerStats(listener).record(nanos);
+    }
+    
+    private ListenerStats listenerStats(SimpleEventListener listener) {
+        ListenerStats stats = listenerStats.get(listener);
+        if (stats == null) {
+            ListenerStats created = new ListenerStats(listener.getClass().getName());
+            stats = listenerStats.putIfAbsent(listener, created);
+            if (stats == null)
+                stats = created;
+        }
+        return stats;
+    }
+    
+    /**
+     * Forget the statistics of a listener that has been removed from the pipe.
+     */
+    void removeListener(SimpleEventListener listener) {
+        listenerStats.remove(listener);
+    }
+    
+    /**
+     * Returns a snapshot of the metrics. The event rate is calculated since
+     * the previous snapshot, or since the metrics were enabled.
+     * 
+     * @param maxListeners maximum number of slowest listeners to include.
+     * @return metrics snapshot.
+     */
+    public Snapshot snapshot(int maxListeners) {
+        long triggered = triggeredEvents.sum();
+        double eventsPerSecond;
+        synchronized (snapshotLock) {
+            long now = System.nanoTime();
+            long elapsed = now - lastSnapshotNanos;
+            eventsPerSecond = elapsed > 0 ? (triggered - lastSnapshotTriggered) * 1e9 / elapsed : 0;
+            lastSnapshotNanos = now;
+            lastSnapshotTriggered = triggered;
+        }
+        
+        List<ListenerSnapshot> listeners = new ArrayList<ListenerSnapshot>();
+        for (ListenerStats stats : listenerStats.values())
+            listeners.add(stats.snapshot());
+        Collections.sort(listeners, new Comparator<ListenerSnapshot>() {
+            @Override
+            public int compare(ListenerSnapshot a, ListenerSnapshot b) {
+                return Double.compare(b.getMeanNanos(), a.getMeanNanos());
+            }
+        });
+        if (listeners.size() > maxListeners)
+            listeners = new ArrayList<ListenerSnapshot>(listeners.subList(0, maxListeners));
+        
+        return new Snapshot(triggered, eventsPerSecond, exceptions.sum(), syncTime.snapshot(), 
+                asyncQueueWait.snapshot(), asyncExecutionTime.snapshot(), listeners);
+    }
+    
+    /**
+     * Counter striped over several cache lines, indexed by thread.
+     */
+    static final class StripedCounter {
+        private static final int PADDING = 16; // longs per stripe, two cache lines
+        private final int mask;
+        private final AtomicLongArray cells;
+
+        StripedCounter() {
+            int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+            mask = stripes - 1;
+            cells = new AtomicLongArray(stripes * PADDING);
+        }
+        
+        void increment() {
+            int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B9L >>> 16) & mask;
+            cells.getAndIncrement(stripe * PADDING);
+        }
+        
+        void add(long delta) {
+            int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B9L >>> 16) & mask;
+            cells.getAndAdd(stripe * PADDING, delta);
+        }
+        
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i <= mask; i++)
+                sum += cells.get(i * PADDING);
+            return sum;
+        }
+    }
+    
+    /**
+     * Log-linear histogram of non-negative values. Each power of two is split
+     * into eight buckets.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            counts.getAndIncrement(bucket(value));
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+                // retry
+            }
+        }
+        
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+            return (exponent + 1) * SUB_BUCKETS + subBucket;
+        }
+        
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS - 1;
+            long subBucket = (bucket % SUB_BUCKETS) | SUB_BUCKETS;
+            return ((subBucket + 1) << exponent) - 1;
+        }
+        
+        HistogramSnapshot snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            long maxValue = max.get();
+            return new HistogramSnapshot(count, count > 0 ? sum.get() / (double) count : 0,
+                    percentile(snapshot, count, 0.50, maxValue),
+                    percentile(snapshot, count, 0.99, maxValue),
+                    percentile(snapshot, count, 0.999, maxValue),
+                    maxValue);
+        }
+        
+        /**
+         * Returns a percentile of the values recorded since the previous 
+         * call, and stores the current counts in previous. Returns -1 if no
+         * values were recorded in between.
+         */
+        long percentileSince(long[] previous, double percentile) {
+            long[] delta = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long current = counts.get(i);
+                delta[i] = current - previous[i];
+                previous[i] = current;
+                count += delta[i];
+            }
+            if (count == 0)
+                return -1;
+            return percentile(delta, count, percentile, max.get());
+        }
+        
+        static long[] newCounts() {
+            return new long[BUCKETS];
+        }
+        
+        private static long percentile(long[] snapshot, long count, double percentile, long maxValue) {
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank)
+                    return Math.min(upperBound(i), maxValue);
+            }
+            return maxValue;
+        }
+    }
+    
+    /**
+     * Time spent in one listener.
+     */
+    static final class ListenerStats {
+        private final String name;
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        ListenerStats(String name) {
+            this.name = name;
+        }
+        
+        void record(long nanos) {
+            invocations.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long currentMax;
+            while (nanos > (currentMax = maxNanos.get()) && !maxNanos.compareAndSet(currentMax, nanos)) {
+                // retry
+            }
+        }
+        
+        ListenerSnapshot snapshot() {
+            long count = invocations.get();
+            return new ListenerSnapshot(name, count, count > 0 ? totalNanos.get() / (double) count : 0, maxNanos.get());
+        }
+    }
+    
+    /**
+     * Snapshot of the metrics of a pipe.
+     */
+    public static final class Snapshot {
+        private final long triggeredEvents;
+        private final double eventsPerSecond;
+        private final long exceptions;
+        private final HistogramSnapshot syncTime;
+        private final HistogramSnapshot asyncQueueWait;
+        private final HistogramSnapshot asyncExecutionTime;
+        private final List<ListenerSnapshot> slowestListeners;
+
+        Snapshot(long triggeredEvents, double eventsPerSecond, long exceptions, HistogramSnapshot syncTime, 
+                HistogramSnapshot asyncQueueWait, HistogramSnapshot asyncExecutionTime, List<ListenerSnapshot> slowestListeners) {
+            this.triggeredEvents = triggeredEvents;
+            this.eventsPerSecond = eventsPerSecond;
+            this.exceptions = exceptions;
+            this.syncTime = syncTime;
+            this.asyncQueueWait = asyncQueueWait;
+            this.asyncExecutionTime = asyncExecutionTime;
+            this.slowestListeners = Collections.unmodifiableList(slowestListeners);
+        }
+
+        /** @return total number of events triggered. */
+        public long getTriggeredEvents() {
+            return triggeredEvents;
+        }
+
+        /** @return events triggered per second since the previous snapshot. */
+        public double getEventsPerSecond() {
+            return eventsPerSecond;
+        }
+
+        /** @return number of exceptions thrown by listeners. */
+        public long getExceptions() {
+            return exceptions;
+        }
+
+        /** @return time spent in each synchronous listener invocation. */
+        public HistogramSnapshot getSyncTime() {
+            return syncTime;
+        }
+
+        /** @return time from trigger until an asynchronous delivery started. */
+        public HistogramSnapshot getAsyncQueueWait() {
+            return asyncQueueWait;
+        }
+
+        /** @return time spent in each asynchronous listener invocation. */
+        public HistogramSnapshot getAsyncExecutionTime() {
+            return asyncExecutionTime;
+        }
+
+        /** @return listeners with the highest mean time per event, slowest first. */
+        public List<ListenerSnapshot> getSlowestListeners() {
+            return slowestListeners;
+        }
+    }
+    
+    /**
+     * Snapshot of a histogram. All values are in nanoseconds.
+     */
+    public static final class HistogramSnapshot {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        HistogramSnapshot(long count, double mean, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        /** @return number of recorded values. */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return mean value. */
+        public double getMean() {
+            return mean;
+        }
+
+        /** @return median value. */
+        public long getP50() {
+            return p50;
+        }
+
+        /** @return 99th percentile. */
+        public long getP99() {
+            return p99;
+        }
+
+        /** @return 99.9th percentile. */
+        public long getP999() {
+            return p999;
+        }
+
+        /** @return maximum value. */
+        public long getMax() {
+            return max;
+        }
+    }
+    
+    /**
+     * Snapshot of the time spent in one listener.
+     */
+    public static final class ListenerSnapshot {
+        private final String listener;
+        private final long invocations;
+        private final double meanNanos;
+        private final long maxNanos;
+
+        ListenerSnapshot(String listener, long invocations, double meanNanos, long maxNanos) {
+            this.listener = listener;
+            this.invocations = invocations;
+            this.meanNanos = meanNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /** @return class name of the listener. */
+        public String getListener() {
+            return listener;
+        }
+
+        /** @return number of events delivered to the listener. */
+        public long getInvocations() {
+            return invocations;
+        }
+
+        /** @return mean time per event in nanoseconds. */
+        public double getMeanNanos() {
+            return meanNanos;
+        }
+
+        /** @return longest time for one event in nanoseconds. */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+}
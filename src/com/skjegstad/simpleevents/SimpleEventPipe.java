@@ -21,24 +21,104 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package com.skjegstad.simpleevents;
 
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncBatchEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventFactory;
 import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimplePrioritized;
+import com.skjegstad.simpleevents.interfaces.SimpleReplyEvent;
 import com.skjegstad.simpleevents.interfaces.SimpleEvent;
-import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 /**
  *
  * The simple event pipe. 
+ * <p>
+ * Listeners are kept in an immutable registry. Adding or removing a listener
+ * publishes a new registry, while trigger only reads the current snapshot.
+ * Triggering an event therefore never blocks on listener registration or on
+ * other producers.
+ * </p>
+ * <p>
+ * By default every asynchronous delivery is a separate task on the
+ * ExecutorService, so an asynchronous listener may receive events out of
+ * order and concurrently. With ordered delivery, batching or a mailbox
+ * capacity enabled, events for each asynchronous listener are queued in a
+ * mailbox and drained by one task at a time on the shared ExecutorService.
+ * The listener then receives events one at a time, in the order they were
+ * triggered. A bounded mailbox applies its overflow policy when a slow
+ * listener falls behind. With conflation enabled, a keyed event replaces the
+ * pending event with the same key, so a slow listener only sees the latest
+ * value for each key.
+ * </p>
+ * <p>
+ * An exception thrown by an asynchronous listener never affects other
+ * listeners or events. The delivery may be retried with exponential backoff,
+ * and is then passed to the dead-letter pipe. With listener isolation
+ * enabled, exceptions from synchronous listeners are handled the same way
+ * instead of being thrown to the caller of trigger.
+ * </p>
  * 
  * @author Magnus Skjegstad
  */
 public class SimpleEventPipe {
-    private final List<SimpleEventListener> asyncEventListeners = Collections.synchronizedList(new ArrayList());
-    private final List<SimpleEventListener> syncEventListeners = Collections.synchronizedList(new ArrayList());
+    private final AtomicReference<SimpleEventRegistry> registry = new AtomicReference<SimpleEventRegistry>(SimpleEventRegistry.EMPTY);
     private ExecutorService executorService;
+    private volatile int asyncBatchSize = 0;
+    private volatile long asyncBatchLinger = 0;
+    private volatile int asyncMailboxCapacity = 0;
+    private volatile SimpleOverflowPolicy asyncOverflowPolicy = SimpleOverflowPolicy.BLOCK;
+    private volatile boolean asyncOrdered = false;
+    private volatile boolean asyncConflation = false;
+    private volatile SimpleEventPriority priority = SimpleEventPriority.NORMAL;
+    private volatile boolean mailboxDelivery = false;
+    private volatile SimpleEventMetrics metrics = null;
+    private volatile boolean listenerIsolation = false;
+    private volatile ForkJoinPool parallelSyncPool = null;
+    private volatile int asyncRetries = 0;
+    private volatile long asyncRetryBackoff = 0;
+    private volatile SimpleEventPipe deadLetterPipe = null;
+    private volatile SimpleEventJournal journal = null;
+    private final AtomicLong failedDeliveries = new AtomicLong(0);
+    private final ConcurrentHashMap<SimpleEventCompletion.Key, SimpleEventCompletion> completions = new ConcurrentHashMap<SimpleEventCompletion.Key, SimpleEventCompletion>();
+    private final ConcurrentHashMap<Long, CompletableFuture<Object>> pendingRequests = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+    
+    // Unique within the process, so replies can not be matched to the wrong pipe
+    private static final AtomicLong nextCorrelationId = new AtomicLong(0);
+    
+    // Lifecycle state used by SimpleEventManager. The touched flag is set on
+    // use and cleared by the idle pipe sweeper; the rest is guarded by the manager.
+    volatile boolean touched = true;
+    long idleSince = 0;
+    int handles = 0;
+    
+    private final SimpleEventMetrics.StripedCounter pendingDeliveries = new SimpleEventMetrics.StripedCounter();
+    private volatile boolean shutdown = false;
+    
+    final AtomicLong droppedEvents = new AtomicLong(0);
+    final AtomicLong coalescedEvents = new AtomicLong(0);
+    final AtomicLong rejectedEvents = new AtomicLong(0);
+    final AtomicLong blockedNanos = new AtomicLong(0);
+    final AtomicLong throttledEvents = new AtomicLong(0);
+    
+    private volatile SimpleRateLimiter rateLimiter = null;
+    private volatile ProducerLimit producerLimit = null;
+    private volatile SimpleOverflowPolicy rateLimitPolicy = SimpleOverflowPolicy.BLOCK;
+    private volatile boolean rateLimited = false;
 
     /**
      * Create new SimpleEventPipe using the given ExecutorService. 
@@ -51,7 +131,8 @@ public class SimpleEventPipe {
    
                 
     /**
-     * Add a listener to this event pipe. 
+     * Add a listener to this event pipe. The listener receives all events
+     * triggered on the pipe.
      * <p>
      * If the listener extends
      * @link SimpleEventListener it is executed synchronously when an
@@ -62,10 +143,158 @@ public class SimpleEventPipe {
      * @param listener event pipe listener 
      */
     public void listen(SimpleEventListener listener) {                                
+        listen(SimpleEvent.class, listener);
+    }
+    
+    /**
+     * Add a listener that only receives events of the given type, including
+     * subclasses and implementations of the type. 
+     * 
+     * @param type event type the listener is interested in.
+     * @param listener event pipe listener 
+     */
+    public <E extends SimpleEvent> void listen(Class<E> type, SimpleEventListener listener) {
+        listen(type, null, listener);
+    }
+    
+    /**
+     * Add a listener that only receives events of the given type that match
+     * the filter. Events that do not match are discarded before any task is
+     * created for them, and listeners with equality filters on the same
+     * attribute are found through a hash index, so many listeners filtering
+     * on e.g. an entity id cost one lookup per event. See 
+     * @link SimpleEventFilter.
+     * <p>
+     * Filters are tested on the triggering thread. Synchronous listeners 
+     * with filters are run after the listeners without filters.
+     * </p>
+     * 
+     * @param type event type the listener is interested in.
+     * @param filter condition on the events, or null to receive all events of the type.
+     * @param listener event pipe listener 
+     */
+    public <E extends SimpleEvent> void listen(Class<E> type, SimpleEventFilter<? super E> filter, SimpleEventListener listener) {
+        register(type, filter, listener);
+    }
+    
+    /**
+     * Register a listener and return the registration, which can later be 
+     * removed with @link #deregister. Pipes with their own async delivery
+     * mechanism override this method.
+     * 
+     * @param type event type the listener is interested in.
+     * @param filter condition on the events, or null to receive all events of the type.
+     * @param listener event pipe listener 
+     * @return the new registration.
+     */
+    SimpleEventRegistry.Entry register(Class<? extends SimpleEvent> type, SimpleEventFilter<?> filter, SimpleEventListener listener) {
+        SimpleEventMailbox mailbox = null;
         if (listener instanceof SimpleAsyncEventListener)
-            asyncEventListeners.add(listener);
-        else
-            syncEventListeners.add(listener);
+            mailbox = new SimpleEventMailbox(listener, this);
+        return add(new SimpleEventRegistry.Entry(type, filter, listener, mailbox));
+    }
+    
+    /**
+     * Add a registration to the registry. Events triggered after this 
+     * method returns are dispatched to it.
+     * 
+     * @param entry registration to add.
+     * @return the added registration.
+     */
+    final SimpleEventRegistry.Entry add(SimpleEventRegistry.Entry entry) {
+        touch();
+        while (true) {
+            SimpleEventRegistry current = registry.get();
+            if (registry.compareAndSet(current, current.add(entry)))
+                return entry;
+        }
+    }
+    
+    /**
+     * Add a listener that first receives the journaled events from the given
+     * offset and then continues with new events, without gaps or duplicates.
+     * The journaled events are passed to the listener on the calling thread
+     * before this method returns, also for asynchronous listeners.
+     * 
+     * @param type event type the listener is interested in.
+     * @param listener event pipe listener 
+     * @param fromOffset journal offset of the first event to replay.
+     * @throws IllegalStateException if the pipe has no journal.
+     */
+    public <E extends SimpleEvent> void listen(final Class<E> type, final SimpleEventListener listener, long fromOffset) {
+        SimpleEventJournal j = journal;
+        if (j == null)
+            throw new IllegalStateException("Event pipe has no journal");
+        
+        SimpleEventListener replayListener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                if (type.isInstance(event))
+                    listener.receiveEvent(event);
+            }
+        };
+        
+        // Catch up without blocking producers, then replay the last few 
+        // events and register while holding the journal lock
+        long offset = j.replay(fromOffset, Long.MAX_VALUE, replayListener);
+        synchronized (j) {
+            j.replay(offset, Long.MAX_VALUE, replayListener);
+            listen(type, listener);
+        }
+    }
+    
+    /**
+     * Returns the number of registered listeners. A listener registered 
+     * more than once is counted once for each registration.
+     * 
+     * @return number of listeners.
+     */
+    public int getListenerCount() {
+        return registry.get().size();
+    }
+    
+    /**
+     * Returns the number of asynchronous deliveries that have been handed 
+     * over but are not yet done, including events waiting in mailboxes.
+     * 
+     * @return pending asynchronous deliveries.
+     */
+    public long getPendingDeliveries() {
+        return pendingDeliveries.sum();
+    }
+    
+    /**
+     * Returns true if the pipe has been shut down by its event manager and 
+     * rejects new events.
+     * 
+     * @return true if the pipe is shut down.
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+    
+    /**
+     * Stop accepting new events. Pending asynchronous deliveries continue.
+     */
+    void stopTriggers() {
+        shutdown = true;
+    }
+    
+    /**
+     * Mark the pipe as used. Only writes the flag if it is not already set, 
+     * so triggers do not contend on it.
+     */
+    final void touch() {
+        if (!touched)
+            touched = true;
+    }
+    
+    /**
+     * Remove all listeners, e.g. when the pipe is closed by its manager.
+     */
+    void removeAllListeners() {
+        for (SimpleEventListener listener : registry.get().listeners())
+            unlisten(listener);
     }
     
     /**
@@ -76,44 +305,1184 @@ public class SimpleEventPipe {
      * @return  true if the listener was succesfuly removed, otherwise false
      */
     public boolean unlisten(SimpleEventListener listener) {        
-        if (listener instanceof SimpleAsyncEventListener)
-            return asyncEventListeners.remove(listener);
-        else
-            return syncEventListeners.remove(listener);        
+        while (true) {
+            SimpleEventRegistry.Entry entry = registry.get().entry(listener);
+            if (entry == null)
+                return false;
+            if (deregister(entry))
+                return true;
+            // removed concurrently, try the next registration
+        }
     }
     
     /**
-     * Trigger a new event and run all registered event listeners. The event
-     * must extend @link SimpleEvent.
+     * Remove a registration returned by @link #register. Triggers that 
+     * looked up their listeners before this method returned may still
+     * dispatch to the removed registration. Pipes with their own async 
+     * delivery mechanism override this method.
+     * 
+     * @param entry registration to remove.
+     * @return true if the registration was removed, false if it was not registered.
+     */
+    boolean deregister(SimpleEventRegistry.Entry entry) {
+        while (true) {
+            SimpleEventRegistry current = registry.get();
+            SimpleEventRegistry updated = current.remove(entry);
+            if (updated == current)
+                return false;
+            if (registry.compareAndSet(current, updated)) {
+                SimpleEventMetrics m = metrics;
+                if (m != null)
+                    m.removeListener(entry.listener);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Trigger a new event and run all registered event listeners that are
+     * interested in the event type. The event must extend @link SimpleEvent.
      * 
      * @param event event to trigger.
      */
     public void trigger(final SimpleEvent event) {
+        touch();
+        if (shutdown) {
+            rejectedEvents.incrementAndGet();
+            throw new RejectedExecutionException("Event pipe is shut down, rejected event " + event);
+        }
+        if (rateLimited && !admit(event))
+            return;
+        accepted(event);
+        if (event instanceof SimpleReplyEvent)
+            completeRequest((SimpleReplyEvent) event);
+        SimpleEventMetrics m = metrics;
+        if (m != null) {
+            triggerWithMetrics(event, m);
+            return;
+        }
+        
+        SimpleEventRegistry.Dispatch dispatch = dispatch(event);
+        
         // Check async first;
-        if (asyncEventListeners != null) {
-            synchronized(asyncEventListeners) { // as the listeners are spawned in new threads, we can lock here without risking deadlocks
-                for (final SimpleEventListener listener : asyncEventListeners) {
-                    executorService.submit(new Runnable() {
+        if (dispatch.async.length > 0)
+            handOffAsync(dispatch.async, event);
+        
+        // Then run synchronous. Listeners removed while we are in the loop
+        // will still receive this event, as we iterate over a snapshot.
+        ForkJoinPool pool = parallelSyncPool;
+        if (pool != null && dispatch.sync.length > 1) {
+            SimpleParallelDispatch.dispatch(this, pool, dispatch.sync, event, null);
+            return;
+        }
+        for (SimpleEventRegistry.Entry entry : dispatch.sync) {
+            try {
+                entry.listener.receiveEvent(event);
+            } catch (RuntimeException ex) {
+                if (!listenerIsolation)
+                    throw ex;
+                deadLetter(entry.listener, event, ex, 1);
+            }
+        }
+    }
+    
+    /**
+     * Called by trigger once the event has passed the shutdown check and the
+     * rate limits, before it is delivered to the listeners. Pipes that also
+     * forward events elsewhere override this method, so rejected and shed 
+     * events are not forwarded.
+     * 
+     * @param event accepted event.
+     */
+    void accepted(SimpleEvent event) {
+    }
+    
+    /**
+     * Trigger a new event and return a future that completes when all 
+     * listeners are done with it. Synchronous listeners are run before this
+     * method returns, as with trigger, but their exceptions complete the 
+     * future instead of being thrown.
+     * <p>
+     * The future completes when every asynchronous listener has received 
+     * the event, after retries. If any listener failed, or the event was 
+     * dropped by a full mailbox, the future completes with a 
+     * @link SimpleEventDeliveryException holding all failures. Triggering 
+     * the same event instance again before its future completes returns 
+     * the same future, which then waits for both triggers. Deliveries 
+     * through a @link SimpleEventBridge complete when the event is handed
+     * to the bridge, not when remote listeners are done.
+     * </p>
+     * 
+     * @param event event to trigger.
+     * @return future completing when all listeners are done.
+     */
+    public CompletableFuture<Void> triggerAsync(SimpleEvent event) {
+        SimpleEventCompletion completion = track(event);
+        try {
+            trigger(event);
+        } catch (RuntimeException ex) {
+            completion.fail(ex);
+        } catch (Error err) {
+            completion.fail(err);
+            completed(completion, 1);
+            throw err;
+        }
+        completed(completion, 1);
+        return completion.future;
+    }
+    
+    /**
+     * Send a request and return a future for the first reply. The request 
+     * is triggered as a normal event, and is answered with 
+     * @link SimpleRequestEvent#reply, with @link #reply or by triggering a
+     * @link SimpleReplyEvent on this pipe. No thread waits for the reply, so
+     * any number of requests can be in flight.
+     * <p>
+     * The future fails with a TimeoutException if no reply arrives within
+     * the timeout, and with the listener exception if the request could 
+     * not be delivered. Listeners finishing without a reply do not complete
+     * the future, as the reply may be sent later.
+     * </p>
+     * 
+     * @param request request to send.
+     * @param timeout time to wait for a reply, or 0 to wait forever.
+     * @param unit unit of the timeout.
+     * @return future completing with the reply.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> request(SimpleRequestEvent<R> request, long timeout, TimeUnit unit) {
+        final long correlationId = nextCorrelationId.incrementAndGet();
+        final CompletableFuture<R> reply = new CompletableFuture<R>();
+        request.bind(correlationId, reply);
+        pendingRequests.put(correlationId, (CompletableFuture<Object>) reply);
+        
+        final ScheduledFuture<?> timer;
+        if (timeout > 0) {
+            timer = RequestTimer.TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reply.completeExceptionally(new TimeoutException("No reply to request " + correlationId));
+                }
+            }, timeout, unit);
+        } else {
+            timer = null;
+        }
+        reply.whenComplete(new BiConsumer<R, Throwable>() {
+            @Override
+            public void accept(R value, Throwable failure) {
+                pendingRequests.remove(correlationId);
+                if (timer != null)
+                    timer.cancel(false);
+            }
+        });
+        
+        triggerAsync(request).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable failure) {
+                if (failure != null)
+                    reply.completeExceptionally(failure);
+            }
+        });
+        return reply;
+    }
+    
+    /**
+     * Complete a pending request with a reply, e.g. when the reply arrives
+     * from another process. The first reply wins.
+     * 
+     * @param correlationId correlation id of the request.
+     * @param value reply. Must be of the reply type of the request.
+     * @return true if a pending request was completed.
+     */
+    public boolean reply(long correlationId, Object value) {
+        CompletableFuture<Object> reply = pendingRequests.get(correlationId);
+        return reply != null && reply.complete(value);
+    }
+    
+    /**
+     * Returns the number of requests waiting for a reply.
+     * 
+     * @return pending requests.
+     */
+    public int getPendingRequests() {
+        return pendingRequests.size();
+    }
+    
+    private void completeRequest(SimpleReplyEvent event) {
+        if (!pendingRequests.isEmpty())
+            reply(event.getCorrelationId(), event.getReply());
+    }
+    
+    /**
+     * Start tracking the deliveries of an event, or join the tracking of a 
+     * trigger of the same event that is still running.
+     */
+    private SimpleEventCompletion track(SimpleEvent event) {
+        SimpleEventCompletion completion = new SimpleEventCompletion(event);
+        while (true) {
+            SimpleEventCompletion current = completions.putIfAbsent(completion.key, completion);
+            if (current == null)
+                return completion;
+            if (current.add(1))
+                return current;
+            completions.remove(current.key, current); // completing, replace it
+        }
+    }
+    
+    /**
+     * Returns the completion tracking the event, or null if the event was 
+     * not triggered with triggerAsync.
+     */
+    private SimpleEventCompletion completionOf(SimpleEvent event) {
+        if (completions.isEmpty())
+            return null;
+        return completions.get(new SimpleEventCompletion.Key(event));
+    }
+    
+    private void completed(SimpleEventCompletion completion, int count) {
+        if (completion.done(count)) {
+            completions.remove(completion.key, completion);
+            completion.complete();
+        }
+    }
+    
+    /**
+     * Journal the event, if the pipe has a journal, and look up the 
+     * listeners interested in it.
+     */
+    private SimpleEventRegistry.Dispatch dispatch(SimpleEvent event) {
+        SimpleEventJournal j = journal;
+        if (j == null)
+            return registry.get().dispatch(event);
+        
+        synchronized (j) {
+            j.append(event);
+            return registry.get().dispatch(event);
+        }
+    }
+    
+    /**
+     * Same as trigger, but records the event and the time spent in each
+     * synchronous listener.
+     */
+    private void triggerWithMetrics(SimpleEvent event, SimpleEventMetrics m) {
+        m.recordTrigger();
+        SimpleEventRegistry.Dispatch dispatch = dispatch(event);
+        
+        if (dispatch.async.length > 0)
+            handOffAsync(dispatch.async, event);
+        
+        ForkJoinPool pool = parallelSyncPool;
+        if (pool != null && dispatch.sync.length > 1) {
+            SimpleParallelDispatch.dispatch(this, pool, dispatch.sync, event, m);
+            return;
+        }
+        for (SimpleEventRegistry.Entry entry : dispatch.sync)
+            receiveSync(entry, event, m);
+    }
+    
+    /**
+     * Run a synchronous listener, recording the time spent in it if metrics
+     * are given. Exceptions are thrown unless listeners are isolated.
+     * 
+     * @param entry synchronous listener.
+     * @param event event to deliver.
+     * @param m pipe metrics, or null.
+     */
+    final void receiveSync(SimpleEventRegistry.Entry entry, SimpleEvent event, SimpleEventMetrics m) {
+        long startTs = m != null ? System.nanoTime() : 0;
+        try {
+            entry.listener.receiveEvent(event);
+        } catch (RuntimeException ex) {
+            if (m != null)
+                m.recordException();
+            if (!listenerIsolation)
+                throw ex;
+            deadLetter(entry.listener, event, ex, 1);
+        } finally {
+            if (m != null)
+                m.recordSync(entry.listener, System.nanoTime() - startTs);
+        }
+    }
+    
+    /**
+     * Count the pending deliveries and take a reference to a pooled event, 
+     * also when wrapped in a dead letter, for each asynchronous listener, 
+     * until the listener is done with it, and hand the event over.
+     */
+    private void handOffAsync(SimpleEventRegistry.Entry[] entries, SimpleEvent event) {
+        pendingDeliveries.add(entries.length);
+        SimpleEventCompletion completion = completionOf(event);
+        if (completion != null)
+            completion.add(entries.length);
+        SimplePooledEvent pooled = pooledEvent(event);
+        if (pooled != null)
+            pooled.retain(entries.length);
+        deliverAsync(entries, event);
+    }
+    
+    /**
+     * Mark asynchronous deliveries of the event as done, either delivered
+     * or dropped, and release the references to a pooled event.
+     * 
+     * @param event event that will not be delivered or is done.
+     * @param count number of deliveries.
+     */
+    final void asyncDone(SimpleEvent event, int count) {
+        pendingDeliveries.add(-count);
+        SimpleEventCompletion completion = completionOf(event);
+        if (completion != null)
+            completed(completion, count);
+        SimplePooledEvent pooled = pooledEvent(event);
+        if (count > 0 && pooled != null)
+            pooled.release(count);
+    }
+    
+    /**
+     * Returns the pooled event referenced by an event, i.e. the event itself
+     * or the failed event of a @link SimpleDeadLetterEvent. The failing 
+     * delivery still holds its reference while the dead letter is handed 
+     * off, so asynchronous dead-letter listeners get their own references.
+     * 
+     * @param event event to check.
+     * @return pooled event, or null if the event does not reference one.
+     */
+    private static SimplePooledEvent pooledEvent(SimpleEvent event) {
+        if (event instanceof SimpleDeadLetterEvent)
+            event = ((SimpleDeadLetterEvent) event).getEvent();
+        return event instanceof SimplePooledEvent ? (SimplePooledEvent) event : null;
+    }
+    
+    /**
+     * Mark an asynchronous delivery as dropped by the overflow policy.
+     * 
+     * @param event event that will not be delivered.
+     */
+    final void asyncDropped(SimpleEvent event) {
+        droppedEvents.incrementAndGet();
+        SimpleEventCompletion completion = completionOf(event);
+        if (completion != null)
+            completion.fail(new RejectedExecutionException("Mailbox full, dropped event " + event));
+        asyncDone(event, 1);
+    }
+    
+    /**
+     * Hand the event over to the asynchronous listeners interested in it.
+     * Each delivery must be passed to asyncDone once the listener is done or
+     * the event is dropped.
+     * Pipes with a different async delivery mechanism override this method.
+     * 
+     * @param entries asynchronous listeners interested in the event.
+     * @param event event to deliver.
+     */
+    void deliverAsync(SimpleEventRegistry.Entry[] entries, final SimpleEvent event) {
+        if (mailboxDelivery) {
+            for (int i = 0; i < entries.length; i++) {
+                try {
+                    entries[i].mailbox.offer(event);
+                } catch (RuntimeException ex) {
+                    asyncDone(event, entries.length - i);
+                    throw ex;
+                }
+            }
+        } else {
+            final long enqueuedTs = metrics != null ? System.nanoTime() : 0;
+            for (int i = 0; i < entries.length; i++) {
+                final SimpleEventListener listener = entries[i].listener;
+                try {
+                    execute(new Runnable() {
                         @Override
                         public void run() {
-                            listener.receiveEvent(event);
+                            SimpleEventMetrics m = metrics;
+                            if (m != null && enqueuedTs != 0)
+                                m.recordAsyncQueueWait(System.nanoTime() - enqueuedTs);
+                            deliverAsyncEvent(listener, event);
                         }
-                    });
-                }                    
+                    }, priorityOf(listener, event));
+                } catch (RuntimeException ex) {
+                    asyncDone(event, entries.length - i);
+                    throw ex;
+                }
             }
         }
-        
-        // Then run synchronous
-        if (syncEventListeners != null) {
-            for (int i = 0; i < syncEventListeners.size(); i++) {
+    }
+    
+    /**
+     * Run an asynchronous task in the lane of the given priority if the pipe
+     * runs on a @link SimplePriorityExecutor.
+     * 
+     * @param task task to run.
+     * @param priority priority of the task.
+     */
+    void execute(Runnable task, SimpleEventPriority priority) {
+        ExecutorService executor = executorService;
+        if (executor instanceof SimplePriorityExecutor)
+            ((SimplePriorityExecutor) executor).execute(task, priority);
+        else
+            executor.submit(task);
+    }
+    
+    /**
+     * Returns the priority of delivering the event to the listener. The
+     * priority of the event takes precedence over the priority of the 
+     * listener, which takes precedence over the priority of the pipe.
+     * 
+     * @param listener listener receiving the event, or null.
+     * @param event event to deliver, or null.
+     * @return delivery priority.
+     */
+    SimpleEventPriority priorityOf(SimpleEventListener listener, SimpleEvent event) {
+        SimpleEventPriority p = null;
+        if (event instanceof SimplePrioritized)
+            p = ((SimplePrioritized) event).getPriority();
+        if (p == null && listener instanceof SimplePrioritized)
+            p = ((SimplePrioritized) listener).getPriority();
+        return p != null ? p : priority;
+    }
+    
+    /**
+     * Set the priority of asynchronous deliveries from this pipe. The 
+     * priority only has an effect when the pipe runs on a 
+     * @link SimplePriorityExecutor, where each priority has its own lane.
+     * Listeners and events implementing @link SimplePrioritized override
+     * the pipe priority. Events delivered through a mailbox (ordered, 
+     * batched, bounded or conflated delivery) are drained in the lane of 
+     * the listener, as reordering them by event priority would break the
+     * mailbox order.
+     * 
+     * @param priority priority of asynchronous deliveries. Default is NORMAL.
+     */
+    public void setPriority(SimpleEventPriority priority) {
+        if (priority == null)
+            throw new IllegalArgumentException("Priority can not be null");
+        this.priority = priority;
+    }
+    
+    /**
+     * Returns the priority of asynchronous deliveries from this pipe.
+     * 
+     * @return pipe priority.
+     */
+    public SimpleEventPriority getPriority() {
+        return priority;
+    }
+    
+    /**
+     * Run an asynchronous listener. A failed delivery is retried according 
+     * to the retry settings and then passed to the dead-letter pipe, so this
+     * method does not throw listener exceptions. Releases the reference to
+     * a pooled event when done.
+     * 
+     * @param listener asynchronous listener.
+     * @param event event to deliver.
+     */
+    final void deliverAsyncEvent(SimpleEventListener listener, SimpleEvent event) {
+        try {
+            int attempts = 0;
+            while (true) {
+                attempts++;
                 try {
-                    SimpleEventListener listener = syncEventListeners.get(i);
-                    listener.receiveEvent(event);
-                } catch (IndexOutOfBoundsException ex ) { // this could happen if an event is deleted while we are in the loop.
-                    continue;
+                    receiveAsync(listener, event);
+                    return;
+                } catch (RuntimeException ex) {
+                    if (!retryBackoff(attempts)) {
+                        deadLetter(listener, event, ex, attempts);
+                        return;
+                    }
                 }
             }
+        } finally {
+            asyncDone(event, 1);
+        }
+    }
+    
+    /**
+     * Run an asynchronous batch listener. A failed batch is retried as a 
+     * whole, and each of its events is then passed to the dead-letter pipe.
+     * 
+     * @param listener asynchronous batch listener.
+     * @param events events to deliver.
+     */
+    final void deliverAsyncEvents(SimpleAsyncBatchEventListener listener, List<SimpleEvent> events) {
+        try {
+            int attempts = 0;
+            while (true) {
+                attempts++;
+                try {
+                    receiveAsync(listener, events);
+                    return;
+                } catch (RuntimeException ex) {
+                    if (!retryBackoff(attempts)) {
+                        for (SimpleEvent event : events)
+                            deadLetter(listener, event, ex, attempts);
+                        return;
+                    }
+                }
+            }
+        } finally {
+            for (SimpleEvent event : events)
+                asyncDone(event, 1);
+        }
+    }
+    
+    /**
+     * Run an asynchronous listener once, recording the time spent if metrics
+     * are enabled.
+     */
+    private void receiveAsync(SimpleEventListener listener, SimpleEvent event) {
+        SimpleEventMetrics m = metrics;
+        if (m == null) {
+            listener.receiveEvent(event);
+            return;
+        }
+        
+        long startTs = System.nanoTime();
+        try {
+            listener.receiveEvent(event);
+        } catch (RuntimeException ex) {
+            m.recordException();
+            throw ex;
+        } finally {
+            m.recordAsync(listener, System.nanoTime() - startTs);
         }
     }
+    
+    /**
+     * Run an asynchronous batch listener once, recording the time spent if 
+     * metrics are enabled.
+     */
+    private void receiveAsync(SimpleAsyncBatchEventListener listener, List<SimpleEvent> events) {
+        SimpleEventMetrics m = metrics;
+        if (m == null) {
+            listener.receiveEvents(events);
+            return;
+        }
+        
+        long startTs = System.nanoTime();
+        try {
+            listener.receiveEvents(events);
+        } catch (RuntimeException ex) {
+            m.recordException();
+            throw ex;
+        } finally {
+            m.recordAsync(listener, System.nanoTime() - startTs);
+        }
+    }
+    
+    /**
+     * Wait before the next attempt of a failed asynchronous delivery. The
+     * wait doubles with each attempt. 
+     * 
+     * @param attempts number of attempts so far.
+     * @return false if the delivery should not be retried.
+     */
+    private boolean retryBackoff(int attempts) {
+        if (attempts > asyncRetries)
+            return false;
+        long backoff = asyncRetryBackoff << Math.min(attempts - 1, 20);
+        if (backoff > 0) {
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) { // shutting down, give up
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Pass a failed delivery to the dead-letter pipe, if there is one.
+     * Exceptions from the dead-letter listeners are ignored.
+     * 
+     * @param listener listener that failed, or null if the event failed 
+     *        before it reached a listener.
+     * @param event failed event, or null if it could not be read.
+     * @param ex exception thrown on the last attempt.
+     * @param attempts number of delivery attempts.
+     */
+    final void deadLetter(SimpleEventListener listener, SimpleEvent event, RuntimeException ex, int attempts) {
+        failedDeliveries.incrementAndGet();
+        SimpleEventCompletion completion = completionOf(event);
+        if (completion != null)
+            completion.fail(ex);
+        SimpleEventPipe pipe = deadLetterPipe;
+        if (pipe == null || pipe == this)
+            return;
+        try {
+            pipe.trigger(new SimpleDeadLetterEvent(this, event, listener, ex, attempts));
+        } catch (RuntimeException deadLetterEx) { // nowhere left to report it
+        }
+    }
+    
+    /**
+     * Enable or disable ordered delivery to asynchronous listeners. 
+     * <p>
+     * When enabled, each asynchronous listener gets a mailbox that is
+     * drained by at most one task at a time. Events are delivered one at a 
+     * time and in trigger order, so listeners do not need to synchronize
+     * between deliveries. No thread is dedicated to a listener; idle
+     * listeners only cost an empty mailbox.
+     * </p>
+     * 
+     * @param ordered true to enable ordered delivery.
+     */
+    public void setAsyncOrdered(boolean ordered) {
+        this.asyncOrdered = ordered;
+        updateMailboxDelivery();
+    }
+
+    /**
+     * Returns true if asynchronous listeners receive events in order, one at
+     * a time. This is the case when ordered delivery, batching, conflation or
+     * a mailbox capacity is enabled.
+     * 
+     * @return true if asynchronous delivery is ordered.
+     */
+    public boolean isAsyncOrdered() {
+        return mailboxDelivery;
+    }
+    
+    /**
+     * Enable or disable conflation of keyed events for asynchronous listeners.
+     * <p>
+     * When enabled, each asynchronous listener gets a mailbox, and an event
+     * implementing @link SimpleKeyedEvent replaces the pending event with the
+     * same key in place instead of being queued. The listener receives the
+     * latest event for the key at the position of the first pending one, and
+     * intermediate events are never delivered. The number of pending keyed 
+     * events per listener is then bounded by the number of distinct keys, 
+     * regardless of the event rate. Events without a key are queued as usual.
+     * Replaced events are counted by @link #getCoalescedEvents.
+     * </p>
+     * <p>
+     * Conflation works with any mailbox capacity and overflow policy. The 
+     * COALESCE overflow policy implies conflation.
+     * </p>
+     * 
+     * @param conflation true to enable conflation.
+     */
+    public void setAsyncConflation(boolean conflation) {
+        this.asyncConflation = conflation;
+        updateMailboxDelivery();
+    }
+    
+    /**
+     * Returns true if pending keyed events are replaced by newer events
+     * with the same key.
+     * 
+     * @return true if conflation is enabled, either directly or by the COALESCE policy.
+     */
+    public boolean isAsyncConflation() {
+        return asyncConflation || asyncOverflowPolicy == SimpleOverflowPolicy.COALESCE;
+    }
+    
+    /**
+     * Enable or disable batched delivery to asynchronous listeners. 
+     * <p>
+     * When enabled, each asynchronous listener gets a queue of pending
+     * events. A single task drains the queue and delivers up to 
+     * maxBatchSize events per run, in the order they were triggered. 
+     * Listeners extending @link SimpleAsyncBatchEventListener receive the
+     * whole batch at once. If the batch is not full, the task waits up to
+     * lingerMillis for more events before delivering it.
+     * </p>
+     * 
+     * @param maxBatchSize maximum number of events per delivery, or 0 to disable batching.
+     * @param lingerMillis time to wait for a batch to fill up, or 0 to deliver immediately.
+     */
+    public void setAsyncBatching(int maxBatchSize, long lingerMillis) {
+        if (maxBatchSize < 0 || lingerMillis < 0)
+            throw new IllegalArgumentException("Batch size and linger time must not be negative");
+        this.asyncBatchLinger = lingerMillis;
+        this.asyncBatchSize = maxBatchSize;
+        updateMailboxDelivery();
+    }
+
+    /**
+     * Returns the maximum number of events delivered per batch.
+     * 
+     * @return maximum batch size, or 0 if batching is disabled.
+     */
+    public int getAsyncBatchSize() {
+        return asyncBatchSize;
+    }
+
+    /**
+     * Returns the time a batch may wait for more events before delivery.
+     * 
+     * @return linger time in milliseconds.
+     */
+    public long getAsyncBatchLinger() {
+        return asyncBatchLinger;
+    }
+    
+    /**
+     * Set the capacity of the mailbox of each asynchronous listener and what
+     * happens when an event is triggered while a mailbox is full. 
+     * <p>
+     * A positive capacity enables mailbox delivery, so each asynchronous
+     * listener has at most one task in flight and at most capacity pending
+     * events. Note that with the BLOCK policy, a listener triggering events 
+     * on its own pipe may block itself.
+     * </p>
+     * 
+     * @param capacity maximum pending events per listener, or 0 for unbounded.
+     * @param policy overflow policy.
+     */
+    public void setAsyncMailbox(int capacity, SimpleOverflowPolicy policy) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative");
+        if (policy == null)
+            throw new IllegalArgumentException("Overflow policy must not be null");
+        this.asyncOverflowPolicy = policy;
+        this.asyncMailboxCapacity = capacity;
+        updateMailboxDelivery();
+    }
+
+    /**
+     * Returns the maximum number of pending events per asynchronous listener.
+     * 
+     * @return mailbox capacity, or 0 if unbounded.
+     */
+    public int getAsyncMailboxCapacity() {
+        return asyncMailboxCapacity;
+    }
+
+    /**
+     * Returns the policy applied when a mailbox is full.
+     * 
+     * @return overflow policy.
+     */
+    public SimpleOverflowPolicy getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy;
+    }
+    
+    /**
+     * Returns the number of events discarded because a mailbox was full.
+     * 
+     * @return dropped events.
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Returns the number of pending events replaced by a newer event with 
+     * the same key.
+     * 
+     * @return coalesced events.
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents.get();
+    }
+
+    /**
+     * Returns the number of events rejected with the FAIL policy or because
+     * the pipe is shut down.
+     * 
+     * @return rejected events.
+     */
+    public long getRejectedEvents() {
+        return rejectedEvents.get();
+    }
+
+    /**
+     * Returns the total time producers have been blocked by full mailboxes
+     * or rate limits.
+     * 
+     * @return blocked time in nanoseconds.
+     */
+    public long getBlockedNanos() {
+        return blockedNanos.get();
+    }
+    
+    /**
+     * Limit the rate of events triggered on this pipe, across all 
+     * producers. Use a @link SimpleAdaptiveThrottle to adapt the rate to the
+     * queue depth and listener latency of the pipe. What happens to events
+     * over the limit is set with @link #setRateLimitPolicy.
+     * 
+     * @param limiter rate limiter, or null to remove the limit.
+     */
+    public void setRateLimit(SimpleRateLimiter limiter) {
+        this.rateLimiter = limiter;
+        updateRateLimited();
+    }
+    
+    /**
+     * Returns the rate limiter of this pipe.
+     * 
+     * @return rate limiter, or null if the rate is not limited.
+     */
+    public SimpleRateLimiter getRateLimit() {
+        return rateLimiter;
+    }
+    
+    /**
+     * Limit the rate of events each producer thread can trigger on this 
+     * pipe, so a bursting producer can not use up the limit of the pipe. 
+     * Each thread gets its own token bucket. Changing the limit resets the
+     * buckets.
+     * 
+     * @param permitsPerSecond events per second for each producer, or 0 to 
+     *        remove the limit.
+     * @param burst events each producer may trigger at once after an idle period.
+     */
+    public void setProducerRateLimit(double permitsPerSecond, int burst) {
+        this.producerLimit = permitsPerSecond > 0 ? new ProducerLimit(permitsPerSecond, burst) : null;
+        updateRateLimited();
+    }
+    
+    /**
+     * Returns the rate limit of each producer.
+     * 
+     * @return events per second, or 0 if producers are not limited.
+     */
+    public double getProducerRateLimit() {
+        ProducerLimit limit = producerLimit;
+        return limit != null ? limit.rate : 0;
+    }
+    
+    /**
+     * Set what happens to events over the rate limit. BLOCK makes trigger 
+     * wait until the event is within the limit; if the thread is interrupted
+     * while waiting, the event is rejected as with FAIL and the interrupt 
+     * status is kept. FAIL throws a 
+     * @link SimpleRateLimitException to the caller of trigger. DROP_NEWEST 
+     * sheds the event; trigger returns without delivering it, and the 
+     * future of @link #triggerAsync fails with the SimpleRateLimitException
+     * as the delivery failure. Limited events are counted, see @link #getThrottledEvents.
+     * 
+     * @param policy BLOCK, FAIL or DROP_NEWEST. Default is BLOCK.
+     */
+    public void setRateLimitPolicy(SimpleOverflowPolicy policy) {
+        if (policy != SimpleOverflowPolicy.BLOCK && policy != SimpleOverflowPolicy.FAIL && policy != SimpleOverflowPolicy.DROP_NEWEST)
+            throw new IllegalArgumentException("Rate limit policy must be BLOCK, FAIL or DROP_NEWEST");
+        this.rateLimitPolicy = policy;
+    }
+    
+    /**
+     * Returns what happens to events over the rate limit.
+     * 
+     * @return rate limit policy.
+     */
+    public SimpleOverflowPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+    
+    /**
+     * Returns the number of events that were rejected or shed by a rate
+     * limit. Blocked events are not counted, as they are delivered.
+     * 
+     * @return throttled events.
+     */
+    public long getThrottledEvents() {
+        return throttledEvents.get();
+    }
+    
+    private void updateRateLimited() {
+        rateLimited = rateLimiter != null || producerLimit != null;
+    }
+    
+    /**
+     * Take a permit from the producer and pipe limits, waiting for it with 
+     * the BLOCK policy. Permits are given back if the pipe limit rejects the
+     * event or the wait is interrupted.
+     * 
+     * @return false if the event was shed.
+     * @throws SimpleRateLimitException if the event was rejected, or if the
+     * thread was interrupted while waiting for a permit.
+     */
+    private boolean admit(SimpleEvent event) {
+        SimpleOverflowPolicy policy = rateLimitPolicy;
+        long maxWait = policy == SimpleOverflowPolicy.BLOCK ? Long.MAX_VALUE : 0;
+        long now = System.nanoTime();
+        long wait = 0;
+        
+        SimpleRateLimiter producerLimiter = null;
+        ProducerLimit producer = producerLimit;
+        if (producer != null) {
+            producerLimiter = producer.get();
+            wait = producerLimiter.reserve(producerLimiter.nanoTime(), maxWait);
+            if (wait < 0)
+                return limited(event, policy, -wait, "producer");
+        }
+        SimpleRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            long limiterNow = limiter.nanoTime();
+            limiter.update(this, limiterNow);
+            long limiterWait = limiter.reserve(limiterNow, maxWait);
+            if (limiterWait < 0) {
+                if (producerLimiter != null)
+                    producerLimiter.refund();
+                return limited(event, policy, -limiterWait, "pipe");
+            }
+            wait = Math.max(wait, limiterWait);
+        }
+        
+        if (wait > 0) {
+            long deadline = now + wait;
+            try {
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted()) { // give up on this event, but keep the interrupt
+                        Thread.currentThread().interrupt();
+                        if (producerLimiter != null)
+                            producerLimiter.refund();
+                        if (limiter != null)
+                            limiter.refund();
+                        throttledEvents.incrementAndGet();
+                        rejectedEvents.incrementAndGet();
+                        throw new SimpleRateLimitException("Interrupted while waiting for rate limit, rejected event " + event, 
+                                Math.max(deadline - System.nanoTime(), 0));
+                    }
+                }
+            } finally {
+                blockedNanos.addAndGet(System.nanoTime() - now);
+            }
+        }
+        return true;
+    }
+    
+    private boolean limited(SimpleEvent event, SimpleOverflowPolicy policy, long retryAfterNanos, String limit) {
+        throttledEvents.incrementAndGet();
+        if (policy == SimpleOverflowPolicy.FAIL) {
+            rejectedEvents.incrementAndGet();
+            throw new SimpleRateLimitException("Rate limit of " + limit + " exceeded, rejected event " + event, retryAfterNanos);
+        }
+        SimpleEventCompletion completion = completionOf(event);
+        if (completion != null)
+            completion.fail(new SimpleRateLimitException("Rate limit of " + limit + " exceeded, shed event " + event, retryAfterNanos));
+        return false;
+    }
+    
+    /**
+     * Enable or disable isolation of synchronous listeners. When enabled, an
+     * exception thrown by a synchronous listener is passed to the 
+     * dead-letter pipe and the remaining listeners still receive the event.
+     * When disabled, the exception is thrown to the caller of trigger. 
+     * Asynchronous listeners are always isolated.
+     * 
+     * @param isolation true to isolate synchronous listeners.
+     */
+    public void setListenerIsolation(boolean isolation) {
+        this.listenerIsolation = isolation;
+    }
 
+    /**
+     * Returns true if exceptions from synchronous listeners are isolated.
+     * 
+     * @return true if synchronous listeners are isolated.
+     */
+    public boolean isListenerIsolation() {
+        return listenerIsolation;
+    }
+    
+    /**
+     * Run the synchronous listeners of each trigger in parallel on the given
+     * ForkJoinPool. The triggering thread runs listeners as well and trigger 
+     * still returns only when all synchronous listeners are done, so the 
+     * producer sees the same completion as before, but the trigger takes
+     * about as long as the slowest listener instead of the sum of all.
+     * <p>
+     * Listeners may run concurrently with each other and must not depend
+     * on the order they are called in. If a listener throws and listeners
+     * are not isolated, listeners that have not started are skipped and the
+     * exception is thrown to the caller of trigger once the running 
+     * listeners are done. Triggers with a single synchronous listener run
+     * it directly.
+     * </p>
+     * 
+     * @param pool pool running the listeners, or null to run them one after
+     * another on the triggering thread. Default is null.
+     */
+    public void setParallelSyncPool(ForkJoinPool pool) {
+        this.parallelSyncPool = pool;
+    }
+    
+    /**
+     * Returns the pool running synchronous listeners in parallel.
+     * 
+     * @return pool, or null if synchronous listeners run one after another.
+     */
+    public ForkJoinPool getParallelSyncPool() {
+        return parallelSyncPool;
+    }
+    
+    /**
+     * Retry failed asynchronous deliveries. The first retry waits 
+     * backoffMillis, and the wait doubles for each further retry. The
+     * delivery thread waits between attempts, so ordered listeners keep
+     * their order.
+     * 
+     * @param maxRetries number of retries, or 0 to not retry.
+     * @param backoffMillis wait before the first retry.
+     */
+    public void setAsyncRetry(int maxRetries, long backoffMillis) {
+        if (maxRetries < 0 || backoffMillis < 0)
+            throw new IllegalArgumentException("Retries and backoff must not be negative");
+        this.asyncRetryBackoff = backoffMillis;
+        this.asyncRetries = maxRetries;
+    }
+
+    /**
+     * Returns the number of retries of a failed asynchronous delivery.
+     * 
+     * @return maximum retries.
+     */
+    public int getAsyncRetries() {
+        return asyncRetries;
+    }
+
+    /**
+     * Returns the wait before the first retry of a failed asynchronous 
+     * delivery.
+     * 
+     * @return backoff in milliseconds.
+     */
+    public long getAsyncRetryBackoff() {
+        return asyncRetryBackoff;
+    }
+    
+    /**
+     * Set the pipe receiving a @link SimpleDeadLetterEvent for each failed
+     * delivery. Pipes created by @link SimpleEventManager use the dead-letter
+     * pipe of the manager.
+     * 
+     * @param deadLetterPipe dead-letter pipe, or null to discard failed deliveries.
+     */
+    public void setDeadLetterPipe(SimpleEventPipe deadLetterPipe) {
+        this.deadLetterPipe = deadLetterPipe;
+    }
+
+    /**
+     * Returns the pipe receiving failed deliveries.
+     * 
+     * @return dead-letter pipe, or null.
+     */
+    public SimpleEventPipe getDeadLetterPipe() {
+        return deadLetterPipe;
+    }
+    
+    /**
+     * Returns the number of deliveries that failed after all attempts, 
+     * including failures of isolated synchronous listeners.
+     * 
+     * @return failed deliveries.
+     */
+    public long getFailedDeliveries() {
+        return failedDeliveries.get();
+    }
+    
+    /**
+     * Set the journal that all triggered events are appended to before they
+     * are delivered. Listeners can then replay events from an offset with
+     * @link #listen(Class, SimpleEventListener, long).
+     * 
+     * @param journal event journal, or null to stop journaling.
+     */
+    public void setJournal(SimpleEventJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the journal of this pipe.
+     * 
+     * @return event journal, or null.
+     */
+    public SimpleEventJournal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Create a pool of reusable events published on this pipe. See 
+     * @link SimpleEventPool.
+     * 
+     * @param factory factory creating new events.
+     * @param capacity maximum number of idle events kept in the pool.
+     * @return new event pool.
+     */
+    public <E extends SimplePooledEvent> SimpleEventPool<E> createEventPool(SimpleEventFactory<E> factory, int capacity) {
+        return createEventPool(factory, capacity, false);
+    }
+    
+    /**
+     * Create a pool of reusable events published on this pipe, optionally
+     * tracking events that are never released. See @link SimpleEventPool.
+     * 
+     * @param factory factory creating new events.
+     * @param capacity maximum number of idle events kept in the pool.
+     * @param leakDetection true to enable leak detection.
+     * @return new event pool.
+     */
+    public <E extends SimplePooledEvent> SimpleEventPool<E> createEventPool(SimpleEventFactory<E> factory, int capacity, boolean leakDetection) {
+        return new SimpleEventPool<E>(this, factory, capacity, leakDetection);
+    }
+    
+    /**
+     * Enable or disable metrics for this pipe. When disabled, trigger does 
+     * not record anything. Enabling metrics again starts from zero.
+     * 
+     * @param enabled true to collect metrics.
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled)
+            metrics = null;
+        else if (metrics == null)
+            metrics = new SimpleEventMetrics();
+    }
+    
+    /**
+     * Returns the metrics of this pipe.
+     * 
+     * @return metrics, or null if metrics are disabled.
+     */
+    public SimpleEventMetrics getMetrics() {
+        return metrics;
+    }
+    
+    private void updateMailboxDelivery() {
+        mailboxDelivery = asyncOrdered || asyncBatchSize > 0 || asyncMailboxCapacity > 0 || isAsyncConflation();
+    }
+
+    
+    /**
+     * Timer failing requests without a reply, created on first use.
+     */
+    private static final class RequestTimer {
+        static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SimpleEventPipe request timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        
+        static {
+            TIMER.setRemoveOnCancelPolicy(true);
+        }
+    }
+    
+    /**
+     * Token bucket of each producer thread.
+     */
+    private static final class ProducerLimit extends ThreadLocal<SimpleRateLimiter> {
+        final double rate;
+        final int burst;
+
+        ProducerLimit(double rate, int burst) {
+            if (burst < 1)
+                throw new IllegalArgumentException("Burst must be positive");
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        @Override
+        protected SimpleRateLimiter initialValue() {
+            return new SimpleRateLimiter(rate, burst);
+        }
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ 
+SimpleEventPipeHandle.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * Reference to a named pipe of a @link SimpleEventManager, from 
+ * @link SimpleEventManager#acquirePipe. 
+ * <p>
+ * The pipe is not evicted while a handle is open, and it is closed when the
+ * last handle to it is closed.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventPipeHandle implements Closeable {
+    private final SimpleEventManager manager;
+    private final String name;
+    private final SimpleEventPipe pipe;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    SimpleEventPipeHandle(SimpleEventManager manager, String name, SimpleEventPipe pipe) {
+        this.manager = manager;
+        this.name = name;
+        this.pipe = pipe;
+    }
+    
+    /**
+     * Returns the name of the pipe.
+     * 
+     * @return pipe name.
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the pipe.
+     * 
+     * @return event pipe.
+     */
+    public SimpleEventPipe getPipe() {
+        return pipe;
+    }
+    
+    /**
+     * Release the pipe. The pipe is closed if this was the last open handle
+     * to it. Closing a handle more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true))
+            manager.releasePipe(name, pipe);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ 
+SimpleEventPool.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEventFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Pool of reusable events owned by a pipe. Create pools with 
+ * @link SimpleEventPipe#createEventPool.
+ * <p>
+ * Producers claim an event, fill in its fields and publish it. The event 
+ * returns to the pool once the producer and all listeners, synchronous and
+ * asynchronous, are done with it, so a steady stream of events does not
+ * allocate. If the pool is empty, a new event is created, and events
+ * released while the pool is full are left to the garbage collector.
+ * </p>
+ * <p>
+ * With leak detection enabled, each claimed event is tracked by a weak
+ * reference together with the stack trace of the claim. Events that are 
+ * garbage collected without being released are counted as leaks. This is
+ * meant for debugging, as it allocates on every claim.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventPool<E extends SimplePooledEvent> {
+    private final SimpleEventPipe pipe;
+    private final SimpleEventFactory<E> factory;
+    private final ArrayBlockingQueue<E> free;
+    private final boolean leakDetection;
+    private final ReferenceQueue<SimplePooledEvent> leakQueue = new ReferenceQueue<SimplePooledEvent>();
+    private final Set<LeakTracker> tracked = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+    private final AtomicLong createdEvents = new AtomicLong(0);
+    private final AtomicLong leakedEvents = new AtomicLong(0);
+    private volatile Throwable lastLeak;
+
+    /**
+     * Create a new pool.
+     * 
+     * @param pipe pipe the events are published on.
+     * @param factory factory creating new events.
+     * @param capacity maximum number of idle events kept in the pool.
+     * @param leakDetection true to track claimed events that are never released.
+     */
+    SimpleEventPool(SimpleEventPipe pipe, SimpleEventFactory<E> factory, int capacity, boolean leakDetection) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.pipe = pipe;
+        this.factory = factory;
+        this.free = new ArrayBlockingQueue<E>(capacity);
+        this.leakDetection = leakDetection;
+    }
+    
+    /**
+     * Claim an event from the pool, or create a new one if the pool is empty.
+     * The caller holds one reference to the event.
+     * 
+     * @return event ready to be filled in.
+     */
+    public E claim() {
+        E event = free.poll();
+        if (event == null) {
+            event = factory.newEvent();
+            event.pool = this;
+            createdEvents.incrementAndGet();
+        }
+        event.claimed();
+        if (leakDetection) {
+            pollLeaks();
+            LeakTracker tracker = new LeakTracker(event, leakQueue);
+            tracked.add(tracker);
+            event.leakTracker = tracker;
+        }
+        return event;
+    }
+    
+    /**
+     * Trigger the event on the pipe and release the reference of the caller.
+     * The event must not be used after this method returns.
+     * 
+     * @param event event claimed from this pool.
+     */
+    public void publish(E event) {
+        try {
+            pipe.trigger(event);
+        } finally {
+            event.release();
+        }
+    }
+    
+    /**
+     * Returns the number of idle events in the pool.
+     * 
+     * @return idle events.
+     */
+    public int getAvailable() {
+        return free.size();
+    }
+    
+    /**
+     * Returns the number of events created by the pool.
+     * 
+     * @return created events.
+     */
+    public long getCreatedEvents() {
+        return createdEvents.get();
+    }
+    
+    /**
+     * Returns the number of events that were garbage collected without being
+     * released. Only counted with leak detection enabled, and only after the
+     * garbage collector has found them.
+     * 
+     * @return leaked events.
+     */
+    public long getLeakedEvents() {
+        pollLeaks();
+        return leakedEvents.get();
+    }
+    
+    /**
+     * Returns the stack trace of the claim of the last leaked event.
+     * 
+     * @return claim stack trace, or null if no leaks were found.
+     */
+    public Throwable getLastLeak() {
+        pollLeaks();
+        return lastLeak;
+    }
+    
+    /**
+     * Returns true if leak detection is enabled.
+     * 
+     * @return true if claimed events are tracked.
+     */
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+    
+    /**
+     * Reset a released event and return it to the pool.
+     */
+    @SuppressWarnings("unchecked")
+    void recycle(SimplePooledEvent event) {
+        LeakTracker tracker = (LeakTracker) event.leakTracker;
+        if (tracker != null) {
+            event.leakTracker = null;
+            tracked.remove(tracker);
+            tracker.clear();
+        }
+        event.reset();
+        free.offer((E) event);
+    }
+    
+    private void pollLeaks() {
+        Reference<? extends SimplePooledEvent> reference;
+        while ((reference = leakQueue.poll()) != null) {
+            LeakTracker tracker = (LeakTracker) reference;
+            if (tracked.remove(tracker)) {
+                leakedEvents.incrementAndGet();
+                lastLeak = tracker.claimTrace;
+            }
+        }
+    }
+    
+    /**
+     * Weak reference to a claimed event, remembering where it was claimed.
+     */
+    private static final class LeakTracker extends WeakReference<SimplePooledEvent> {
+        final Throwable claimTrace = new Throwable("Pooled event claimed here was never released");
+        
+        LeakTracker(SimplePooledEvent event, ReferenceQueue<SimplePooledEvent> queue) {
+            super(event, queue);
+        }
+    }
+}
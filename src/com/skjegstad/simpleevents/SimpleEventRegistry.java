@@ -0,0 +1,303 @@
+/*
+ 
+SimpleEventRegistry.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ *
+ * Immutable snapshot of the listeners registered on an event pipe. 
+ * <p>
+ * Each registration subscribes a listener to an event type. When an event
+ * is triggered, the listeners interested in its concrete class are looked
+ * up once and cached in a dispatch table, so later events of the same class
+ * only reach the listeners that want them. Adding or removing a listener
+ * creates a new registry with an empty cache.
+ * </p>
+ * <p>
+ * Listeners with filters are kept apart in the dispatch table. Listeners
+ * with equality filters are indexed by attribute value, so only the 
+ * listeners matching the event are looked up, and other filters are
+ * tested once per event.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+final class SimpleEventRegistry {
+    static final SimpleEventRegistry EMPTY = new SimpleEventRegistry(new Entry[0]);
+    
+    private final Entry[] entries;
+    private final ConcurrentHashMap<Class<?>, Dispatch> dispatchTable = new ConcurrentHashMap<Class<?>, Dispatch>();
+
+    private SimpleEventRegistry(Entry[] entries) {
+        this.entries = entries;
+    }
+    
+    /**
+     * Returns the listeners that should receive the event, applying the 
+     * filters of filtered listeners.
+     * 
+     * @param event triggered event.
+     * @return dispatch for the event.
+     */
+    Dispatch dispatch(SimpleEvent event) {
+        Dispatch dispatch = dispatch(event.getClass());
+        if (dispatch.filtered == null)
+            return dispatch;
+        return dispatch.select(event);
+    }
+    
+    /**
+     * Returns the listeners that should receive events of the given class,
+     * before filters are applied.
+     * 
+     * @param eventClass concrete class of the triggered event.
+     * @return cached dispatch for the class.
+     */
+    Dispatch dispatch(Class<?> eventClass) {
+        Dispatch dispatch = dispatchTable.get(eventClass);
+        if (dispatch == null) {
+            List<Entry> async = new ArrayList<Entry>();
+            List<Entry> sync = new ArrayList<Entry>();
+            List<Entry> filtered = new ArrayList<Entry>();
+            Map<Function<?, ?>, Map<Object, List<Entry>>> indexes = new IdentityHashMap<Function<?, ?>, Map<Object, List<Entry>>>();
+            for (Entry entry : entries) {
+                if (!entry.type.isAssignableFrom(eventClass))
+                    continue;
+                if (entry.filter == null) {
+                    if (entry.async)
+                        async.add(entry);
+                    else
+                        sync.add(entry);
+                } else if (entry.filter.attribute == null) {
+                    filtered.add(entry);
+                } else {
+                    Map<Object, List<Entry>> buckets = indexes.get(entry.filter.attribute);
+                    if (buckets == null) {
+                        buckets = new HashMap<Object, List<Entry>>();
+                        indexes.put(entry.filter.attribute, buckets);
+                    }
+                    List<Entry> bucket = buckets.get(entry.filter.value);
+                    if (bucket == null) {
+                        bucket = new ArrayList<Entry>(1);
+                        buckets.put(entry.filter.value, bucket);
+                    }
+                    bucket.add(entry);
+                }
+            }
+            dispatch = new Dispatch(async.toArray(new Entry[async.size()]), sync.toArray(new Entry[sync.size()]));
+            if (!filtered.isEmpty() || !indexes.isEmpty())
+                dispatch = new Dispatch(dispatch, filtered.toArray(new Entry[filtered.size()]), Index.of(indexes));
+            Dispatch existing = dispatchTable.putIfAbsent(eventClass, dispatch);
+            if (existing != null)
+                dispatch = existing;
+        }
+        return dispatch;
+    }
+    
+    /**
+     * Returns the number of registrations.
+     */
+    int size() {
+        return entries.length;
+    }
+    
+    /**
+     * Returns the registered listeners, once for each registration.
+     */
+    List<SimpleEventListener> listeners() {
+        List<SimpleEventListener> listeners = new ArrayList<SimpleEventListener>(entries.length);
+        for (Entry entry : entries)
+            listeners.add(entry.listener);
+        return listeners;
+    }
+    
+    /**
+     * Returns a new registry with the given registration appended.
+     */
+    SimpleEventRegistry add(Entry entry) {
+        Entry[] updated = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, updated, 0, entries.length);
+        updated[entries.length] = entry;
+        return new SimpleEventRegistry(updated);
+    }
+    
+    /**
+     * Returns the first registration of the given listener, or null if the
+     * listener is not registered.
+     */
+    Entry entry(SimpleEventListener listener) {
+        for (Entry entry : entries) {
+            if (entry.listener.equals(listener))
+                return entry;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns a new registry without the given registration, or this 
+     * registry if it is not registered.
+     */
+    SimpleEventRegistry remove(Entry entry) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == entry) {
+                if (entries.length == 1)
+                    return EMPTY;
+                Entry[] updated = new Entry[entries.length - 1];
+                System.arraycopy(entries, 0, updated, 0, i);
+                System.arraycopy(entries, i + 1, updated, i, entries.length - i - 1);
+                return new SimpleEventRegistry(updated);
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * A listener subscribed to an event type. Asynchronous listeners also 
+     * have a mailbox used when the pipe batches deliveries. Pipes with their
+     * own delivery mechanism may extend the registration with its state.
+     */
+    static class Entry {
+        final Class<? extends SimpleEvent> type;
+        final SimpleEventListener listener;
+        final boolean async;
+        final SimpleEventMailbox mailbox;
+        final SimpleEventFilter<?> filter;
+
+        Entry(Class<? extends SimpleEvent> type, SimpleEventListener listener, SimpleEventMailbox mailbox) {
+            this(type, null, listener, mailbox);
+        }
+        
+        Entry(Class<? extends SimpleEvent> type, SimpleEventFilter<?> filter, SimpleEventListener listener, SimpleEventMailbox mailbox) {
+            this.type = type;
+            this.filter = filter;
+            this.listener = listener;
+            this.async = listener instanceof SimpleAsyncEventListener;
+            this.mailbox = mailbox;
+        }
+    }
+    
+    /**
+     * The asynchronous and synchronous listeners interested in one event class.
+     * If some of the listeners have filters, the dispatch for a single event
+     * is found with select.
+     */
+    static final class Dispatch {
+        final Entry[] async;
+        final Entry[] sync;
+        // Listeners without filters, and the filtered listeners. Null if no listener has a filter.
+        private final Dispatch unfiltered;
+        private final Entry[] filtered;
+        private final Index[] indexes;
+
+        Dispatch(Entry[] async, Entry[] sync) {
+            this.async = async;
+            this.sync = sync;
+            this.unfiltered = this;
+            this.filtered = null;
+            this.indexes = null;
+        }
+        
+        Dispatch(Dispatch unfiltered, Entry[] filtered, Index[] indexes) {
+            this.async = unfiltered.async;
+            this.sync = unfiltered.sync;
+            this.unfiltered = unfiltered;
+            this.filtered = filtered;
+            this.indexes = indexes;
+        }
+        
+        /**
+         * Returns the listeners without filters, followed by the filtered
+         * listeners that match the event.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Dispatch select(SimpleEvent event) {
+            List<Entry> matches = null;
+            for (Entry entry : filtered) {
+                if (((SimpleEventFilter) entry.filter).test(event)) {
+                    if (matches == null)
+                        matches = new ArrayList<Entry>();
+                    matches.add(entry);
+                }
+            }
+            for (Index index : indexes) {
+                Entry[] bucket = index.buckets.get(((Function) index.attribute).apply(event));
+                if (bucket == null)
+                    continue;
+                for (Entry entry : bucket) {
+                    if (((SimpleEventFilter) entry.filter).testConditions(event)) {
+                        if (matches == null)
+                            matches = new ArrayList<Entry>();
+                        matches.add(entry);
+                    }
+                }
+            }
+            if (matches == null)
+                return unfiltered;
+            
+            List<Entry> async = new ArrayList<Entry>(Arrays.asList(unfiltered.async));
+            List<Entry> sync = new ArrayList<Entry>(Arrays.asList(unfiltered.sync));
+            for (Entry entry : matches) {
+                if (entry.async)
+                    async.add(entry);
+                else
+                    sync.add(entry);
+            }
+            return new Dispatch(async.toArray(new Entry[async.size()]), sync.toArray(new Entry[sync.size()]));
+        }
+    }
+    
+    /**
+     * Listeners with equality filters on the same attribute, by value.
+     */
+    static final class Index {
+        final Function<?, ?> attribute;
+        final HashMap<Object, Entry[]> buckets;
+
+        Index(Function<?, ?> attribute, HashMap<Object, Entry[]> buckets) {
+            this.attribute = attribute;
+            this.buckets = buckets;
+        }
+        
+        static Index[] of(Map<Function<?, ?>, Map<Object, List<Entry>>> indexes) {
+            Index[] result = new Index[indexes.size()];
+            int i = 0;
+            for (Map.Entry<Function<?, ?>, Map<Object, List<Entry>>> index : indexes.entrySet()) {
+                HashMap<Object, Entry[]> buckets = new HashMap<Object, Entry[]>();
+                for (Map.Entry<Object, List<Entry>> bucket : index.getValue().entrySet())
+                    buckets.put(bucket.getKey(), bucket.getValue().toArray(new Entry[bucket.getValue().size()]));
+                result[i++] = new Index(index.getKey(), buckets);
+            }
+            return result;
+        }
+    }
+}
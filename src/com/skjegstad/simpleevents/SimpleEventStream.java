@@ -0,0 +1,193 @@
+/*
+ 
+SimpleEventStream.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ *
+ * Stream of the events of one type on a pipe, transformed by a chain of 
+ * operators. Operators are composed into a single synchronous listener 
+ * that is added to the source pipe when the stream is sent somewhere with
+ * @link #to, so an event passes through all stages on the triggering 
+ * thread without intermediate pipes.
+ * <p>
+ * Streams are immutable; each operator returns a new stream. For windowed
+ * aggregation, key the stream with @link #keyBy.
+ * </p>
+ * <pre>
+ * SimpleEventStream.from(orders, OrderEvent.class)
+ *     .filter(isPaid)
+ *     .keyBy(customerId)
+ *     .window(SimpleEventWindow.tumbling(1, TimeUnit.MINUTES))
+ *     .sum(amount)
+ *     .to(manager, "orders.per-customer");
+ * </pre>
+ * 
+ * @param <E> type of events in the stream.
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventStream<E extends SimpleEvent> {
+    final SimpleEventPipe source;
+    final Class<? extends SimpleEvent> type;
+    private final Function<SimpleEvent, ? extends E> stage; // returns null to drop the event
+    
+    private SimpleEventStream(SimpleEventPipe source, Class<? extends SimpleEvent> type, Function<SimpleEvent, ? extends E> stage) {
+        this.source = source;
+        this.type = type;
+        this.stage = stage;
+    }
+    
+    /**
+     * Returns a stream of the events of the given type on the pipe.
+     * 
+     * @param source pipe the events are triggered on.
+     * @param type type of events in the stream, including subclasses.
+     * @return event stream.
+     */
+    public static <E extends SimpleEvent> SimpleEventStream<E> from(SimpleEventPipe source, final Class<E> type) {
+        return new SimpleEventStream<E>(source, type, new Function<SimpleEvent, E>() {
+            @Override
+            public E apply(SimpleEvent event) {
+                return type.cast(event);
+            }
+        });
+    }
+    
+    /**
+     * Returns a stream of the events matching the predicate.
+     * 
+     * @param predicate condition on the events.
+     * @return filtered stream.
+     */
+    public SimpleEventStream<E> filter(final Predicate<? super E> predicate) {
+        final Function<SimpleEvent, ? extends E> previous = stage;
+        return new SimpleEventStream<E>(source, type, new Function<SimpleEvent, E>() {
+            @Override
+            public E apply(SimpleEvent event) {
+                E e = previous.apply(event);
+                return e != null && predicate.test(e) ? e : null;
+            }
+        });
+    }
+    
+    /**
+     * Returns a stream of the events returned by the function. Events 
+     * mapped to null are dropped.
+     * 
+     * @param mapper function converting the events.
+     * @return mapped stream.
+     */
+    public <R extends SimpleEvent> SimpleEventStream<R> map(final Function<? super E, ? extends R> mapper) {
+        final Function<SimpleEvent, ? extends E> previous = stage;
+        return new SimpleEventStream<R>(source, type, new Function<SimpleEvent, R>() {
+            @Override
+            public R apply(SimpleEvent event) {
+                E e = previous.apply(event);
+                return e != null ? mapper.apply(e) : null;
+            }
+        });
+    }
+    
+    /**
+     * Returns a stream partitioned by a long key, e.g. an entity id. Keys are
+     * kept as primitives, so aggregations do not box them.
+     * 
+     * @param key function reading the key from an event.
+     * @return keyed stream.
+     */
+    public SimpleKeyedEventStream<E> keyBy(ToLongFunction<? super E> key) {
+        return new SimpleKeyedEventStream<E>(this, key, null, null);
+    }
+    
+    /**
+     * Trigger the events of the stream on the target pipe.
+     * 
+     * @param target pipe receiving the events.
+     * @return listener added to the source pipe. Remove it from the source
+     * pipe to stop the stream.
+     */
+    public SimpleEventListener to(SimpleEventPipe target) {
+        return to(new Sink(target, null, null));
+    }
+    
+    /**
+     * Trigger the events of the stream on the named pipe of the manager.
+     * The pipe is looked up for each event, so it may be closed or evicted
+     * in between.
+     * 
+     * @param manager event manager owning the target pipe.
+     * @param pipeName name of the target pipe.
+     * @return listener added to the source pipe. Remove it from the source
+     * pipe to stop the stream.
+     */
+    public SimpleEventListener to(SimpleEventManager manager, String pipeName) {
+        return to(new Sink(null, manager, pipeName));
+    }
+    
+    private SimpleEventListener to(final Sink sink) {
+        SimpleEventListener listener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                E e = apply(event);
+                if (e != null)
+                    sink.pipe().trigger(e);
+            }
+        };
+        source.listen(type, listener);
+        return listener;
+    }
+    
+    /**
+     * Run the event through the operators.
+     * 
+     * @param event event triggered on the source pipe.
+     * @return resulting event, or null if it was dropped.
+     */
+    E apply(SimpleEvent event) {
+        return stage.apply(event);
+    }
+    
+    /**
+     * Pipe receiving the output of a stream, either fixed or looked up by 
+     * name.
+     */
+    static final class Sink {
+        private final SimpleEventPipe pipe;
+        private final SimpleEventManager manager;
+        private final String pipeName;
+
+        Sink(SimpleEventPipe pipe, SimpleEventManager manager, String pipeName) {
+            this.pipe = pipe;
+            this.manager = manager;
+            this.pipeName = pipeName;
+        }
+        
+        SimpleEventPipe pipe() {
+            return pipe != null ? pipe : manager.getPipe(pipeName);
+        }
+    }
+}
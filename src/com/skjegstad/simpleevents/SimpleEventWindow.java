@@ -0,0 +1,91 @@
+/*
+ 
+SimpleEventWindow.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Time window of a windowed stream aggregation, see 
+ * @link SimpleKeyedEventStream#window. A tumbling window covers each 
+ * period of time once. A sliding window of a given size starts every
+ * slide, so each event is counted in size / slide windows.
+ * 
+ * @author Magnus Skjegstad
+ */
+public final class SimpleEventWindow {
+    private final long size;
+    private final long slide;
+    
+    private SimpleEventWindow(long size, long slide) {
+        this.size = size;
+        this.slide = slide;
+    }
+    
+    /**
+     * Returns a tumbling window.
+     * 
+     * @param size length of the window.
+     * @param unit unit of the size, at least milliseconds.
+     * @return tumbling window.
+     */
+    public static SimpleEventWindow tumbling(long size, TimeUnit unit) {
+        return sliding(size, size, unit);
+    }
+    
+    /**
+     * Returns a sliding window.
+     * 
+     * @param size length of the window. Must be a multiple of the slide.
+     * @param slide time between the start of two windows.
+     * @param unit unit of the size and slide, at least milliseconds.
+     * @return sliding window.
+     */
+    public static SimpleEventWindow sliding(long size, long slide, TimeUnit unit) {
+        long sizeMillis = unit.toMillis(size);
+        long slideMillis = unit.toMillis(slide);
+        if (slideMillis <= 0 || sizeMillis < slideMillis || sizeMillis % slideMillis != 0)
+            throw new IllegalArgumentException("Window size must be a positive multiple of the slide");
+        if (sizeMillis / slideMillis > 1024)
+            throw new IllegalArgumentException("Window size can be at most 1024 slides");
+        return new SimpleEventWindow(sizeMillis, slideMillis);
+    }
+
+    /**
+     * Returns the length of the window.
+     * 
+     * @return size in milliseconds.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the time between the start of two windows. Equal to the size
+     * for tumbling windows.
+     * 
+     * @return slide in milliseconds.
+     */
+    public long getSlide() {
+        return slide;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ 
+SimpleKeyedEventStream.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ *
+ * Event stream partitioned by a long key, see @link SimpleEventStream#keyBy.
+ * A window must be set before the stream is aggregated. The aggregations 
+ * return a @link SimpleWindowOperator, which starts when it is sent to a 
+ * pipe with one of its to methods.
+ * 
+ * @param <E> type of events in the stream.
+ * @author Magnus Skjegstad
+ */
+public class SimpleKeyedEventStream<E extends SimpleEvent> {
+    private static final LongBinaryOperator SUM = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return left + right;
+        }
+    };
+    private static final LongBinaryOperator MIN = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.min(left, right);
+        }
+    };
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+    private static final ToLongFunction<SimpleEvent> ONE = new ToLongFunction<SimpleEvent>() {
+        @Override
+        public long applyAsLong(SimpleEvent event) {
+            return 1;
+        }
+    };
+    
+    private final SimpleEventStream<E> stream;
+    private final ToLongFunction<? super E> key;
+    private final SimpleEventWindow window;
+    private final ToLongFunction<? super E> timestamp;
+
+    SimpleKeyedEventStream(SimpleEventStream<E> stream, ToLongFunction<? super E> key, SimpleEventWindow window, ToLongFunction<? super E> timestamp) {
+        this.stream = stream;
+        this.key = key;
+        this.window = window;
+        this.timestamp = timestamp;
+    }
+    
+    /**
+     * Returns the stream divided into windows by the time the events are 
+     * received. Windows are emitted when the first event after the end of
+     * the window arrives, or by @link SimpleWindowOperator#advanceTo.
+     * 
+     * @param window tumbling or sliding window.
+     * @return windowed stream.
+     */
+    public SimpleKeyedEventStream<E> window(SimpleEventWindow window) {
+        return new SimpleKeyedEventStream<E>(stream, key, window, null);
+    }
+    
+    /**
+     * Returns the stream divided into windows by a timestamp in the events.
+     * Events are expected to arrive roughly in timestamp order; events for 
+     * windows that have already been emitted are dropped and counted, see
+     * @link SimpleWindowOperator#getLateEvents.
+     * 
+     * @param window tumbling or sliding window.
+     * @param timestamp function reading the event time in milliseconds.
+     * @return windowed stream.
+     */
+    public SimpleKeyedEventStream<E> window(SimpleEventWindow window, ToLongFunction<? super E> timestamp) {
+        return new SimpleKeyedEventStream<E>(stream, key, window, timestamp);
+    }
+    
+    /**
+     * Aggregate a value of the events per key and window. The operator must
+     * be associative, as it is applied incrementally as events arrive and 
+     * to combine the slides of a sliding window.
+     * 
+     * @param value function reading the value from an event.
+     * @param op function combining two values.
+     * @return window operator.
+     */
+    public SimpleWindowOperator<E> reduce(ToLongFunction<? super E> value, LongBinaryOperator op) {
+        if (window == null)
+            throw new IllegalStateException("Window must be set before the stream is aggregated");
+        return new SimpleWindowOperator<E>(stream, key, window, timestamp, value, op);
+    }
+    
+    /**
+     * Sum a value of the events per key and window.
+     * 
+     * @param value function reading the value from an event.
+     * @return window operator.
+     */
+    public SimpleWindowOperator<E> sum(ToLongFunction<? super E> value) {
+        return reduce(value, SUM);
+    }
+    
+    /**
+     * Count the events per key and window.
+     * 
+     * @return window operator.
+     */
+    public SimpleWindowOperator<E> count() {
+        return reduce(ONE, SUM);
+    }
+    
+    /**
+     * Find the smallest value of the events per key and window.
+     * 
+     * @param value function reading the value from an event.
+     * @return window operator.
+     */
+    public SimpleWindowOperator<E> min(ToLongFunction<? super E> value) {
+        return reduce(value, MIN);
+    }
+    
+    /**
+     * Find the largest value of the events per key and window.
+     * 
+     * @param value function reading the value from an event.
+     * @return window operator.
+     */
+    public SimpleWindowOperator<E> max(ToLongFunction<? super E> value) {
+        return reduce(value, MAX);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ 
+SimpleLongLongMap.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.Arrays;
+import java.util.function.LongBinaryOperator;
+
+/**
+ *
+ * Open addressing hash map from long to long, used for per-key state in
+ * stream operators without boxing keys or values. Not thread safe.
+ * <p>
+ * Entries are read by slot: iterate from 0 to @link #capacity and read the
+ * slots where @link #isUsed is true. Clearing keeps the arrays, so a reused
+ * map does not allocate once it has grown to its working size.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+final class SimpleLongLongMap {
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size = 0;
+    private int mask;
+
+    SimpleLongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+    
+    /**
+     * Store the value for the key, or combine it with the current value.
+     * 
+     * @param key key.
+     * @param value value to store or combine.
+     * @param op function combining the current value with the new value.
+     */
+    void merge(long key, long value, LongBinaryOperator op) {
+        int slot = slot(key, mask);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] = op.applyAsLong(values[slot], value);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length)
+            grow();
+    }
+    
+    /**
+     * Returns the value for the key.
+     * 
+     * @param key key.
+     * @param missing value returned if the key is not in the map.
+     * @return value for the key, or missing.
+     */
+    long get(long key, long missing) {
+        int slot = slot(key, mask);
+        while (used[slot]) {
+            if (keys[slot] == key)
+                return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return missing;
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    void clear() {
+        if (size == 0)
+            return;
+        Arrays.fill(used, false);
+        size = 0;
+    }
+    
+    int capacity() {
+        return keys.length;
+    }
+    
+    boolean isUsed(int slot) {
+        return used[slot];
+    }
+    
+    long keyAt(int slot) {
+        return keys[slot];
+    }
+    
+    long valueAt(int slot) {
+        return values[slot];
+    }
+    
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!oldUsed[i])
+                continue;
+            int slot = slot(oldKeys[i], mask);
+            while (used[slot])
+                slot = (slot + 1) & mask;
+            used[slot] = true;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+    
+    /**
+     * Spread the key bits, as keys are often small sequential ids.
+     */
+    static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ 
+SimpleOverflowPolicy.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+/**
+ *
+ * What an asynchronous listener mailbox does when an event is triggered 
+ * while the mailbox is full.
+ * 
+ * @author Magnus Skjegstad
+ */
+public enum SimpleOverflowPolicy {
+    /**
+     * Block the thread calling trigger until there is room in the mailbox.
+     */
+    BLOCK,
+    /**
+     * Discard the new event.
+     */
+    DROP_NEWEST,
+    /**
+     * Discard the oldest pending event to make room for the new event.
+     */
+    DROP_OLDEST,
+    /**
+     * Replace the pending event with the same key as the new event. Events 
+     * must implement @link SimpleKeyedEvent. If no pending event has the
+     * same key, the oldest pending event is discarded. Implies
+     * @link SimpleEventPipe#setAsyncConflation.
+     */
+    COALESCE,
+    /**
+     * Throw a RejectedExecutionException to the thread calling trigger.
+     */
+    FAIL
+}
@@ -0,0 +1,155 @@
+/*
+ 
+SimpleParallelDispatch.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Runs the synchronous listeners of one trigger in parallel and waits for 
+ * all of them to finish.
+ * <p>
+ * Listeners are claimed one at a time from a shared index by the triggering
+ * thread and by up to parallelism - 1 helper tasks on a ForkJoinPool. The
+ * triggering thread keeps claiming listeners until all are taken and then 
+ * waits only for listeners already running on a helper, so it never waits
+ * for helpers that have not started, e.g. because the pool is busy. The
+ * helper finishing the last listener wakes the triggering thread, and only
+ * while it is still waiting.
+ * </p>
+ * <p>
+ * If a listener throws and the pipe does not isolate listeners, listeners 
+ * that have not started are skipped and the first exception is thrown to 
+ * the triggering thread.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+final class SimpleParallelDispatch implements Runnable {
+    private final SimpleEventPipe pipe;
+    private final SimpleEventRegistry.Entry[] entries;
+    private final SimpleEvent event;
+    private final SimpleEventMetrics metrics;
+    private final Thread caller = Thread.currentThread();
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final AtomicInteger done = new AtomicInteger(0);
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final AtomicReference<Thread> waiter = new AtomicReference<Thread>(); // caller while it is parked
+    private volatile boolean unparked = false;
+    
+    private SimpleParallelDispatch(SimpleEventPipe pipe, SimpleEventRegistry.Entry[] entries, SimpleEvent event, SimpleEventMetrics metrics) {
+        this.pipe = pipe;
+        this.entries = entries;
+        this.event = event;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Deliver the event to the listeners and return when all are done.
+     * 
+     * @param pipe pipe the event was triggered on.
+     * @param pool pool running the helper tasks.
+     * @param entries synchronous listeners interested in the event.
+     * @param event event to deliver.
+     * @param metrics pipe metrics, or null.
+     */
+    static void dispatch(SimpleEventPipe pipe, ForkJoinPool pool, SimpleEventRegistry.Entry[] entries, SimpleEvent event, SimpleEventMetrics metrics) {
+        SimpleParallelDispatch dispatch = new SimpleParallelDispatch(pipe, entries, event, metrics);
+        int helpers = Math.min(entries.length - 1, pool.getParallelism());
+        try {
+            for (int i = 0; i < helpers; i++)
+                pool.execute(dispatch);
+        } catch (RejectedExecutionException ex) { // run the rest on this thread
+        }
+        dispatch.run();
+        dispatch.await();
+    }
+
+    @Override
+    public void run() {
+        int i;
+        while ((i = next.getAndIncrement()) < entries.length) {
+            try {
+                if (failure.get() == null)
+                    receive(entries[i]);
+            } finally {
+                // Exactly one thread finishes the last listener, it wakes the caller if it waits
+                if (done.incrementAndGet() == entries.length) {
+                    Thread waiting = waiter.getAndSet(null);
+                    if (waiting != null) {
+                        LockSupport.unpark(waiting);
+                        unparked = true;
+                    }
+                }
+            }
+        }
+    }
+    
+    private void receive(SimpleEventRegistry.Entry entry) {
+        try {
+            pipe.receiveSync(entry, event, metrics);
+        } catch (RuntimeException ex) {
+            failure.compareAndSet(null, ex);
+        } catch (Error err) {
+            failure.compareAndSet(null, err);
+        }
+    }
+    
+    /**
+     * Wait for the listeners running on helper tasks. All listeners are 
+     * claimed when this is called. The caller keeps waiting if interrupted, 
+     * as the listeners still use the event, and the interrupt is restored 
+     * before returning.
+     */
+    private void await() {
+        if (done.get() < entries.length) {
+            boolean interrupted = false;
+            waiter.set(caller);
+            while (done.get() < entries.length) {
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    interrupted = true;
+            }
+            if (!waiter.compareAndSet(caller, null)) {
+                // The last helper is unparking us, take the permit so it does not wake a later park
+                while (!unparked)
+                    Thread.yield();
+                LockSupport.parkNanos(this, 1);
+                if (Thread.interrupted())
+                    interrupted = true;
+            }
+            if (interrupted)
+                caller.interrupt();
+        }
+        
+        Throwable ex = failure.get();
+        if (ex instanceof Error)
+            throw (Error) ex;
+        if (ex != null)
+            throw (RuntimeException) ex;
+    }
+}
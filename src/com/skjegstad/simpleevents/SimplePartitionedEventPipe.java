@@ -0,0 +1,251 @@
+/*
+ 
+SimplePartitionedEventPipe.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventPipeFactory;
+import com.skjegstad.simpleevents.interfaces.SimpleKeyedEvent;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Event pipe that splits asynchronous deliveries over a fixed number of 
+ * shards, each with its own queue and its own worker thread.
+ * <p>
+ * Keyed events (@link SimpleKeyedEvent) are assigned to a shard by the hash
+ * of their key, so all events with the same key are delivered in trigger 
+ * order by the same thread. Other events are assigned by the triggering 
+ * thread, so events from one producer stay in order. Each shard receives
+ * the immutable listener snapshot of the trigger with the event, and the 
+ * shards share no mutable state, so producers and workers on different 
+ * shards do not contend. Each worker runs on a dedicated thread, which the
+ * operating system tends to keep on the same core.
+ * </p>
+ * <p>
+ * Synchronous listeners are run by trigger as in @link SimpleEventPipe. 
+ * Ordered, batched and bounded mailbox delivery is replaced by the shard 
+ * queues, so those settings are ignored by this pipe. A slow listener 
+ * delays the other events of its shard.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimplePartitionedEventPipe extends SimpleEventPipe {
+    private final Shard[] shards;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a partitioned pipe with one shard per available processor.
+     * 
+     * @param executorService ExecutorService passed to @link SimpleEventPipe. 
+     *        Shard workers run on their own threads.
+     */
+    public SimplePartitionedEventPipe(ExecutorService executorService) {
+        this(executorService, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Create a partitioned pipe.
+     * 
+     * @param executorService ExecutorService passed to @link SimpleEventPipe.
+     *        Shard workers run on their own threads.
+     * @param shardCount number of shards and worker threads.
+     */
+    public SimplePartitionedEventPipe(ExecutorService executorService, int shardCount) {
+        super(executorService);
+        if (shardCount < 1)
+            throw new IllegalArgumentException("Shard count must be positive");
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+            Thread worker = new Thread(shards[i], "SimplePartitionedEventPipe-shard-" + i);
+            worker.setDaemon(true);
+            shards[i].worker = worker;
+        }
+        for (Shard shard : shards)
+            shard.worker.start();
+    }
+    
+    /**
+     * Returns a factory for partitioned pipes with one shard per available
+     * processor, for use with 
+     * @link SimpleEventManager#getPipe(String, SimpleEventPipeFactory).
+     * 
+     * @return pipe factory.
+     */
+    public static SimpleEventPipeFactory factory() {
+        return factory(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Returns a factory for partitioned pipes, for use with 
+     * @link SimpleEventManager#getPipe(String, SimpleEventPipeFactory).
+     * 
+     * @param shardCount number of shards and worker threads.
+     * @return pipe factory.
+     */
+    public static SimpleEventPipeFactory factory(final int shardCount) {
+        return new SimpleEventPipeFactory() {
+            @Override
+            public SimpleEventPipe createPipe(ExecutorService executorService) {
+                return new SimplePartitionedEventPipe(executorService, shardCount);
+            }
+        };
+    }
+    
+    /**
+     * Returns the number of shards.
+     * 
+     * @return shard count.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+    
+    /**
+     * Returns the shard the event is delivered by, when triggered from the
+     * calling thread.
+     * 
+     * @param event event to look up.
+     * @return shard index.
+     */
+    public int shardOf(SimpleEvent event) {
+        int hash;
+        if (event instanceof SimpleKeyedEvent) {
+            Object key = ((SimpleKeyedEvent) event).getEventKey();
+            hash = key != null ? key.hashCode() : 0;
+        } else {
+            hash = (int) Thread.currentThread().getId();
+        }
+        hash *= 0x9E3779B9;
+        return (int) (((hash ^ (hash >>> 16)) & 0xffffffffL) % shards.length);
+    }
+    
+    /**
+     * Returns the number of events waiting in the queue of a shard.
+     * 
+     * @param shard shard index.
+     * @return queued events.
+     */
+    public int getQueueDepth(int shard) {
+        return shards[shard].depth.get();
+    }
+
+    @Override
+    void deliverAsync(SimpleEventRegistry.Entry[] entries, SimpleEvent event) {
+        if (closed) {
+            asyncDone(event, entries.length);
+            throw new RejectedExecutionException("Partitioned pipe is closed, rejected event " + event);
+        }
+        Shard shard = shards[shardOf(event)];
+        shard.offer(new Delivery(entries, event));
+        if (closed) // the worker may have stopped before the event was queued
+            shard.discard();
+    }
+    
+    /**
+     * Stop the shard workers. Events still queued are not delivered.
+     */
+    public void close() {
+        closed = true;
+        for (Shard shard : shards)
+            LockSupport.unpark(shard.worker);
+    }
+    
+    /**
+     * Remove all listeners and stop the shard workers, as the pipe is closed
+     * by its manager.
+     */
+    @Override
+    void removeAllListeners() {
+        super.removeAllListeners();
+        close();
+    }
+    
+    /**
+     * An event and the asynchronous listeners it is delivered to.
+     */
+    private static final class Delivery {
+        final SimpleEventRegistry.Entry[] entries;
+        final SimpleEvent event;
+
+        Delivery(SimpleEventRegistry.Entry[] entries, SimpleEvent event) {
+            this.entries = entries;
+            this.event = event;
+        }
+    }
+    
+    /**
+     * Queue of one shard, drained by its worker thread. The worker parks 
+     * when the queue is empty and producers only unpark it when it has
+     * announced that it is parking.
+     */
+    private final class Shard implements Runnable {
+        final ConcurrentLinkedQueue<Delivery> queue = new ConcurrentLinkedQueue<Delivery>();
+        final AtomicInteger depth = new AtomicInteger(0);
+        volatile boolean parked = false;
+        Thread worker;
+        
+        void offer(Delivery delivery) {
+            depth.incrementAndGet();
+            queue.add(delivery);
+            if (parked)
+                LockSupport.unpark(worker);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    Delivery delivery = queue.poll();
+                    if (delivery == null) {
+                        parked = true;
+                        if (queue.isEmpty() && !closed)
+                            LockSupport.park(this);
+                        parked = false;
+                        continue;
+                    }
+                    depth.decrementAndGet();
+                    for (SimpleEventRegistry.Entry entry : delivery.entries)
+                        deliverAsyncEvent(entry.listener, delivery.event);
+                }
+            } finally {
+                discard();
+            }
+        }
+        
+        /**
+         * Drop the events left in the queue after the worker has stopped.
+         */
+        void discard() {
+            Delivery delivery;
+            while ((delivery = queue.poll()) != null) {
+                depth.decrementAndGet();
+                asyncDone(delivery.event, delivery.entries.length);
+            }
+        }
+    }
+}
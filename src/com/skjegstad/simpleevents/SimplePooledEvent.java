@@ -0,0 +1,114 @@
+/*
+ 
+SimplePooledEvent.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ *
+ * Reusable event claimed from a @link SimpleEventPool.
+ * <p>
+ * A pooled event is reference counted. Claiming it from the pool gives the
+ * producer one reference, and the pipe holds one reference for each 
+ * asynchronous listener until it has handled the event. When the last 
+ * reference is released, the event is reset and returned to the pool.
+ * Listeners must not keep the event after receiveEvent returns, unless they
+ * call retain and later release it. This also applies to listeners on the
+ * dead-letter pipe, which holds a reference for each of its asynchronous 
+ * listeners until they have handled the dead letter.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public abstract class SimplePooledEvent implements SimpleEvent {
+    private static final AtomicIntegerFieldUpdater<SimplePooledEvent> REF_COUNT = 
+            AtomicIntegerFieldUpdater.newUpdater(SimplePooledEvent.class, "refCount");
+    
+    private volatile int refCount = 0;
+    SimpleEventPool<?> pool;
+    Object leakTracker;
+    
+    /**
+     * Clear the fields of this event before it is reused. The default 
+     * implementation does nothing.
+     */
+    protected void reset() {
+    }
+    
+    /**
+     * Take another reference to this event, so it is not reused before
+     * release is called.
+     * 
+     * @throws IllegalStateException if the event was already released.
+     */
+    public final void retain() {
+        retain(1);
+    }
+    
+    /**
+     * Release a reference to this event. The event is returned to its pool
+     * when the last reference is released.
+     * 
+     * @throws IllegalStateException if the event was already released.
+     */
+    public final void release() {
+        release(1);
+    }
+    
+    /**
+     * Returns the number of references to this event.
+     * 
+     * @return reference count, 0 if the event is in the pool.
+     */
+    public final int getRefCount() {
+        return refCount;
+    }
+    
+    final void retain(int count) {
+        while (true) {
+            int current = refCount;
+            if (current <= 0)
+                throw new IllegalStateException("Event already released: " + this);
+            if (REF_COUNT.compareAndSet(this, current, current + count))
+                return;
+        }
+    }
+    
+    final void release(int count) {
+        int remaining = REF_COUNT.addAndGet(this, -count);
+        if (remaining == 0) {
+            if (pool != null)
+                pool.recycle(this);
+        } else if (remaining < 0) {
+            REF_COUNT.addAndGet(this, count);
+            throw new IllegalStateException("Event already released: " + this);
+        }
+    }
+    
+    /**
+     * Mark the event as claimed, with one reference.
+     */
+    final void claimed() {
+        refCount = 1;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ 
+SimplePriorityExecutor.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * ExecutorService running tasks from one queue per @link SimpleEventPriority
+ * on a wrapped ExecutorService. 
+ * <p>
+ * At most parallelism worker tasks run on the wrapped ExecutorService at a
+ * time. Each worker repeatedly takes the next task from the lanes and exits
+ * when all lanes are empty. With strict scheduling, a task is only taken
+ * from a lane when all higher priority lanes are empty. With weighted
+ * scheduling, the lanes are visited in a smooth weighted round robin, so
+ * e.g. weights 8, 4, 1 take up to eight high priority tasks for every 
+ * normal and low priority task, and an empty lane gives its turn to the
+ * next non-empty lane in priority order. Low priority work then cannot 
+ * starve completely.
+ * </p>
+ * <p>
+ * Event pipes running on this executor put asynchronous deliveries in the
+ * lane of their priority, see @link SimpleEventPipe#setPriority. Other 
+ * tasks use the NORMAL lane. Long-running tasks, such as the consumers of
+ * a @link SimpleRingBufferEventPipe, occupy a worker for as long as they 
+ * run and should use a separate ExecutorService.
+ * </p>
+ * <p>
+ * The priority executor owns the wrapped ExecutorService: shutdown and 
+ * shutdownNow also shut it down, and termination is that of the wrapped
+ * ExecutorService. Do not wrap an ExecutorService that is used elsewhere.
+ * </p>
+ * <p>
+ * The depth of each lane and the time tasks wait in it are measured, see
+ * @link #getQueueDepth and @link #getWaitTime.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimplePriorityExecutor extends AbstractExecutorService {
+    private static final SimpleEventPriority[] PRIORITIES = SimpleEventPriority.values();
+    
+    private final ExecutorService executorService;
+    private final int parallelism;
+    private final Lane[] lanes = new Lane[PRIORITIES.length];
+    private final int[] schedule; // lane order for weighted scheduling, null if strict
+    private final AtomicInteger scheduleCursor = new AtomicInteger(0);
+    private final AtomicInteger workers = new AtomicInteger(0);
+    private volatile boolean shutdown = false;
+    
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            runWorker();
+        }
+    };
+
+    /**
+     * Create an executor with strict priority scheduling.
+     * 
+     * @param executorService ExecutorService running the workers, owned by
+     *        this executor.
+     * @param parallelism maximum number of tasks running at the same time.
+     */
+    public SimplePriorityExecutor(ExecutorService executorService, int parallelism) {
+        this(executorService, parallelism, null);
+    }
+    
+    /**
+     * Create an executor with weighted scheduling.
+     * 
+     * @param executorService ExecutorService running the workers, owned by
+     *        this executor.
+     * @param parallelism maximum number of tasks running at the same time.
+     * @param highWeight share of the HIGH lane.
+     * @param normalWeight share of the NORMAL lane.
+     * @param lowWeight share of the LOW lane.
+     */
+    public SimplePriorityExecutor(ExecutorService executorService, int parallelism, int highWeight, int normalWeight, int lowWeight) {
+        this(executorService, parallelism, new int[] { highWeight, normalWeight, lowWeight });
+    }
+    
+    private SimplePriorityExecutor(ExecutorService executorService, int parallelism, int[] weights) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        this.executorService = executorService;
+        this.parallelism = parallelism;
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new Lane();
+        this.schedule = weights == null ? null : weightedSchedule(weights);
+    }
+    
+    /**
+     * Spread each lane over the schedule in proportion to its weight, using
+     * smooth weighted round robin.
+     */
+    private static int[] weightedSchedule(int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            if (weight < 1)
+                throw new IllegalArgumentException("Weights must be positive");
+            total += weight;
+        }
+        int[] schedule = new int[total];
+        int[] current = new int[weights.length];
+        for (int i = 0; i < total; i++) {
+            int best = 0;
+            for (int lane = 0; lane < weights.length; lane++) {
+                current[lane] += weights[lane];
+                if (current[lane] > current[best])
+                    best = lane;
+            }
+            current[best] -= total;
+            schedule[i] = best;
+        }
+        return schedule;
+    }
+    
+    /**
+     * Run the task in the NORMAL lane.
+     * 
+     * @param task task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(task, SimpleEventPriority.NORMAL);
+    }
+    
+    /**
+     * Run the task in the lane of the given priority.
+     * 
+     * @param task task to run.
+     * @param priority lane of the task.
+     * @throws RejectedExecutionException if the executor is shut down.
+     */
+    public void execute(Runnable task, SimpleEventPriority priority) {
+        if (shutdown)
+            throw new RejectedExecutionException("Executor is shut down");
+        Lane lane = lanes[priority.ordinal()];
+        lane.depth.incrementAndGet();
+        lane.tasks.add(new Task(task));
+        startWorker();
+    }
+    
+    /**
+     * Returns the number of tasks waiting in the lane of the given priority.
+     * 
+     * @param priority lane.
+     * @return waiting tasks.
+     */
+    public int getQueueDepth(SimpleEventPriority priority) {
+        return lanes[priority.ordinal()].depth.get();
+    }
+    
+    /**
+     * Returns the time tasks waited in the lane of the given priority before
+     * they started, in nanoseconds.
+     * 
+     * @param priority lane.
+     * @return wait time histogram.
+     */
+    public SimpleEventMetrics.HistogramSnapshot getWaitTime(SimpleEventPriority priority) {
+        return lanes[priority.ordinal()].waitTime.snapshot();
+    }
+    
+    /**
+     * Returns true if the lanes are visited by weight rather than strictly
+     * by priority.
+     * 
+     * @return true for weighted scheduling.
+     */
+    public boolean isWeighted() {
+        return schedule != null;
+    }
+    
+    private void startWorker() {
+        while (true) {
+            int running = workers.get();
+            if (running >= parallelism)
+                return;
+            if (workers.compareAndSet(running, running + 1)) {
+                try {
+                    executorService.execute(worker);
+                } catch (RejectedExecutionException ex) {
+                    workers.decrementAndGet();
+                    throw ex;
+                }
+                return;
+            }
+        }
+    }
+    
+    private void runWorker() {
+        while (true) {
+            Task task = next();
+            if (task == null) {
+                workers.decrementAndGet();
+                // A task added after next() returned null may not have started a worker
+                if (isEmpty() || !reclaimWorker())
+                    return;
+                continue;
+            }
+            try {
+                task.task.run();
+            } catch (RuntimeException ex) { // keep the worker, like a FutureTask would
+            } catch (Error err) {
+                workers.decrementAndGet();
+                if (!isEmpty() && !shutdown) {
+                    try {
+                        startWorker();
+                    } catch (RejectedExecutionException ex) {
+                    }
+                }
+                throw err;
+            }
+        }
+    }
+    
+    private boolean reclaimWorker() {
+        while (true) {
+            int running = workers.get();
+            if (running >= parallelism)
+                return false;
+            if (workers.compareAndSet(running, running + 1))
+                return true;
+        }
+    }
+    
+    private boolean isEmpty() {
+        for (Lane lane : lanes)
+            if (!lane.tasks.isEmpty())
+                return false;
+        return true;
+    }
+    
+    /**
+     * Take the next task according to the scheduling policy.
+     */
+    private Task next() {
+        int first = 0;
+        if (schedule != null)
+            first = schedule[(scheduleCursor.getAndIncrement() & Integer.MAX_VALUE) % schedule.length];
+        
+        Task task = lanes[first].poll();
+        for (int i = 0; task == null && i < lanes.length; i++)
+            if (i != first)
+                task = lanes[i].poll();
+        return task;
+    }
+
+    /**
+     * Stop accepting tasks, run the queued tasks and shut down the wrapped
+     * ExecutorService.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        if (!isEmpty()) {
+            try {
+                startWorker(); // finish the queued tasks
+            } catch (RejectedExecutionException ex) {
+            }
+        }
+        executorService.shutdown();
+    }
+
+    /**
+     * Stop accepting tasks, remove the queued tasks and shut down the 
+     * wrapped ExecutorService immediately.
+     * 
+     * @return tasks that were queued and never run.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<Runnable>();
+        for (Lane lane : lanes) {
+            Task task;
+            while ((task = lane.poll()) != null)
+                pending.add(task.task);
+        }
+        executorService.shutdownNow();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && executorService.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService.awaitTermination(timeout, unit);
+    }
+    
+    private static final class Task {
+        final Runnable task;
+        final long enqueuedTs = System.nanoTime();
+        
+        Task(Runnable task) {
+            this.task = task;
+        }
+    }
+    
+    private static final class Lane {
+        final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+        final AtomicInteger depth = new AtomicInteger(0);
+        final SimpleEventMetrics.Histogram waitTime = new SimpleEventMetrics.Histogram();
+        
+        Task poll() {
+            Task task = tasks.poll();
+            if (task != null) {
+                depth.decrementAndGet();
+                waitTime.record(System.nanoTime() - task.enqueuedTs);
+            }
+            return task;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ 
+SimpleRateLimitException.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Thrown by trigger when an event exceeds the rate limit of the pipe or of
+ * the producer and the pipe rejects it, see 
+ * @link SimpleEventPipe#setRateLimitPolicy. Also completes the future of
+ * @link SimpleEventPipe#triggerAsync when an event is shed.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleRateLimitException extends RejectedExecutionException {
+    private static final long serialVersionUID = 1L;
+    
+    private final long retryAfterNanos;
+
+    /**
+     * Create a new rate limit exception.
+     * 
+     * @param message detail message.
+     * @param retryAfterNanos time until a permit is available.
+     */
+    public SimpleRateLimitException(String message, long retryAfterNanos) {
+        super(message);
+        this.retryAfterNanos = retryAfterNanos;
+    }
+
+    /**
+     * Returns the time until the limit would admit the event.
+     * 
+     * @param unit unit of the result.
+     * @return time to wait before retrying.
+     */
+    public long getRetryAfter(TimeUnit unit) {
+        return unit.convert(retryAfterNanos, TimeUnit.NANOSECONDS);
+    }
+}
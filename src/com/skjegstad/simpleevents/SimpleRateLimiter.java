@@ -0,0 +1,167 @@
+/*
+ 
+SimpleRateLimiter.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Token bucket limiting the rate of events, see 
+ * @link SimpleEventPipe#setRateLimit. 
+ * <p>
+ * The bucket holds up to burst tokens and is refilled at the given rate. 
+ * Instead of counting tokens, the limiter keeps the time at which the 
+ * bucket would be full again and moves it forward with a single CAS per 
+ * permit, so it never locks and needs no refill thread. A permit that is 
+ * not available yet can be reserved, and the caller then waits until its 
+ * slot comes up.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleRateLimiter {
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE); // time the bucket is full, in nanoTime
+    private final int burst;
+    private volatile long interval; // nanoseconds per token
+
+    /**
+     * Create a new rate limiter.
+     * 
+     * @param permitsPerSecond rate the bucket is refilled at.
+     * @param burst size of the bucket, i.e. the number of permits available
+     *        at once after an idle period.
+     */
+    public SimpleRateLimiter(double permitsPerSecond, int burst) {
+        if (burst < 1)
+            throw new IllegalArgumentException("Burst must be positive");
+        this.burst = burst;
+        setRate(permitsPerSecond);
+    }
+    
+    /**
+     * Take a permit if one is available.
+     * 
+     * @return true if a permit was taken.
+     */
+    public boolean tryAcquire() {
+        return reserve(nanoTime(), 0) == 0;
+    }
+    
+    /**
+     * Take a permit, waiting up to the timeout for one to become available.
+     * 
+     * @param timeout maximum time to wait.
+     * @param unit unit of the timeout.
+     * @return true if a permit was taken, false if it would not become 
+     * available within the timeout.
+     * @throws InterruptedException if interrupted while waiting. The permit
+     * is then lost.
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = reserve(nanoTime(), unit.toNanos(timeout));
+        if (wait < 0)
+            return false;
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+        return true;
+    }
+    
+    /**
+     * Reserve a permit if it becomes available within maxWaitNanos.
+     * 
+     * @param now current time, see @link #nanoTime.
+     * @param maxWaitNanos maximum time the caller is willing to wait.
+     * @return time to wait for the reserved permit, or minus the time until
+     * a permit is available if none was reserved.
+     */
+    long reserve(long now, long maxWaitNanos) {
+        long step = interval;
+        long capacity = step * burst;
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + step;
+            long wait = next - capacity - now;
+            if (wait > maxWaitNanos)
+                return -wait;
+            if (fullAt.compareAndSet(current, next))
+                return Math.max(wait, 0);
+        }
+    }
+    
+    /**
+     * Give back a permit reserved with @link #reserve that was not used, 
+     * e.g. because another limit rejected the event.
+     */
+    void refund() {
+        fullAt.addAndGet(-interval);
+    }
+    
+    /**
+     * Returns the current time of the limiter. Uses System.nanoTime, tests 
+     * may override it to control the refill of the bucket.
+     * 
+     * @return current time in nanoseconds.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+    
+    /**
+     * Called before each reservation by the pipe, so subclasses can adapt
+     * the rate to the state of the pipe.
+     * 
+     * @param pipe pipe the limiter is attached to.
+     * @param now current time, see @link #nanoTime.
+     */
+    void update(SimpleEventPipe pipe, long now) {
+    }
+    
+    /**
+     * Change the rate. Permits already reserved are not affected.
+     * 
+     * @param permitsPerSecond rate the bucket is refilled at.
+     */
+    public void setRate(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0))
+            throw new IllegalArgumentException("Rate must be positive");
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    }
+    
+    /**
+     * Returns the current rate.
+     * 
+     * @return permits per second.
+     */
+    public double getRate() {
+        return TimeUnit.SECONDS.toNanos(1) / (double) interval;
+    }
+
+    /**
+     * Returns the size of the bucket.
+     * 
+     * @return burst size.
+     */
+    public int getBurst() {
+        return burst;
+    }
+}
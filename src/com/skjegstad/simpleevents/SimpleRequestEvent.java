@@ -0,0 +1,88 @@
+/*
+ 
+SimpleRequestEvent.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *
+ * Event expecting a reply, triggered with @link SimpleEventPipe#request.
+ * <p>
+ * A listener in the same process answers by calling @link #reply on the
+ * request. Replies that arrive as separate events, e.g. from a remote node
+ * through a @link SimpleEventBridge, are matched to the request by its 
+ * correlation id, see @link com.skjegstad.simpleevents.interfaces.SimpleReplyEvent. 
+ * The first reply wins and later replies are ignored. Subclasses that 
+ * are sent to other processes must be serializable; the correlation id is
+ * sent with them.
+ * </p>
+ * 
+ * @param <R> reply type.
+ * @author Magnus Skjegstad
+ */
+public abstract class SimpleRequestEvent<R> implements SimpleEvent {
+    private long correlationId = 0;
+    private transient CompletableFuture<R> reply = null;
+    
+    /**
+     * Bind the request to its pending reply. Called by the pipe before the
+     * request is triggered.
+     */
+    final void bind(long correlationId, CompletableFuture<R> reply) {
+        this.correlationId = correlationId;
+        this.reply = reply;
+    }
+
+    /**
+     * Returns the id used to match replies to this request.
+     * 
+     * @return correlation id, or 0 if the request has not been sent.
+     */
+    public long getCorrelationId() {
+        return correlationId;
+    }
+    
+    /**
+     * Complete the request with a reply.
+     * 
+     * @param value reply.
+     * @return true if this was the first reply, false if the request was
+     * already answered, failed or timed out, or is a copy received from 
+     * another process.
+     */
+    public boolean reply(R value) {
+        CompletableFuture<R> r = reply;
+        return r != null && r.complete(value);
+    }
+    
+    /**
+     * Fail the request.
+     * 
+     * @param failure reason the request could not be answered.
+     * @return true if this completed the request.
+     */
+    public boolean fail(Throwable failure) {
+        CompletableFuture<R> r = reply;
+        return r != null && r.completeExceptionally(failure);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ 
+SimpleRingBufferEventPipe.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventPipeFactory;
+import com.skjegstad.simpleevents.interfaces.SimpleWaitStrategy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * Event pipe that delivers asynchronous events through a preallocated ring
+ * buffer instead of submitting a task per event.
+ * <p>
+ * Each asynchronous listener is served by a long-running consumer task on
+ * the ExecutorService. Producers claim a slot with a sequence counter, store
+ * the event and publish the sequence, without locking or allocating. 
+ * Consumers follow the published sequence using the configured
+ * @link SimpleWaitStrategy, and producers wait for the slowest consumer
+ * when the buffer is full. Synchronous listeners are run by trigger as in
+ * @link SimpleEventPipe. Batching and mailbox settings are ignored by
+ * this pipe. Pooled events are not supported, since the 
+ * ring slots are reused without tracking the consumers of each event.
+ * </p>
+ * <p>
+ * In single-producer mode only one thread may call trigger at a time. Use
+ * multi-producer mode when events are triggered from several threads.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleRingBufferEventPipe extends SimpleEventPipe {
+    private static final Consumer[] NO_CONSUMERS = new Consumer[0];
+    
+    private final ExecutorService executorService;
+    private final SimpleWaitStrategy waitStrategy;
+    private final boolean multiProducer;
+    private final SimpleEvent[] ring;
+    // Registrations each event in the ring was counted for
+    private final SimpleEventRegistry.Entry[][] ringEntries;
+    private final int mask;
+    private final int indexShift;
+    
+    // Single producer: highest published sequence. Multi producer: highest claimed sequence.
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // Multi producer only: round number of the sequence last published in each slot.
+    private final AtomicIntegerArray published;
+    // Single producer only: highest claimed sequence.
+    private long claimed = -1;
+    // Written by every producer in multi-producer mode. A stale value is only more conservative.
+    private volatile long cachedGatingSequence = -1;
+    
+    private final AtomicReference<Consumer[]> consumers = new AtomicReference<Consumer[]>(NO_CONSUMERS);
+
+    /**
+     * Create a new ring buffer pipe.
+     * 
+     * @param executorService ExecutorService used to run the consumer tasks.
+     * @param bufferSize number of slots in the ring buffer. Must be a power of two.
+     * @param waitStrategy strategy used by waiting producers and consumers.
+     * @param multiProducer true if events may be triggered from several threads concurrently.
+     */
+    public SimpleRingBufferEventPipe(ExecutorService executorService, int bufferSize, SimpleWaitStrategy waitStrategy, boolean multiProducer) {
+        super(executorService);
+        if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1)
+            throw new IllegalArgumentException("Buffer size must be a power of two");
+        this.executorService = executorService;
+        this.waitStrategy = waitStrategy;
+        this.multiProducer = multiProducer;
+        this.ring = new SimpleEvent[bufferSize];
+        this.ringEntries = new SimpleEventRegistry.Entry[bufferSize][];
+        this.mask = bufferSize - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        if (multiProducer) {
+            published = new AtomicIntegerArray(bufferSize);
+            for (int i = 0; i < bufferSize; i++)
+                published.set(i, -1);
+        } else {
+            published = null;
+        }
+    }
+    
+    /**
+     * Returns a factory for ring buffer pipes, for use with 
+     * @link SimpleEventManager#getPipe(String, SimpleEventPipeFactory).
+     * 
+     * @param bufferSize number of slots in the ring buffer. Must be a power of two.
+     * @param waitStrategy strategy used by waiting producers and consumers.
+     * @param multiProducer true if events may be triggered from several threads concurrently.
+     * @return pipe factory.
+     */
+    public static SimpleEventPipeFactory factory(final int bufferSize, final SimpleWaitStrategy waitStrategy, final boolean multiProducer) {
+        return new SimpleEventPipeFactory() {
+            @Override
+            public SimpleEventPipe createPipe(ExecutorService executorService) {
+                return new SimpleRingBufferEventPipe(executorService, bufferSize, waitStrategy, multiProducer);
+            }
+        };
+    }
+
+    /**
+     * Register a listener. Asynchronous listeners get a consumer task that
+     * follows the ring buffer from the next published event.
+     */
+    @Override
+    SimpleEventRegistry.Entry register(Class<? extends SimpleEvent> type, SimpleEventFilter<?> filter, SimpleEventListener listener) {
+        if (!(listener instanceof SimpleAsyncEventListener))
+            return super.register(type, filter, listener);
+        
+        // Gate producers before registering, so no event counted for the
+        // consumer is overwritten before it is read
+        Consumer consumer = new Consumer(type, filter, listener, cursor.get());
+        while (true) {
+            Consumer[] current = consumers.get();
+            Consumer[] updated = new Consumer[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = consumer;
+            if (consumers.compareAndSet(current, updated))
+                break;
+        }
+        add(consumer);
+        executorService.submit(consumer);
+        return consumer;
+    }
+
+    /**
+     * Remove a registration. The consumer task of an asynchronous listener
+     * stops after delivering the events already triggered, and later events
+     * that were counted for it by concurrent triggers are marked as done by
+     * the triggering thread.
+     */
+    @Override
+    boolean deregister(SimpleEventRegistry.Entry entry) {
+        if (!super.deregister(entry))
+            return false;
+        if (entry instanceof Consumer)
+            ((Consumer) entry).stop();
+        return true;
+    }
+
+    @Override
+    void deliverAsync(SimpleEventRegistry.Entry[] entries, SimpleEvent event) {
+        if (consumers.get().length == 0 || event instanceof SimplePooledEvent) {
+            asyncDone(event, entries.length);
+            if (event instanceof SimplePooledEvent)
+                throw new IllegalArgumentException("Pooled events are not supported by the ring buffer pipe");
+            return;
+        }
+        
+        long sequence = claim();
+        int index = (int) sequence & mask;
+        ring[index] = event;
+        ringEntries[index] = entries;
+        if (multiProducer)
+            published.lazySet(index, (int) (sequence >>> indexShift));
+        else
+            cursor.set(sequence); // not lazySet, stop() must see it before we read the stop sequences
+        
+        // Consumers stopped before this sequence will not read it
+        for (SimpleEventRegistry.Entry entry : entries) {
+            long stopSequence = ((Consumer) entry).stopSequence();
+            if (sequence > stopSequence)
+                asyncDone(event, 1);
+        }
+    }
+    
+    /**
+     * Claim the next sequence, waiting for the slowest consumer if the 
+     * buffer is full.
+     */
+    private long claim() {
+        long sequence;
+        if (multiProducer)
+            sequence = cursor.incrementAndGet();
+        else
+            sequence = ++claimed;
+        
+        long wrapPoint = sequence - ring.length;
+        if (wrapPoint > cachedGatingSequence) {
+            int counter = 0;
+            long gatingSequence;
+            while (wrapPoint > (gatingSequence = minimumConsumerSequence()))
+                waitStrategy.idle(counter++);
+            cachedGatingSequence = gatingSequence;
+        }
+        return sequence;
+    }
+    
+    private long minimumConsumerSequence() {
+        long minimum = Long.MAX_VALUE;
+        for (Consumer consumer : consumers.get()) 
+            minimum = Math.min(minimum, consumer.sequence.get());
+        return minimum;
+    }
+    
+    /**
+     * Returns the highest sequence that is published and can be read without
+     * gaps, starting from the given sequence. 
+     */
+    private long highestPublished(long from) {
+        long highest = cursor.get();
+        if (!multiProducer)
+            return highest;
+        
+        for (long sequence = from; sequence <= highest; sequence++) {
+            if (published.get((int) sequence & mask) != (int) (sequence >>> indexShift))
+                return sequence - 1;
+        }
+        return highest;
+    }
+    
+    private void removeConsumer(Consumer consumer) {
+        while (true) {
+            Consumer[] current = consumers.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == consumer) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return;
+            
+            Consumer[] updated;
+            if (current.length == 1) {
+                updated = NO_CONSUMERS;
+            } else {
+                updated = new Consumer[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            }
+            if (consumers.compareAndSet(current, updated))
+                return;
+        }
+    }
+    
+    /**
+     * Consumer task delivering events from the ring buffer to the 
+     * asynchronous listener of one registration. Only events that were
+     * counted for the registration are delivered.
+     */
+    private final class Consumer extends SimpleEventRegistry.Entry implements Runnable {
+        private static final long RUNNING = Long.MAX_VALUE;
+        private static final long STOPPING = Long.MIN_VALUE;
+        
+        final AtomicLong sequence;
+        // Last sequence read by the consumer, RUNNING, or STOPPING while it is being set
+        final AtomicLong stop = new AtomicLong(RUNNING);
+        // Only used by the consumer thread
+        private SimpleEventRegistry.Entry[] lastEntries;
+        private boolean lastCounted;
+
+        Consumer(Class<? extends SimpleEvent> type, SimpleEventFilter<?> filter, SimpleEventListener listener, long startSequence) {
+            super(type, filter, listener, null);
+            this.sequence = new AtomicLong(startSequence);
+        }
+        
+        /**
+         * Stop reading after the last claimed sequence. Events claimed 
+         * later are marked as done by their producers.
+         */
+        void stop() {
+            if (stop.compareAndSet(RUNNING, STOPPING))
+                stop.set(cursor.get());
+        }
+        
+        /**
+         * Returns the last sequence the consumer will read.
+         */
+        long stopSequence() {
+            long stopSequence;
+            while ((stopSequence = stop.get()) == STOPPING)
+                Thread.yield();
+            return stopSequence;
+        }
+        
+        private boolean counted(SimpleEventRegistry.Entry[] entries) {
+            // Events of the same class share the dispatch array until the listeners change
+            if (entries == lastEntries)
+                return lastCounted;
+            boolean counted = false;
+            for (SimpleEventRegistry.Entry entry : entries) {
+                if (entry == this) {
+                    counted = true;
+                    break;
+                }
+            }
+            lastEntries = entries;
+            lastCounted = counted;
+            return counted;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long next = sequence.get() + 1;
+                int counter = 0;
+                boolean interrupted = false;
+                while (next <= stopSequence()) {
+                    if (!interrupted && Thread.currentThread().isInterrupted()) {
+                        // Executor shut down, mark the remaining events as done without delivering them
+                        interrupted = true;
+                        stop();
+                        continue;
+                    }
+                    long available = Math.min(highestPublished(next), stop.get());
+                    if (available < next) {
+                        waitStrategy.idle(counter++);
+                        continue;
+                    }
+                    counter = 0;
+                    
+                    while (next <= available) {
+                        int index = (int) next & mask;
+                        next++;
+                        if (!counted(ringEntries[index]))
+                            continue;
+                        if (interrupted)
+                            asyncDone(ring[index], 1);
+                        else
+                            deliverAsyncEvent(listener, ring[index]);
+                    }
+                    sequence.lazySet(available);
+                }
+            } finally {
+                // no longer gate producers, and let them settle later events
+                stop();
+                sequence.set(Long.MAX_VALUE);
+                removeConsumer(this);
+            }
+        }
+    }
+}
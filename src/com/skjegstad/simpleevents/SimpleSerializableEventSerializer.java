@@ -0,0 +1,69 @@
+/*
+ 
+SimpleSerializableEventSerializer.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventSerializer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Event serializer using Java serialization. Events must implement 
+ * java.io.Serializable. Convenient, but slow and not zero-copy; implement
+ * @link SimpleEventSerializer for events written at high rates.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleSerializableEventSerializer implements SimpleEventSerializer {
+
+    @Override
+    public void write(SimpleEvent event, ByteBuffer buffer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(event);
+            out.close();
+            buffer.put(bytes.toByteArray());
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Unable to serialize event " + event, ex);
+        }
+    }
+
+    @Override
+    public SimpleEvent read(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            return (SimpleEvent) in.readObject();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to deserialize event", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Unable to deserialize event", ex);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ 
+SimpleSharedMemoryEventPipe.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventPipeFactory;
+import com.skjegstad.simpleevents.interfaces.SimpleEventSerializer;
+import com.skjegstad.simpleevents.interfaces.SimpleWaitStrategy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import sun.misc.Unsafe;
+
+/**
+ *
+ * Event pipe connecting two processes on the same host through a 
+ * memory-mapped ring buffer, e.g. a file in /dev/shm.
+ * <p>
+ * One process opens the pipe as producer and the other as consumer. Events
+ * triggered on the producer are delivered to its own listeners and, once 
+ * accepted by the pipe, written to the ring buffer with the given serializer. The consumer reads them on
+ * a task on its ExecutorService and triggers them on its own listeners.
+ * Any number of threads in the producing process may trigger events; space
+ * in the ring buffer is claimed with a compare-and-set, so producers do not
+ * lock. A full ring buffer makes producers wait for the consumer.
+ * </p>
+ * <p>
+ * Each record is an int length, 4 reserved bytes and the serialized event,
+ * padded to 8 bytes. The length is written after the event, so the consumer
+ * only sees complete records. A negative length marks padding up to the end
+ * of the buffer. The consumer clears the records it has read and stores its
+ * position in the file header, which the producer reads to find free space.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleSharedMemoryEventPipe extends SimpleEventPipe {
+    private static final int MAGIC = 0x53455650;
+    private static final int VERSION = 1;
+    private static final int MAGIC_INDEX = 0;
+    private static final int VERSION_INDEX = 4;
+    private static final int CAPACITY_INDEX = 8;
+    private static final int CONSUMER_POSITION_INDEX = 128;
+    private static final int HEADER_SIZE = 256;
+    private static final int RECORD_HEADER_SIZE = 8;
+    
+    // Fences order the plain reads and writes of the mapped memory, which
+    // is shared with another process and outside the Java memory model
+    private static final Unsafe UNSAFE;
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+        } catch (Exception ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+    
+    private final SimpleEventSerializer serializer;
+    private final SimpleWaitStrategy waitStrategy;
+    private final boolean producer;
+    private final ByteBuffer data;
+    private final MappedByteBuffer mapped;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong claimPosition = new AtomicLong(0);
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>();
+    private volatile boolean running = true;
+
+    private SimpleSharedMemoryEventPipe(ExecutorService executorService, MappedByteBuffer mapped, SimpleEventSerializer serializer, 
+            SimpleWaitStrategy waitStrategy, boolean producer) {
+        super(executorService);
+        this.mapped = mapped;
+        this.serializer = serializer;
+        this.waitStrategy = waitStrategy;
+        this.producer = producer;
+        this.capacity = mapped.getInt(CAPACITY_INDEX);
+        this.mask = capacity - 1;
+        mapped.position(HEADER_SIZE);
+        this.data = mapped.slice();
+        mapped.clear();
+    }
+    
+    /**
+     * Create the shared ring buffer file and open the producing end of the
+     * pipe. An existing file is overwritten.
+     * 
+     * @param executorService ExecutorService used for asynchronous listeners.
+     * @param file ring buffer file, preferably in /dev/shm.
+     * @param capacity size of the ring buffer in bytes. Must be a power of two.
+     * @param serializer serializer used to write events.
+     * @param waitStrategy strategy used while waiting for the consumer.
+     * @return producer pipe.
+     * @throws IOException if the file could not be created.
+     */
+    public static SimpleSharedMemoryEventPipe createProducer(ExecutorService executorService, File file, int capacity, 
+            SimpleEventSerializer serializer, SimpleWaitStrategy waitStrategy) throws IOException {
+        if (capacity < 64 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two of at least 64 bytes");
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer mapped;
+        try {
+            raf.setLength(0); // start from a clean file
+            raf.setLength(HEADER_SIZE + capacity);
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        } finally {
+            raf.close();
+        }
+        mapped.putInt(VERSION_INDEX, VERSION);
+        mapped.putInt(CAPACITY_INDEX, capacity);
+        mapped.putLong(CONSUMER_POSITION_INDEX, 0);
+        UNSAFE.storeFence();
+        mapped.putInt(MAGIC_INDEX, MAGIC); // file is ready
+        
+        return new SimpleSharedMemoryEventPipe(executorService, mapped, serializer, waitStrategy, true);
+    }
+    
+    /**
+     * Open the consuming end of a pipe created by another process and start
+     * delivering its events to the listeners of this pipe. Only one consumer
+     * may be open per file.
+     * 
+     * @param executorService ExecutorService used to run the consumer task and asynchronous listeners.
+     * @param file ring buffer file created by the producer.
+     * @param serializer serializer used to read events.
+     * @param waitStrategy strategy used while waiting for events.
+     * @return consumer pipe.
+     * @throws IOException if the file could not be opened or is not a pipe.
+     */
+    public static SimpleSharedMemoryEventPipe openConsumer(ExecutorService executorService, File file, 
+            SimpleEventSerializer serializer, SimpleWaitStrategy waitStrategy) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer mapped;
+        try {
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(MAGIC_INDEX) != MAGIC || mapped.getInt(VERSION_INDEX) != VERSION)
+            throw new IOException("Not a shared memory event pipe: " + file);
+        
+        final SimpleSharedMemoryEventPipe pipe = new SimpleSharedMemoryEventPipe(executorService, mapped, serializer, waitStrategy, false);
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                pipe.consume();
+            }
+        });
+        return pipe;
+    }
+    
+    /**
+     * Returns a factory creating the producing end of a shared memory pipe,
+     * for use with @link SimpleEventManager#getPipe(String, SimpleEventPipeFactory).
+     * 
+     * @param file ring buffer file, preferably in /dev/shm.
+     * @param capacity size of the ring buffer in bytes. Must be a power of two.
+     * @param serializer serializer used to write events.
+     * @param waitStrategy strategy used while waiting for the consumer.
+     * @return pipe factory.
+     */
+    public static SimpleEventPipeFactory producerFactory(final File file, final int capacity, final SimpleEventSerializer serializer, 
+            final SimpleWaitStrategy waitStrategy) {
+        return new SimpleEventPipeFactory() {
+            @Override
+            public SimpleEventPipe createPipe(ExecutorService executorService) {
+                try {
+                    return createProducer(executorService, file, capacity, serializer, waitStrategy);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Unable to create shared memory pipe " + file, ex);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Returns a factory opening the consuming end of a shared memory pipe,
+     * for use with @link SimpleEventManager#getPipe(String, SimpleEventPipeFactory).
+     * 
+     * @param file ring buffer file created by the producer.
+     * @param serializer serializer used to read events.
+     * @param waitStrategy strategy used while waiting for events.
+     * @return pipe factory.
+     */
+    public static SimpleEventPipeFactory consumerFactory(final File file, final SimpleEventSerializer serializer, 
+            final SimpleWaitStrategy waitStrategy) {
+        return new SimpleEventPipeFactory() {
+            @Override
+            public SimpleEventPipe createPipe(ExecutorService executorService) {
+                try {
+                    return openConsumer(executorService, file, serializer, waitStrategy);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Unable to open shared memory pipe " + file, ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * On the producer, write the event to the shared ring buffer once the
+     * pipe has accepted it, waiting for space if the buffer is full. Events
+     * rejected after shutdown or by a rate limit are not written.
+     * 
+     * @param event accepted event.
+     * @throws IllegalArgumentException if the serialized event is empty or does not fit in the ring buffer.
+     */
+    @Override
+    void accepted(SimpleEvent event) {
+        if (producer)
+            publish(event);
+    }
+    
+    /**
+     * Returns true if this is the producing end of the pipe.
+     * 
+     * @return true for the producer, false for the consumer.
+     */
+    public boolean isProducer() {
+        return producer;
+    }
+    
+    /**
+     * Stop the consumer task. Events already in the ring buffer stay there.
+     */
+    public void close() {
+        running = false;
+    }
+    
+    private void publish(SimpleEvent event) {
+        ByteBuffer payload = serialize(event);
+        int length = payload.remaining();
+        if (length == 0) // a zero length marks a record that is not yet committed
+            throw new IllegalArgumentException("Serialized event is empty: " + event);
+        int recordLength = align(RECORD_HEADER_SIZE + length);
+        if (recordLength > capacity)
+            throw new IllegalArgumentException("Event does not fit in the shared ring buffer: " + event);
+        
+        while (true) {
+            long position = claimPosition.get();
+            int index = (int) position & mask;
+            int toEnd = capacity - index;
+            long claimed = recordLength <= toEnd ? recordLength : toEnd + recordLength;
+            
+            int counter = 0;
+            while (position + claimed - consumerPosition() > capacity) {
+                waitStrategy.idle(counter++);
+                if (claimPosition.get() != position)
+                    break;
+            }
+            if (position + claimed - consumerPosition() > capacity)
+                continue; // another producer claimed the space first
+            
+            if (claimPosition.compareAndSet(position, position + claimed)) {
+                if (recordLength > toEnd) {
+                    data.putInt(index, -toEnd);
+                    index = 0;
+                }
+                ByteBuffer target = data.duplicate();
+                target.position(index + RECORD_HEADER_SIZE);
+                target.put(payload);
+                UNSAFE.storeFence(); // the record before its length
+                data.putInt(index, length); // commit the record
+                return;
+            }
+        }
+    }
+    
+    private ByteBuffer serialize(SimpleEvent event) {
+        ByteBuffer buffer = scratch.get();
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(256);
+        while (true) {
+            buffer.clear();
+            try {
+                serializer.write(event, buffer);
+                break;
+            } catch (BufferOverflowException ex) {
+                if (buffer.capacity() >= capacity)
+                    throw new IllegalArgumentException("Event does not fit in the shared ring buffer: " + event);
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+        scratch.set(buffer);
+        buffer.flip();
+        return buffer;
+    }
+    
+    private long consumerPosition() {
+        long position = mapped.getLong(CONSUMER_POSITION_INDEX);
+        UNSAFE.loadFence(); // the position before writing to the space it frees
+        return position;
+    }
+    
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+    
+    /**
+     * Read records from the ring buffer and trigger them on this pipe until
+     * closed or interrupted. Events that cannot be read, and exceptions from
+     * synchronous listeners that are not isolated, are passed to the 
+     * dead-letter pipe and the consumer continues with the next record.
+     */
+    private void consume() {
+        long position = mapped.getLong(CONSUMER_POSITION_INDEX);
+        int counter = 0;
+        while (running && !Thread.currentThread().isInterrupted()) {
+            int index = (int) position & mask;
+            int length = data.getInt(index);
+            if (length == 0) {
+                waitStrategy.idle(counter++);
+                continue;
+            }
+            UNSAFE.loadFence(); // the length before the record
+            counter = 0;
+            
+            if (length < 0) { // padding to the end of the buffer
+                clear(index, -length);
+                position += -length;
+                UNSAFE.storeFence(); // the cleared record before the position
+                mapped.putLong(CONSUMER_POSITION_INDEX, position);
+                continue;
+            }
+            
+            SimpleEvent event = null;
+            RuntimeException readFailure = null;
+            try {
+                ByteBuffer record = data.duplicate();
+                record.limit(index + RECORD_HEADER_SIZE + length);
+                record.position(index + RECORD_HEADER_SIZE);
+                event = serializer.read(record.slice());
+            } catch (RuntimeException ex) {
+                readFailure = ex;
+            }
+            
+            int recordLength = align(RECORD_HEADER_SIZE + length);
+            clear(index, recordLength);
+            position += recordLength;
+            UNSAFE.storeFence();
+            mapped.putLong(CONSUMER_POSITION_INDEX, position);
+            
+            // A failed event must not stop the consumer, only close does
+            if (readFailure != null) {
+                deadLetter(null, null, readFailure, 1);
+                continue;
+            }
+            try {
+                trigger(event);
+            } catch (RejectedExecutionException ex) {
+                // counted as rejected by trigger
+            } catch (RuntimeException ex) {
+                deadLetter(null, event, ex, 1);
+            }
+        }
+    }
+    
+    private void clear(int index, int length) {
+        for (int i = index + length - 8; i >= index; i -= 8)
+            data.putLong(i, 0);
+    }
+}
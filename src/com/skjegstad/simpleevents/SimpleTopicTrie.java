@@ -0,0 +1,174 @@
+/*
+ 
+SimpleTopicTrie.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *
+ * Trie of topic patterns, used to find the subscriptions matching a 
+ * hierarchical pipe name.
+ * <p>
+ * Names and patterns are split into segments separated by dots. In a 
+ * pattern, "*" matches exactly one segment and "#" matches zero or more
+ * segments, so "orders.*.created" matches "orders.eu.created" and
+ * "orders.#" matches "orders" and "orders.eu.created". Looking up a name
+ * only visits the branches of the trie that can match it.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ * 
+ * @author Magnus Skjegstad
+ */
+final class SimpleTopicTrie<V> {
+    static final String ANY_SEGMENT = "*";
+    static final String ANY_SEGMENTS = "#";
+    
+    private final Node<V> root = new Node<V>();
+    
+    /**
+     * Add a value for the given pattern. The same value may be added more
+     * than once.
+     * 
+     * @param pattern topic pattern.
+     * @param value value to add.
+     */
+    void add(String pattern, V value) {
+        Node<V> node = root;
+        for (String segment : split(pattern)) {
+            Node<V> child = node.children.get(segment);
+            if (child == null) {
+                child = new Node<V>();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        node.values.add(value);
+    }
+    
+    /**
+     * Remove one occurrence of a value for the given pattern.
+     * 
+     * @param pattern topic pattern.
+     * @param value value to remove.
+     * @return the removed value, which is equal to the given value, or null if it was not found.
+     */
+    V remove(String pattern, V value) {
+        return remove(root, split(pattern), 0, value);
+    }
+    
+    private V remove(Node<V> node, String[] segments, int index, V value) {
+        if (index == segments.length) {
+            int i = node.values.indexOf(value);
+            return i < 0 ? null : node.values.remove(i);
+        }
+        Node<V> child = node.children.get(segments[index]);
+        if (child == null)
+            return null;
+        V removed = remove(child, segments, index + 1, value);
+        if (removed != null && child.values.isEmpty() && child.children.isEmpty())
+            node.children.remove(segments[index]);
+        return removed;
+    }
+    
+    /**
+     * Returns the values of all patterns matching the given name, once for
+     * each matching pattern, also when a pattern with more than one "#" 
+     * matches the name in several ways.
+     * 
+     * @param name topic name.
+     * @return matching values.
+     */
+    List<V> match(String name) {
+        Set<Node<V>> nodes = new LinkedHashSet<Node<V>>(); // nodes are compared by identity
+        match(root, split(name), 0, nodes);
+        List<V> matches = new ArrayList<V>();
+        for (Node<V> node : nodes)
+            matches.addAll(node.values);
+        return matches;
+    }
+    
+    private void match(Node<V> node, String[] segments, int index, Set<Node<V>> nodes) {
+        Node<V> anySegments = node.children.get(ANY_SEGMENTS);
+        if (anySegments != null) {
+            // "#" consumes any number of the remaining segments, and may be followed by another "#"
+            for (int i = index; i <= segments.length; i++)
+                match(anySegments, segments, i, nodes);
+        }
+        matchOnce(node, segments, index, nodes);
+    }
+    
+    private void matchOnce(Node<V> node, String[] segments, int index, Set<Node<V>> nodes) {
+        if (index == segments.length) {
+            if (!node.values.isEmpty())
+                nodes.add(node);
+            return;
+        }
+        Node<V> child = node.children.get(segments[index]);
+        if (child != null)
+            match(child, segments, index + 1, nodes);
+        Node<V> anySegment = node.children.get(ANY_SEGMENT);
+        if (anySegment != null)
+            match(anySegment, segments, index + 1, nodes);
+    }
+    
+    /**
+     * Returns true if the pattern matches the name.
+     * 
+     * @param pattern topic pattern.
+     * @param name topic name.
+     * @return true on match.
+     */
+    static boolean matches(String pattern, String name) {
+        return matches(split(pattern), 0, split(name), 0);
+    }
+    
+    private static boolean matches(String[] pattern, int p, String[] name, int n) {
+        if (p == pattern.length)
+            return n == name.length;
+        if (pattern[p].equals(ANY_SEGMENTS)) {
+            for (int i = n; i <= name.length; i++)
+                if (matches(pattern, p + 1, name, i))
+                    return true;
+            return false;
+        }
+        if (n == name.length)
+            return false;
+        if (pattern[p].equals(ANY_SEGMENT) || pattern[p].equals(name[n]))
+            return matches(pattern, p + 1, name, n + 1);
+        return false;
+    }
+    
+    private static String[] split(String topic) {
+        return topic.split("\\.", -1);
+    }
+    
+    private static final class Node<V> {
+        final HashMap<String, Node<V>> children = new HashMap<String, Node<V>>();
+        final List<V> values = new ArrayList<V>(1);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ 
+SimpleWaitStrategies.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleWaitStrategy;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Built-in wait strategies for ring buffer pipes.
+ * 
+ * @author Magnus Skjegstad
+ */
+public final class SimpleWaitStrategies {
+    
+    /**
+     * Spin without giving up the CPU. Lowest latency, but keeps one core busy
+     * per waiting thread.
+     */
+    public static final SimpleWaitStrategy BUSY_SPIN = new SimpleWaitStrategy() {
+        @Override
+        public void idle(int counter) {
+        }
+    };
+    
+    /**
+     * Spin for a short while, then yield the CPU to other threads.
+     */
+    public static final SimpleWaitStrategy YIELD = new SimpleWaitStrategy() {
+        @Override
+        public void idle(int counter) {
+            if (counter > 100)
+                Thread.yield();
+        }
+    };
+    
+    /**
+     * Spin, then yield, then park the thread for short periods. Uses the
+     * least CPU when idle, at the cost of wakeup latency.
+     */
+    public static final SimpleWaitStrategy PARK = new SimpleWaitStrategy() {
+        @Override
+        public void idle(int counter) {
+            if (counter > 200)
+                LockSupport.parkNanos(1000);
+            else if (counter > 100)
+                Thread.yield();
+        }
+    };
+    
+    private SimpleWaitStrategies() {
+    }
+}
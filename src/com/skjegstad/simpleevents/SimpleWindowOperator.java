@@ -0,0 +1,307 @@
+/*
+ 
+SimpleWindowOperator.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ *
+ * Incremental per-key aggregation of a windowed stream, emitting a 
+ * @link SimpleWindowResult for each key and window to a target pipe. 
+ * Created by the aggregations of @link SimpleKeyedEventStream and started 
+ * by one of the to methods, which add the operator as a synchronous 
+ * listener to the source pipe.
+ * <p>
+ * Time is divided into slides. The state of each slide is a primitive map
+ * from key to aggregate, so events are folded into the aggregate as they
+ * arrive without boxing or allocating. Keys are spread over stripes with 
+ * their own lock and slide maps, so producers only contend when they
+ * update keys in the same stripe. The maps of a slide are reused once 
+ * the slide has left all windows.
+ * </p>
+ * <p>
+ * When an event arrives in a new slide, the windows ending before it are 
+ * emitted by the triggering thread, one result per key. This is the only
+ * time the stripes are visited together. Results are triggered on the 
+ * target pipe in window order.
+ * </p>
+ * 
+ * @param <E> type of events aggregated.
+ * @author Magnus Skjegstad
+ */
+public class SimpleWindowOperator<E extends SimpleEvent> implements SimpleEventListener {
+    private final SimpleEventStream<E> stream;
+    private final ToLongFunction<? super E> key;
+    private final ToLongFunction<? super E> timestamp;
+    private final ToLongFunction<? super E> value;
+    private final LongBinaryOperator op;
+    private final long slide;
+    private final int slides; // slides per window
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    
+    private final Object emitLock = new Object();
+    // Highest slide seen. Windows ending at or before its start have been emitted.
+    private volatile long watermark = Long.MIN_VALUE;
+    private final AtomicLong lateEvents = new AtomicLong(0);
+    private volatile SimpleEventStream.Sink sink = null;
+
+    SimpleWindowOperator(SimpleEventStream<E> stream, ToLongFunction<? super E> key, SimpleEventWindow window, ToLongFunction<? super E> timestamp, ToLongFunction<? super E> value, LongBinaryOperator op) {
+        this.stream = stream;
+        this.key = key;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.op = op;
+        this.slide = window.getSlide();
+        this.slides = (int) (window.getSize() / window.getSlide());
+        
+        int stripeCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new Stripe(slides);
+        this.stripeMask = stripeCount - 1;
+    }
+    
+    /**
+     * Start the operator, emitting results to the target pipe.
+     * 
+     * @param target pipe receiving the window results.
+     * @return this operator.
+     */
+    public SimpleWindowOperator<E> to(SimpleEventPipe target) {
+        return to(new SimpleEventStream.Sink(target, null, null));
+    }
+    
+    /**
+     * Start the operator, emitting results to the named pipe of the manager.
+     * 
+     * @param manager event manager owning the target pipe.
+     * @param pipeName name of the target pipe.
+     * @return this operator.
+     */
+    public SimpleWindowOperator<E> to(SimpleEventManager manager, String pipeName) {
+        return to(new SimpleEventStream.Sink(null, manager, pipeName));
+    }
+    
+    private SimpleWindowOperator<E> to(SimpleEventStream.Sink sink) {
+        if (this.sink != null)
+            throw new IllegalStateException("Window operator is already started");
+        this.sink = sink;
+        stream.source.listen(stream.type, this);
+        return this;
+    }
+
+    @Override
+    public void receiveEvent(SimpleEvent event) {
+        E e = stream.apply(event);
+        if (e == null)
+            return;
+        
+        long ts = timestamp != null ? timestamp.applyAsLong(e) : System.currentTimeMillis();
+        long s = Math.floorDiv(ts, slide);
+        if (s > watermark)
+            advance(s);
+        if (s <= watermark - slides) {
+            lateEvents.incrementAndGet();
+            return;
+        }
+        
+        long k = key.applyAsLong(e);
+        Stripe stripe = stripes[SimpleLongLongMap.slot(k, stripeMask)];
+        synchronized (stripe) {
+            if (!stripe.add(s, k, value.applyAsLong(e), op))
+                lateEvents.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Emit the windows ending at or before the given time, e.g. from a timer
+     * when events arrive too rarely to close windows in time. Events for 
+     * emitted windows are counted as late.
+     * 
+     * @param time time in milliseconds, in the same clock as the windows.
+     */
+    public void advanceTo(long time) {
+        long s = Math.floorDiv(time, slide);
+        if (s > watermark)
+            advance(s);
+    }
+    
+    /**
+     * Stop the operator. It is removed from the source pipe and all windows
+     * holding events are emitted.
+     */
+    public void close() {
+        stream.source.unlisten(this);
+        synchronized (emitLock) {
+            long current = watermark;
+            if (current != Long.MIN_VALUE)
+                advance(current + slides);
+        }
+    }
+    
+    /**
+     * Returns the number of events dropped because their windows had 
+     * already been emitted.
+     * 
+     * @return late events.
+     */
+    public long getLateEvents() {
+        return lateEvents.get();
+    }
+    
+    /**
+     * Emit the windows ending after the current slide and at or before the
+     * start of slide s, and make s the current slide.
+     */
+    private void advance(long s) {
+        synchronized (emitLock) {
+            long current = watermark;
+            if (s <= current)
+                return;
+            if (current != Long.MIN_VALUE) {
+                // Windows ending after current + slides hold no events
+                long last = Math.min(s, current + slides);
+                for (long end = current + 1; end <= last; end++)
+                    emit(end);
+                // Close the slides of the windows skipped above, so concurrent
+                // producers that have not seen the new watermark count them as late
+                for (Stripe stripe : stripes) {
+                    synchronized (stripe) {
+                        stripe.close(s - slides);
+                    }
+                }
+            }
+            watermark = s;
+        }
+    }
+    
+    /**
+     * Emit the window ending at the start of slide end.
+     */
+    private void emit(long end) {
+        long windowStart = (end - slides) * slide;
+        long windowEnd = end * slide;
+        SimpleEventStream.Sink target = sink;
+        for (Stripe stripe : stripes) {
+            List<SimpleWindowResult> results;
+            synchronized (stripe) {
+                results = stripe.collect(end, op, windowStart, windowEnd);
+            }
+            if (results != null && target != null) {
+                SimpleEventPipe pipe = target.pipe();
+                for (SimpleWindowResult result : results)
+                    pipe.trigger(result);
+            }
+        }
+    }
+    
+    /**
+     * Keys of one stripe, with one map per slide in the window. Guarded by
+     * its own monitor.
+     */
+    private static final class Stripe {
+        final SimpleLongLongMap[] maps;
+        final long[] slideIds;
+        final SimpleLongLongMap window; // combines the slides of a sliding window
+        long closed = Long.MIN_VALUE; // slides at or before this are in no window left to emit
+
+        Stripe(int slides) {
+            maps = new SimpleLongLongMap[slides];
+            slideIds = new long[slides];
+            for (int i = 0; i < slides; i++) {
+                maps[i] = new SimpleLongLongMap(16);
+                slideIds[i] = Long.MIN_VALUE;
+            }
+            window = slides > 1 ? new SimpleLongLongMap(16) : null;
+        }
+        
+        /**
+         * Fold the value into the slide. Returns false if all windows of the
+         * slide have been emitted, or the map of the slide has already been
+         * reused for a newer slide.
+         */
+        boolean add(long s, long key, long value, LongBinaryOperator op) {
+            if (s <= closed)
+                return false;
+            int i = (int) Math.floorMod(s, (long) maps.length);
+            if (slideIds[i] != s) {
+                if (slideIds[i] > s)
+                    return false;
+                maps[i].clear();
+                slideIds[i] = s;
+            }
+            maps[i].merge(key, value, op);
+            return true;
+        }
+        
+        /**
+         * Reject events for slides at or before s, as no window left to 
+         * emit contains them.
+         */
+        void close(long s) {
+            if (s > closed)
+                closed = s;
+        }
+        
+        /**
+         * Returns the results of the window made up of the slides before 
+         * end, or null if the stripe has no events in the window.
+         */
+        List<SimpleWindowResult> collect(long end, LongBinaryOperator op, long windowStart, long windowEnd) {
+            close(end - maps.length);
+            SimpleLongLongMap result;
+            if (window == null) {
+                int i = (int) Math.floorMod(end - 1, (long) maps.length);
+                if (slideIds[i] != end - 1)
+                    return null;
+                result = maps[i];
+            } else {
+                window.clear();
+                for (long s = end - maps.length; s < end; s++) {
+                    int i = (int) Math.floorMod(s, (long) maps.length);
+                    if (slideIds[i] != s)
+                        continue;
+                    SimpleLongLongMap map = maps[i];
+                    for (int slot = 0; slot < map.capacity(); slot++)
+                        if (map.isUsed(slot))
+                            window.merge(map.keyAt(slot), map.valueAt(slot), op);
+                }
+                result = window;
+            }
+            if (result.size() == 0)
+                return null;
+            
+            List<SimpleWindowResult> results = new ArrayList<SimpleWindowResult>(result.size());
+            for (int slot = 0; slot < result.capacity(); slot++)
+                if (result.isUsed(slot))
+                    results.add(new SimpleWindowResult(result.keyAt(slot), windowStart, windowEnd, result.valueAt(slot)));
+            return results;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ 
+SimpleWindowResult.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleKeyedEvent;
+
+/**
+ *
+ * Event emitted by a @link SimpleWindowOperator with the aggregate of one
+ * key in one window.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleWindowResult implements SimpleKeyedEvent {
+    private final long key;
+    private final long windowStart;
+    private final long windowEnd;
+    private final long value;
+
+    /**
+     * Create a new window result.
+     * 
+     * @param key key of the aggregated events.
+     * @param windowStart start of the window, inclusive, in milliseconds.
+     * @param windowEnd end of the window, exclusive, in milliseconds.
+     * @param value aggregate of the events.
+     */
+    public SimpleWindowResult(long key, long windowStart, long windowEnd, long value) {
+        this.key = key;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.value = value;
+    }
+
+    /**
+     * Returns the key of the aggregated events.
+     * 
+     * @return key.
+     */
+    public long getKey() {
+        return key;
+    }
+
+    @Override
+    public Object getEventKey() {
+        return key;
+    }
+
+    /**
+     * Returns the start of the window.
+     * 
+     * @return inclusive start in milliseconds.
+     */
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    /**
+     * Returns the end of the window.
+     * 
+     * @return exclusive end in milliseconds.
+     */
+    public long getWindowEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * Returns the aggregate of the events with the key in the window.
+     * 
+     * @return aggregate.
+     */
+    public long getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "SimpleWindowResult{" + "key=" + key + ", windowStart=" + windowStart + ", windowEnd=" + windowEnd + ", value=" + value + '}';
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ 
+SimpleAsyncBatchEventListener.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents.interfaces;
+
+import java.util.List;
+
+/**
+ *
+ * Asynchronous event listeners that extend this interface receive events in
+ * batches when batching is enabled on the event pipe. When batching is 
+ * disabled, events are delivered one at a time through receiveEvent.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleAsyncBatchEventListener extends SimpleAsyncEventListener {
+    public void receiveEvents(List<SimpleEvent> events);
+}
@@ -0,0 +1,36 @@
+/*
+ 
+SimpleEventFactory.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents.interfaces;
+
+/**
+ *
+ * Creates new events for an event pool.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleEventFactory<E extends SimpleEvent> {
+    /**
+     * Create a new, empty event.
+     * 
+     * @return new event.
+     */
+    public E newEvent();
+}
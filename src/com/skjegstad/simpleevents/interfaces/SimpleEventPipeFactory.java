@@ -0,0 +1,36 @@
+/*
+ 
+SimpleEventPipeFactory.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents.interfaces;
+
+import com.skjegstad.simpleevents.SimpleEventPipe;
+import java.util.concurrent.ExecutorService;
+
+/**
+ *
+ * Factory used by the event manager to create new event pipes. Implement
+ * this interface to let the event manager create other kinds of pipes.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleEventPipeFactory {
+    public SimpleEventPipe createPipe(ExecutorService executorService);
+}
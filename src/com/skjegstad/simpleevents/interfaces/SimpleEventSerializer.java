@@ -0,0 +1,51 @@
+/*
+ 
+SimpleEventSerializer.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents.interfaces;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Converts events to and from bytes, e.g. for the event journal. 
+ * Implementations should write directly into the given buffer, which may be
+ * backed by a memory-mapped file.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleEventSerializer {
+    /**
+     * Write the event at the position of the buffer.
+     * 
+     * @param event event to write.
+     * @param buffer buffer to write to. 
+     * @throws java.nio.BufferOverflowException if the event does not fit in the buffer.
+     */
+    public void write(SimpleEvent event, ByteBuffer buffer);
+    
+    /**
+     * Read an event written by write. 
+     * 
+     * @param buffer buffer positioned at the start of the event, limited to its end.
+     * @return the event.
+     */
+    public SimpleEvent read(ByteBuffer buffer);
+}
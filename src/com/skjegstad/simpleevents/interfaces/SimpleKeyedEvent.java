@@ -0,0 +1,38 @@
+/*
+ 
+SimpleKeyedEvent.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents.interfaces;
+
+/**
+ *
+ * Events with a key. Pending events with the same key may be replaced by
+ * newer events before they are delivered, e.g. when a mailbox overflows
+ * with the COALESCE policy.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleKeyedEvent extends SimpleEvent {
+    /**
+     * Returns the key of this event. Keys must implement equals and hashCode.
+     * 
+     * @return event key.
+     */
+    public Object getEventKey();
+}
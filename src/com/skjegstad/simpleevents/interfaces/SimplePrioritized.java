@@ -0,0 +1,40 @@
+/*
+ 
+SimplePrioritized.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents.interfaces;
+
+import com.skjegstad.simpleevents.SimpleEventPriority;
+
+/**
+ *
+ * Events or listeners with a delivery priority. The priority of an event
+ * overrides the priority of the listener, which overrides the priority of
+ * the pipe. Only used when the pipe runs on a @link SimplePriorityExecutor.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimplePrioritized {
+    /**
+     * Returns the priority of this event or listener.
+     * 
+     * @return delivery priority.
+     */
+    public SimpleEventPriority getPriority();
+}
@@ -0,0 +1,46 @@
+/*
+ 
+SimpleReplyEvent.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents.interfaces;
+
+/**
+ *
+ * Event carrying the reply to a @link com.skjegstad.simpleevents.SimpleRequestEvent.
+ * When a reply event is triggered on the pipe the request was sent on, the 
+ * pending request with the same correlation id completes with the reply. 
+ * The reply event is also delivered to the listeners of the pipe as usual.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleReplyEvent extends SimpleEvent {
+    /**
+     * Returns the correlation id of the request this event answers.
+     * 
+     * @return correlation id.
+     */
+    public long getCorrelationId();
+    
+    /**
+     * Returns the reply.
+     * 
+     * @return reply value.
+     */
+    public Object getReply();
+}
@@ -0,0 +1,40 @@
+/*
+ 
+SimpleWaitStrategy.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+
+package com.skjegstad.simpleevents.interfaces;
+
+/**
+ *
+ * Strategy used by ring buffer pipes while waiting for events to be
+ * published or for space to become available. See 
+ * @see com.skjegstad.simpleevents.SimpleWaitStrategies for the built-in
+ * strategies.
+ * 
+ * @author Magnus Skjegstad
+ */
+public interface SimpleWaitStrategy {
+    /**
+     * Called each time a waiting thread finds no progress. 
+     * 
+     * @param counter number of times idle has been called since the last progress.
+     */
+    public void idle(int counter);
+}
@@ -0,0 +1,194 @@
+/*
+ 
+SimpleEventBridgeTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventSerializer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleEventBridge.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventBridgeTest {
+    private SimpleEventManager managerA;
+    private SimpleEventManager managerB;
+    private SimpleEventBridge bridgeA;
+    private SimpleEventBridge bridgeB;
+    
+    static class NumberEvent implements SimpleEvent {
+        final int number;
+        NumberEvent(int number) {
+            this.number = number;
+        }
+    }
+    
+    static class NumberEventSerializer implements SimpleEventSerializer {
+        @Override
+        public void write(SimpleEvent event, ByteBuffer buffer) {
+            buffer.putInt(((NumberEvent) event).number);
+        }
+
+        @Override
+        public SimpleEvent read(ByteBuffer buffer) {
+            return new NumberEvent(buffer.getInt());
+        }
+    }
+    
+    static class CollectingListener implements SimpleEventListener {
+        final List<Integer> numbers = new ArrayList<Integer>();
+        
+        @Override
+        public synchronized void receiveEvent(SimpleEvent event) {
+            numbers.add(((NumberEvent) event).number);
+        }
+        
+        synchronized int size() {
+            return numbers.size();
+        }
+        
+        void await(int size) throws InterruptedException {
+            for (int i = 0; i < 100 && size() < size; i++)
+                Thread.sleep(50);
+        }
+    }
+    
+    @Before
+    public void setUp() {
+        managerA = new SimpleEventManager("A");
+        managerB = new SimpleEventManager("B");
+    }
+    
+    @After
+    public void tearDown() {
+        if (bridgeA != null)
+            bridgeA.close();
+        if (bridgeB != null)
+            bridgeB.close();
+        managerA.shutdown();
+        managerB.shutdown();
+    }
+    
+    private static InetSocketAddress loopback(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Test of bridge method, of class SimpleEventBridge.
+     */
+    @Test
+    public void testBridge() throws IOException, InterruptedException {
+        System.out.println("bridge");
+        bridgeA = new SimpleEventBridge(managerA, new NumberEventSerializer());
+        bridgeB = new SimpleEventBridge(managerB, new NumberEventSerializer());
+        bridgeA.bridge("orders");
+        bridgeB.bridge("orders");
+        InetSocketAddress address = bridgeA.bind(loopback(0));
+        bridgeB.connect(address);
+        for (int i = 0; i < 100 && (bridgeA.getConnectedPeers() < 1 || bridgeB.getConnectedPeers() < 1); i++)
+            Thread.sleep(50);
+        assertEquals(1, bridgeA.getConnectedPeers());
+        
+        CollectingListener listenerA = new CollectingListener();
+        CollectingListener listenerB = new CollectingListener();
+        CollectingListener otherB = new CollectingListener();
+        managerA.getPipe("orders").listen(listenerA);
+        managerB.getPipe("orders").listen(listenerB);
+        managerB.getPipe("other").listen(otherB);
+        
+        for (int i = 0; i < 10000; i++)
+            managerA.getPipe("orders").trigger(new NumberEvent(i));
+        managerA.getPipe("other").trigger(new NumberEvent(-1));
+        listenerB.await(10000);
+        assertEquals(10000, listenerB.size());
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i, (int) listenerB.numbers.get(i));
+        
+        for (int i = 0; i < 10; i++)
+            managerB.getPipe("orders").trigger(new NumberEvent(i));
+        listenerA.await(10010);
+        Thread.sleep(200); // events must not be sent back
+        assertEquals(10010, listenerA.size());
+        assertEquals(10010, listenerB.size());
+        assertEquals(0, otherB.size());
+        assertEquals(0, bridgeA.getDroppedEvents());
+    }
+    
+    /**
+     * Test of connect method, of class SimpleEventBridge.
+     */
+    @Test
+    public void testReconnect() throws IOException, InterruptedException {
+        System.out.println("reconnect");
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        
+        bridgeB = new SimpleEventBridge(managerB, new NumberEventSerializer(), 1000, 50);
+        bridgeB.bridge("orders");
+        bridgeB.connect(loopback(port));
+        for (int i = 0; i < 100; i++)
+            managerB.getPipe("orders").trigger(new NumberEvent(i)); // buffered until A is up
+        Thread.sleep(200);
+        
+        bridgeA = new SimpleEventBridge(managerA, new NumberEventSerializer());
+        bridgeA.bridge("orders");
+        CollectingListener listenerA = new CollectingListener();
+        managerA.getPipe("orders").listen(listenerA);
+        bridgeA.bind(loopback(port));
+        
+        listenerA.await(100);
+        assertEquals(100, listenerA.size());
+        assertEquals(0, (int) listenerA.numbers.get(0));
+        assertEquals(0, bridgeB.getDroppedEvents());
+    }
+    
+    /**
+     * Test of getDroppedEvents method, of class SimpleEventBridge.
+     */
+    @Test
+    public void testGetDroppedEvents() throws IOException {
+        System.out.println("getDroppedEvents");
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        
+        bridgeB = new SimpleEventBridge(managerB, new NumberEventSerializer(), 10, 1000);
+        bridgeB.bridge("orders");
+        bridgeB.connect(loopback(port));
+        for (int i = 0; i < 25; i++)
+            managerB.getPipe("orders").trigger(new NumberEvent(i));
+        assertEquals(15, bridgeB.getDroppedEvents());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ 
+SimpleEventJournalTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventSerializer;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleEventJournal.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventJournalTest {
+    private File directory;
+    
+    static class NumberEvent implements SimpleEvent, Serializable {
+        private static final long serialVersionUID = 1L;
+        final int number;
+        NumberEvent(int number) {
+            this.number = number;
+        }
+    }
+    
+    static class NumberEventSerializer implements SimpleEventSerializer {
+        @Override
+        public void write(SimpleEvent event, ByteBuffer buffer) {
+            buffer.putInt(((NumberEvent) event).number);
+        }
+
+        @Override
+        public SimpleEvent read(ByteBuffer buffer) {
+            return new NumberEvent(buffer.getInt());
+        }
+    }
+    
+    static class CollectingListener implements SimpleEventListener {
+        final List<Integer> numbers = new ArrayList<Integer>();
+        
+        @Override
+        public synchronized void receiveEvent(SimpleEvent event) {
+            numbers.add(((NumberEvent) event).number);
+        }
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("simpleevents-journal", "");
+        directory.delete();
+    }
+    
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Test of append and replay methods, of class SimpleEventJournal.
+     */
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        System.out.println("append and replay");
+        // 8 bytes per record, so each segment holds 8 events
+        SimpleEventJournal instance = new SimpleEventJournal(directory, new NumberEventSerializer(), 64, 100, 0);
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, instance.append(new NumberEvent(i)));
+        assertEquals(0, instance.getStartOffset());
+        assertEquals(20, instance.getEndOffset());
+        assertEquals(3, directory.list().length);
+        
+        CollectingListener listener = new CollectingListener();
+        assertEquals(15, instance.replay(5, 15, listener));
+        assertEquals(10, listener.numbers.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i + 5, (int) listener.numbers.get(i));
+        
+        listener = new CollectingListener();
+        assertEquals(20, instance.replay(18, Long.MAX_VALUE, listener));
+        assertEquals(2, listener.numbers.size());
+        instance.close();
+        
+        // Reopen and continue after the recovered events
+        instance = new SimpleEventJournal(directory, new NumberEventSerializer(), 64, 100, 10);
+        assertEquals(20, instance.getEndOffset());
+        assertEquals(20, instance.append(new NumberEvent(20)));
+        listener = new CollectingListener();
+        instance.replay(0, Long.MAX_VALUE, listener);
+        assertEquals(21, listener.numbers.size());
+        assertEquals(20, (int) listener.numbers.get(20));
+        instance.close();
+    }
+    
+    /**
+     * Test of segment retention, of class SimpleEventJournal.
+     */
+    @Test
+    public void testRetention() throws IOException {
+        System.out.println("retention");
+        SimpleEventJournal instance = new SimpleEventJournal(directory, new NumberEventSerializer(), 64, 2, 0);
+        for (int i = 0; i < 40; i++)
+            instance.append(new NumberEvent(i));
+        assertEquals(2, directory.list().length);
+        assertEquals(24, instance.getStartOffset());
+        
+        CollectingListener listener = new CollectingListener();
+        assertEquals(40, instance.replay(0, Long.MAX_VALUE, listener));
+        assertEquals(16, listener.numbers.size());
+        assertEquals(24, (int) listener.numbers.get(0));
+        instance.close();
+    }
+    
+    /**
+     * Test of listening from an offset on a journaled pipe.
+     */
+    @Test
+    public void testListenFromOffset() throws IOException {
+        System.out.println("listen from offset");
+        SimpleEventJournal journal = new SimpleEventJournal(directory, new SimpleSerializableEventSerializer(), 1 << 20, 4, 10);
+        SimpleEventPipe pipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        pipe.setJournal(journal);
+        assertSame(journal, pipe.getJournal());
+        
+        for (int i = 0; i < 10; i++)
+            pipe.trigger(new NumberEvent(i));
+        
+        CollectingListener listener = new CollectingListener();
+        pipe.listen(NumberEvent.class, listener, 4);
+        assertEquals(6, listener.numbers.size());
+        
+        for (int i = 10; i < 15; i++)
+            pipe.trigger(new NumberEvent(i));
+        assertEquals(11, listener.numbers.size());
+        for (int i = 0; i < 11; i++)
+            assertEquals(i + 4, (int) listener.numbers.get(i));
+        journal.close();
+    }
+}
@@ -22,7 +22,16 @@ package com.skjegstad.simpleevents;
 
 import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
 import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -47,6 +56,38 @@ public class SimpleEventManagerTest {
         assertEquals("testInstance", instance.instanceName);
     }
 
+    /**
+     * Test of the ExecutorService constructor, of class SimpleEventManager.
+     */
+    @Test
+    public void testExecutorService() throws InterruptedException {
+        System.out.println("executorService");
+        final CountDownLatch received = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        SimpleEventManager instance = new SimpleEventManager("testInstance", executorService);
+        assertEquals("testInstance", instance.getInstanceName());
+        instance.getDefaultPipe().listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                received.countDown();
+            }
+        });
+        instance.getDefaultPipe().trigger(new SimpleEvent() {});
+        assertTrue(received.await(1, TimeUnit.SECONDS));
+        instance.shutdown();
+        assertTrue(executorService.isShutdown());
+        
+        if (SimpleEventManager.isVirtualThreadSupported()) {
+            assertNotNull(SimpleEventManager.newVirtualThreadExecutor());
+        } else {
+            try {
+                SimpleEventManager.newVirtualThreadExecutor();
+                fail("Expected UnsupportedOperationException");
+            } catch (UnsupportedOperationException ex) {
+            }
+        }
+    }
+    
     /**
      * Test of getPipe method, of class SimpleEventManager.
      */
@@ -62,6 +103,22 @@ public class SimpleEventManagerTest {
         assertTrue(result instanceof SimpleEventPipe);
     }
 
+    /**
+     * Test of getPipe method with a pipe factory, of class SimpleEventManager.
+     */
+    @Test
+    public void testGetPipeWithFactory() {
+        System.out.println("getPipe with factory");
+        String name = "testRingPipe";
+        SimpleEventManager instance = new SimpleEventManager();
+        SimpleEventPipe expResult = instance.getPipe(name, SimpleRingBufferEventPipe.factory(1024, SimpleWaitStrategies.PARK, true));
+        SimpleEventPipe result = instance.getPipe(name);
+        assertEquals(expResult, result);
+        assertTrue(result instanceof SimpleRingBufferEventPipe);
+        assertFalse(instance.getPipe("testPipe") instanceof SimpleRingBufferEventPipe);
+        instance.shutdown();
+    }
+
     /**
      * Test of getDefaultPipe method, of class SimpleEventManager.
      */
@@ -76,6 +133,20 @@ public class SimpleEventManagerTest {
         assertTrue(result instanceof SimpleEventPipe);
     }
 
+    /**
+     * Test of getDeadLetterPipe method, of class SimpleEventManager.
+     */
+    @Test
+    public void testGetDeadLetterPipe() {
+        System.out.println("getDeadLetterPipe");
+        SimpleEventManager instance = new SimpleEventManager();
+        SimpleEventPipe result = instance.getDeadLetterPipe();
+        assertNotNull(result);
+        assertSame(result, instance.getPipe(instance.deadLetterContext));
+        assertSame(result, instance.getDefaultPipe().getDeadLetterPipe());
+        assertNull(result.getDeadLetterPipe());
+    }
+
     /**
      * Test of getUniquePipe method, of class SimpleEventManager.
      */
@@ -96,6 +167,244 @@ public class SimpleEventManagerTest {
         
     }
 
+    /**
+     * Test of closePipe method, of class SimpleEventManager.
+     */
+    @Test
+    public void testClosePipe() {
+        System.out.println("closePipe");
+        SimpleEventManager instance = new SimpleEventManager();
+        SimpleEventPipe pipe = instance.getPipe("closing");
+        pipe.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+            }
+        });
+        int pipes = instance.getPipeCount();
+        assertTrue(instance.closePipe("closing"));
+        assertFalse(instance.closePipe("closing"));
+        assertEquals(pipes - 1, instance.getPipeCount());
+        assertEquals(0, pipe.getListenerCount());
+        assertNotSame(pipe, instance.getPipe("closing"));
+        instance.shutdown();
+    }
+    
+    /**
+     * Test of acquirePipe method, of class SimpleEventManager.
+     */
+    @Test
+    public void testAcquirePipe() {
+        System.out.println("acquirePipe");
+        SimpleEventManager instance = new SimpleEventManager();
+        SimpleEventPipeHandle first = instance.acquirePipe("shared");
+        SimpleEventPipeHandle second = instance.acquirePipe("shared");
+        assertSame(first.getPipe(), second.getPipe());
+        assertEquals("shared", first.getName());
+        
+        first.close();
+        first.close(); // no effect
+        assertSame(second.getPipe(), instance.getPipe("shared"));
+        second.close();
+        assertNotSame(second.getPipe(), instance.getPipe("shared"));
+        
+        int pipes = instance.getPipeCount();
+        SimpleEventPipeHandle unique = instance.acquireUniquePipe("tester");
+        assertEquals(pipes + 1, instance.getPipeCount());
+        unique.close();
+        assertEquals(pipes, instance.getPipeCount());
+        instance.shutdown();
+    }
+    
+    /**
+     * Test of setPipeIdleTimeout method, of class SimpleEventManager.
+     */
+    @Test
+    public void testPipeIdleTimeout() throws InterruptedException {
+        System.out.println("pipeIdleTimeout");
+        SimpleEventManager instance = new SimpleEventManager();
+        SimpleEventListener listener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+            }
+        };
+        instance.getDefaultPipe();
+        instance.listen("patterns.#", listener);
+        
+        SimpleEventPipe idle = instance.getPipe("idle");
+        SimpleEventPipe patterned = instance.getPipe("patterns.idle");
+        SimpleEventPipe listened = instance.getPipe("listened");
+        listened.listen(listener);
+        SimpleEventPipe busy = instance.getPipe("busy");
+        SimpleEventPipeHandle handle = instance.acquirePipe("handle");
+        
+        instance.setPipeIdleTimeout(100);
+        assertEquals(100, instance.getPipeIdleTimeout());
+        for (int i = 0; i < 50; i++) {
+            busy.trigger(new SimpleEvent() {});
+            Thread.sleep(10);
+        }
+        
+        assertEquals(2, instance.getEvictedPipes());
+        assertNotSame(idle, instance.getPipe("idle"));
+        assertNotSame(patterned, instance.getPipe("patterns.idle"));
+        assertEquals(1, instance.getPipe("patterns.idle").getListenerCount());
+        assertSame(listened, instance.getPipe("listened"));
+        assertSame(busy, instance.getPipe("busy"));
+        assertSame(handle.getPipe(), instance.getPipe("handle"));
+        assertSame(instance.getDefaultPipe(), instance.getDefaultPipe());
+        instance.shutdown();
+    }
+    
+    /**
+     * Test of listen method with a pipe name pattern, of class SimpleEventManager.
+     */
+    @Test
+    public void testListenPattern() {
+        System.out.println("listenPattern");
+        SimpleEventManager instance = new SimpleEventManager();
+        final AtomicLong created = new AtomicLong(0);
+        final AtomicLong orders = new AtomicLong(0);
+        SimpleEventListener createdListener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                created.incrementAndGet();
+            }
+        };
+        SimpleEventListener ordersListener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                orders.incrementAndGet();
+            }
+        };
+        
+        SimpleEventPipe euCreated = instance.getPipe("orders.eu.created");
+        instance.listen("orders.*.created", createdListener);
+        instance.listen("orders.#", ordersListener);
+        SimpleEventPipe usCreated = instance.getPipe("orders.us.created"); // created after subscribing
+        
+        euCreated.trigger(new SimpleEvent() {});
+        usCreated.trigger(new SimpleEvent() {});
+        instance.getPipe("orders.eu.cancelled").trigger(new SimpleEvent() {});
+        instance.getPipe("orders").trigger(new SimpleEvent() {});
+        instance.getPipe("orders.eu.created.late").trigger(new SimpleEvent() {});
+        instance.getPipe("payments.eu.created").trigger(new SimpleEvent() {});
+        assertEquals(2, created.get());
+        assertEquals(5, orders.get());
+        
+        assertTrue(instance.unlisten("orders.*.created", createdListener));
+        assertFalse(instance.unlisten("orders.*.created", createdListener));
+        euCreated.trigger(new SimpleEvent() {});
+        instance.getPipe("orders.eu.created.late").trigger(new SimpleEvent() {});
+        instance.getPipe("orders.de.created").trigger(new SimpleEvent() {});
+        assertEquals(2, created.get());
+        assertEquals(8, orders.get());
+        
+        // Only the registrations of the removed pattern are removed
+        class DirectEvent implements SimpleEvent {}
+        euCreated.listen(DirectEvent.class, createdListener);
+        instance.listen("orders.*.created", createdListener);
+        assertTrue(instance.unlisten("orders.*.created", createdListener));
+        euCreated.trigger(new SimpleEvent() {});
+        euCreated.trigger(new DirectEvent());
+        assertEquals(3, created.get());
+        assertTrue(euCreated.unlisten(createdListener));
+        
+        instance.listen("orders.eu.*", DirectEvent.class, createdListener);
+        instance.listen("orders.*.created", createdListener);
+        assertTrue(instance.unlisten("orders.*.created", createdListener));
+        euCreated.trigger(new SimpleEvent() {});
+        euCreated.trigger(new DirectEvent());
+        assertEquals(4, created.get());
+        assertTrue(instance.unlisten("orders.eu.*", createdListener));
+        assertFalse(euCreated.unlisten(createdListener));
+        assertEquals(12, orders.get());
+        
+        // Typed pattern subscriptions
+        final AtomicLong typed = new AtomicLong(0);
+        class TypedEvent implements SimpleEvent {}
+        instance.listen("#.created", TypedEvent.class, new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                typed.incrementAndGet();
+            }
+        });
+        euCreated.trigger(new SimpleEvent() {});
+        euCreated.trigger(new TypedEvent());
+        instance.getPipe("created").trigger(new TypedEvent());
+        assertEquals(2, typed.get());
+        instance.shutdown();
+    }
+
+    /**
+     * Test of listen method with patterns containing more than one "#", of class SimpleEventManager.
+     */
+    @Test
+    public void testListenMultiWildcardPattern() {
+        System.out.println("listenMultiWildcardPattern");
+        SimpleEventManager instance = new SimpleEventManager();
+        final AtomicLong received = new AtomicLong(0);
+        SimpleEventListener listener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                received.incrementAndGet();
+            }
+        };
+        
+        SimpleEventPipe existing = instance.getPipe("x.a.a.y");
+        instance.listen("#.a.#", listener);
+        instance.listen("#.#", listener);
+        SimpleEventPipe created = instance.getPipe("z.a.a"); // created after subscribing
+        SimpleEventPipe single = instance.getPipe("z");
+        
+        // Each pattern is registered once, however many ways it matches
+        existing.trigger(new SimpleEvent() {});
+        assertEquals(2, received.get());
+        created.trigger(new SimpleEvent() {});
+        assertEquals(4, received.get());
+        single.trigger(new SimpleEvent() {});
+        assertEquals(5, received.get());
+        
+        assertTrue(instance.unlisten("#.a.#", listener));
+        assertTrue(instance.unlisten("#.#", listener));
+        existing.trigger(new SimpleEvent() {});
+        created.trigger(new SimpleEvent() {});
+        single.trigger(new SimpleEvent() {});
+        assertEquals(5, received.get());
+        assertFalse(created.unlisten(listener));
+        instance.shutdown();
+    }
+
+    /**
+     * Test of getMetrics and registerMBean methods, of class SimpleEventManager.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        System.out.println("metrics");
+        SimpleEventManager instance = new SimpleEventManager("metricsInstance");
+        instance.getPipe("before").trigger(new SimpleEvent() {});
+        assertFalse(instance.isMetricsEnabled());
+        assertTrue(instance.getMetrics().isEmpty());
+        
+        instance.setMetricsEnabled(true);
+        instance.getPipe("before").trigger(new SimpleEvent() {});
+        instance.getPipe("after").trigger(new SimpleEvent() {});
+        instance.getPipe("after").trigger(new SimpleEvent() {});
+        Map<String, SimpleEventMetrics.Snapshot> metrics = instance.getMetrics();
+        assertEquals(3, metrics.size()); // including the dead-letter pipe
+        assertEquals(0, metrics.get(instance.deadLetterContext).getTriggeredEvents());
+        assertEquals(1, metrics.get("before").getTriggeredEvents());
+        assertEquals(2, metrics.get("after").getTriggeredEvents());
+        
+        instance.registerMBean();
+        ObjectName name = new ObjectName("com.skjegstad.simpleevents:type=SimpleEventManager,name=" + ObjectName.quote("metricsInstance"));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertNotNull(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Metrics"));
+        assertEquals(Boolean.TRUE, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MetricsEnabled"));
+        
+        instance.shutdown();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
     /**
      * Test of shutdown method, of class SimpleEventManager.
      */
@@ -137,4 +446,85 @@ public class SimpleEventManagerTest {
         assertEquals(tests, interruptedListeners.get());
         
     }
+    
+    /**
+     * Test of shutdownGracefully method, of class SimpleEventManager.
+     */
+    @Test
+    public void testShutdownGracefully() throws InterruptedException {
+        System.out.println("shutdownGracefully");
+        final AtomicLong received = new AtomicLong(0);
+        SimpleAsyncEventListener slowListener = new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                received.incrementAndGet();
+            }
+        };
+        
+        // Everything is delivered before the deadline
+        SimpleEventManager instance = new SimpleEventManager();
+        instance.getPipe("slow").setAsyncOrdered(true);
+        instance.getPipe("slow").listen(slowListener);
+        instance.getPipe("unordered").listen(slowListener);
+        for (int i = 0; i < 10; i++) {
+            instance.getPipe("slow").trigger(new SimpleEvent() {});
+            instance.getPipe("unordered").trigger(new SimpleEvent() {});
+        }
+        assertTrue(instance.getPipe("slow").getPendingDeliveries() > 0);
+        
+        assertEquals(0, instance.shutdownGracefully(5, TimeUnit.SECONDS));
+        assertEquals(20, received.get());
+        Map<String, SimpleDrainStatus> status = instance.getDrainStatus();
+        assertTrue(status.get("slow").isDrained());
+        assertTrue(status.get("unordered").isDrained());
+        try {
+            instance.getPipe("slow").trigger(new SimpleEvent() {});
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException ex) {
+        }
+        
+        // Deliveries still pending at the deadline are dropped and reported
+        received.set(0);
+        instance = new SimpleEventManager();
+        SimpleEventPipe pipe = instance.getPipe("slow");
+        pipe.setAsyncOrdered(true);
+        pipe.listen(slowListener);
+        for (int i = 0; i < 100; i++)
+            pipe.trigger(new SimpleEvent() {});
+        
+        long dropped = instance.shutdownGracefully(200, TimeUnit.MILLISECONDS);
+        assertTrue(dropped > 0);
+        // the listener running at the deadline is interrupted, and may be neither
+        assertTrue(dropped + received.get() >= 99 && dropped + received.get() <= 100);
+        status = instance.getDrainStatus();
+        assertFalse(status.get("slow").isDrained());
+        assertEquals(dropped, status.get("slow").getPendingDeliveries());
+        try {
+            pipe.trigger(new SimpleEvent() {});
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException ex) {
+            assertEquals(1, pipe.getRejectedEvents());
+        }
+        
+        // Interrupted while waiting, the manager is still shut down
+        instance = new SimpleEventManager();
+        pipe = instance.getPipe("slow");
+        pipe.setAsyncOrdered(true);
+        pipe.listen(slowListener);
+        for (int i = 0; i < 100; i++)
+            pipe.trigger(new SimpleEvent() {});
+        Thread.currentThread().interrupt();
+        try {
+            instance.shutdownGracefully(5, TimeUnit.SECONDS);
+            fail("Expected InterruptedException");
+        } catch (InterruptedException ex) {
+        }
+        assertEquals(0, instance.getPipeCount());
+        assertFalse(instance.getDrainStatus().get("slow").isDrained());
+    }
 }
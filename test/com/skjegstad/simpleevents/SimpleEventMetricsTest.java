@@ -0,0 +1,120 @@
+/*
+ 
+SimpleEventMetricsTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleEventMetrics.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventMetricsTest {
+
+    /**
+     * Test of the histogram, of class SimpleEventMetrics.
+     */
+    @Test
+    public void testHistogram() {
+        System.out.println("histogram");
+        SimpleEventMetrics.Histogram instance = new SimpleEventMetrics.Histogram();
+        for (int i = 1; i <= 1000; i++)
+            instance.record(i * 1000);
+        
+        SimpleEventMetrics.HistogramSnapshot snapshot = instance.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500.0, snapshot.getMean(), 0.001);
+        assertEquals(1000000, snapshot.getMax());
+        // Buckets have a relative error of at most 1/8
+        assertEquals(500000, snapshot.getP50(), 500000 / 8);
+        assertEquals(990000, snapshot.getP99(), 990000 / 8);
+        assertTrue(snapshot.getP999() <= snapshot.getMax());
+        
+        for (long value = 0; value < 1000000; value = value * 3 + 1) {
+            int bucket = SimpleEventMetrics.Histogram.bucket(value);
+            assertTrue(SimpleEventMetrics.Histogram.upperBound(bucket) >= value);
+            if (bucket > 0)
+                assertTrue(SimpleEventMetrics.Histogram.upperBound(bucket - 1) < value);
+        }
+    }
+
+    /**
+     * Test of snapshot method, of class SimpleEventMetrics.
+     */
+    @Test
+    public void testSnapshot() throws InterruptedException {
+        System.out.println("snapshot");
+        
+        SimpleEventPipe pipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        assertNull(pipe.getMetrics());
+        pipe.setMetricsEnabled(true);
+        
+        SimpleEventListener slowListener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        SimpleEventListener fastListener = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+            }
+        };
+        SimpleEventListener failingListener = new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                throw new IllegalStateException("failing listener");
+            }
+        };
+        pipe.listen(fastListener);
+        pipe.listen(slowListener);
+        pipe.listen(failingListener);
+        
+        for (int i = 0; i < 10; i++)
+            pipe.trigger(new SimpleEvent() {});
+        Thread.sleep(200); // give async event time to run
+        
+        SimpleEventMetrics.Snapshot snapshot = pipe.getMetrics().snapshot(2);
+        assertEquals(10, snapshot.getTriggeredEvents());
+        assertTrue(snapshot.getEventsPerSecond() > 0);
+        assertEquals(10, snapshot.getExceptions());
+        assertEquals(20, snapshot.getSyncTime().getCount());
+        assertEquals(10, snapshot.getAsyncQueueWait().getCount());
+        assertEquals(10, snapshot.getAsyncExecutionTime().getCount());
+        assertTrue(snapshot.getSyncTime().getMax() >= 2000000);
+        assertEquals(2, snapshot.getSlowestListeners().size());
+        assertEquals(slowListener.getClass().getName(), snapshot.getSlowestListeners().get(0).getListener());
+        assertEquals(10, snapshot.getSlowestListeners().get(0).getInvocations());
+        
+        pipe.setMetricsEnabled(false);
+        pipe.trigger(new SimpleEvent() {});
+        assertNull(pipe.getMetrics());
+    }
+}
@@ -23,7 +23,26 @@ package com.skjegstad.simpleevents;
 import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
 import com.skjegstad.simpleevents.interfaces.SimpleEvent;
 import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncBatchEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleKeyedEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleReplyEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.concurrent.Executors;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -74,6 +93,43 @@ public class SimpleEventPipeTest {
 
     }
 
+    /**
+     * Test of typed listen method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testListenTyped() throws InterruptedException {
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        final AtomicLong receivedSubEvents = new AtomicLong(0);
+        System.out.println("listen typed");
+        
+        class myEvent implements SimpleEvent {}
+        class mySubEvent extends myEvent {}
+        
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.listen(myEvent.class, new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                assertTrue(event instanceof myEvent);
+                receivedEvents.incrementAndGet();
+            }
+        });
+        instance.listen(mySubEvent.class, new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                assertTrue(event instanceof mySubEvent);
+                receivedSubEvents.incrementAndGet();
+            }
+        });
+        
+        instance.trigger(new SimpleEvent() {});
+        instance.trigger(new myEvent());
+        instance.trigger(new mySubEvent());
+        instance.trigger(new mySubEvent() {});
+        Thread.sleep(500); // give async event time to run
+        assertEquals(3, receivedEvents.get());
+        assertEquals(2, receivedSubEvents.get());
+    }
+
     /**
      * Test of unlisten method, of class SimpleEventPipe.
      */
@@ -140,44 +196,728 @@ public class SimpleEventPipeTest {
     }
     
     /**
-     * Test events per second.
-     * 
+     * Test of ordered asynchronous delivery, of class SimpleEventPipe.
      */
     @Test
-    public void testBenchmark() {
-        long tests = 1000;
+    public void testAsyncOrdered() throws InterruptedException {
         final AtomicLong receivedEvents = new AtomicLong(0);
-                
-        System.out.println("benchmark");
+        final AtomicLong outOfOrderEvents = new AtomicLong(0);
+        final AtomicInteger activeListeners = new AtomicInteger(0);
+        final AtomicLong concurrentEvents = new AtomicLong(0);
+        System.out.println("async ordered");
         
-        // Sync. event listener
-        SimpleEventListener syncListen = new SimpleEventListener() {
+        class numberedEvent implements SimpleEvent {
+            final long number;
+            numberedEvent(long number) {
+                this.number = number;
+            }
+        }
+        
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        assertFalse(instance.isAsyncOrdered());
+        instance.setAsyncOrdered(true);
+        assertTrue(instance.isAsyncOrdered());
+        
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                if (activeListeners.incrementAndGet() > 1)
+                    concurrentEvents.incrementAndGet();
+                if (((numberedEvent) event).number != receivedEvents.getAndIncrement())
+                    outOfOrderEvents.incrementAndGet();
+                activeListeners.decrementAndGet();
+            }
+        });
+        
+        int tests = 10000;
+        for (int i = 0; i < tests; i++)
+            instance.trigger(new numberedEvent(i));
+        Thread.sleep(500); // give async event time to run
+        assertEquals(tests, receivedEvents.get());
+        assertEquals(0, outOfOrderEvents.get());
+        assertEquals(0, concurrentEvents.get());
+    }
+    
+    /**
+     * Test of batched asynchronous delivery, of class SimpleEventPipe.
+     */
+    @Test
+    public void testAsyncBatching() throws InterruptedException {
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        final AtomicLong receivedBatches = new AtomicLong(0);
+        final AtomicLong oversizedBatches = new AtomicLong(0);
+        System.out.println("async batching");
+        
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.setAsyncBatching(100, 50);
+        assertEquals(100, instance.getAsyncBatchSize());
+        assertEquals(50, instance.getAsyncBatchLinger());
+        
+        instance.listen(new SimpleAsyncBatchEventListener() {
+            @Override
+            public void receiveEvents(List<SimpleEvent> events) {
+                receivedBatches.incrementAndGet();
+                if (events.size() > 100)
+                    oversizedBatches.incrementAndGet();
+                receivedEvents.addAndGet(events.size());
+            }
+
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                fail("Batch listener should receive batches");
+            }
+        });
+        
+        int tests = 1000;
+        for (int i = 0; i < tests; i++)
+            instance.trigger(new SimpleEvent() {});
+        Thread.sleep(500); // give async event time to run
+        assertEquals(tests, receivedEvents.get());
+        assertTrue(receivedBatches.get() >= tests / 100);
+        assertTrue(receivedBatches.get() < tests);
+        assertEquals(0, oversizedBatches.get());
+    }
+    
+    /**
+     * Test of bounded mailboxes and overflow policies, of class SimpleEventPipe.
+     */
+    @Test
+    public void testAsyncMailbox() throws InterruptedException {
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        System.out.println("async mailbox");
+        
+        class keyedEvent implements SimpleKeyedEvent {
+            final int key;
+            keyedEvent(int key) {
+                this.key = key;
+            }
+            @Override
+            public Object getEventKey() {
+                return key;
+            }
+        }
+        
+        // Listener blocked until released, so the mailbox fills up
+        SimpleEventListener asyncListen = new SimpleAsyncEventListener() {
             @Override
             public void receiveEvent(SimpleEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
                 receivedEvents.incrementAndGet();
             }
         };
         
         SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
-        instance.listen(syncListen);        
+        instance.setAsyncMailbox(10, SimpleOverflowPolicy.DROP_OLDEST);
+        assertEquals(10, instance.getAsyncMailboxCapacity());
+        assertEquals(SimpleOverflowPolicy.DROP_OLDEST, instance.getAsyncOverflowPolicy());
+        instance.listen(asyncListen);
+        
+        instance.trigger(new SimpleEvent() {});
+        Thread.sleep(100); // first event is now being delivered
+        for (int i = 0; i < 20; i++)
+            instance.trigger(new SimpleEvent() {});
+        assertEquals(10, instance.getDroppedEvents());
+        
+        instance.setAsyncMailbox(10, SimpleOverflowPolicy.FAIL);
+        try {
+            instance.trigger(new SimpleEvent() {});
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException ex) {
+            assertEquals(1, instance.getRejectedEvents());
+        }
+        
+        instance.setAsyncMailbox(10, SimpleOverflowPolicy.DROP_NEWEST);
+        instance.trigger(new SimpleEvent() {});
+        assertEquals(11, instance.getDroppedEvents());
+        
+        release.countDown();
+        Thread.sleep(500); // give async event time to run
+        assertEquals(11, receivedEvents.get());
+        
+        // Coalescing keeps at most one pending event per key
+        final CountDownLatch releaseKeyed = new CountDownLatch(1);
+        SimpleEventPipe keyedInstance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        keyedInstance.setAsyncMailbox(0, SimpleOverflowPolicy.COALESCE);
+        final AtomicLong receivedKeyedEvents = new AtomicLong(0);
+        keyedInstance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    releaseKeyed.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                receivedKeyedEvents.incrementAndGet();
+            }
+        });
+        keyedInstance.trigger(new keyedEvent(-1));
+        Thread.sleep(100); // first event is now being delivered
+        for (int i = 0; i < 100; i++)
+            keyedInstance.trigger(new keyedEvent(i % 5));
+        assertEquals(95, keyedInstance.getCoalescedEvents());
+        releaseKeyed.countDown();
+        Thread.sleep(500); // give async event time to run
+        assertEquals(6, receivedKeyedEvents.get());
+        
+        // Blocking producers are counted
+        final CountDownLatch releaseBlocked = new CountDownLatch(1);
+        final SimpleEventPipe blockingInstance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        blockingInstance.setAsyncMailbox(1, SimpleOverflowPolicy.BLOCK);
+        blockingInstance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    releaseBlocked.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        blockingInstance.trigger(new SimpleEvent() {});
+        Thread.sleep(100); // first event is now being delivered
+        blockingInstance.trigger(new SimpleEvent() {});
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                }
+                releaseBlocked.countDown();
+            }
+        }).start();
+        blockingInstance.trigger(new SimpleEvent() {}); // blocks until the listener is released
+        assertTrue(blockingInstance.getBlockedNanos() > 0);
+        assertEquals(0, blockingInstance.getDroppedEvents());
+    }
+    
+    /**
+     * Test of setAsyncOrdered method when the executor rejects the drain task, of class SimpleEventPipe.
+     */
+    @Test
+    public void testAsyncMailboxRejected() throws InterruptedException {
+        System.out.println("async mailbox rejected");
+        final AtomicBoolean reject = new AtomicBoolean(true);
+        final ExecutorService delegate = Executors.newCachedThreadPool();
+        ExecutorService executor = new AbstractExecutorService() {
+            @Override
+            public void execute(Runnable command) {
+                if (reject.get())
+                    throw new RejectedExecutionException("rejected");
+                delegate.execute(command);
+            }
+            @Override
+            public void shutdown() {
+                delegate.shutdown();
+            }
+            @Override
+            public List<Runnable> shutdownNow() {
+                return delegate.shutdownNow();
+            }
+            @Override
+            public boolean isShutdown() {
+                return delegate.isShutdown();
+            }
+            @Override
+            public boolean isTerminated() {
+                return delegate.isTerminated();
+            }
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                return delegate.awaitTermination(timeout, unit);
+            }
+        };
+        final List<Integer> received = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(1);
+        
+        class numberedEvent implements SimpleEvent {
+            final int number;
+            numberedEvent(int number) {
+                this.number = number;
+            }
+        }
         
+        SimpleEventPipe instance = new SimpleEventPipe(executor);
+        instance.setAsyncOrdered(true);
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                received.add(((numberedEvent) event).number);
+                done.countDown();
+            }
+        });
+        
+        try {
+            instance.trigger(new numberedEvent(1));
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException ex) {
+        }
+        assertEquals(0, instance.getPendingDeliveries());
+        
+        // The mailbox is not left scheduled, and the rejected event is not delivered later
+        reject.set(false);
+        instance.trigger(new numberedEvent(2));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, received.size());
+        assertEquals(2, (int) received.get(0));
+        assertEquals(0, instance.getPendingDeliveries());
+        delegate.shutdown();
+    }
+    
+    /**
+     * Test of setAsyncConflation method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testAsyncConflation() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Map<Integer, Integer> latest = new ConcurrentHashMap<Integer, Integer>();
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        System.out.println("async conflation");
+        
+        class priceEvent implements SimpleKeyedEvent {
+            final int key;
+            final int price;
+            priceEvent(int key, int price) {
+                this.key = key;
+                this.price = price;
+            }
+            @Override
+            public Object getEventKey() {
+                return key;
+            }
+        }
+        
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        assertFalse(instance.isAsyncConflation());
+        instance.setAsyncConflation(true);
+        assertTrue(instance.isAsyncConflation());
+        assertTrue(instance.isAsyncOrdered());
+        assertEquals(SimpleOverflowPolicy.BLOCK, instance.getAsyncOverflowPolicy());
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                receivedEvents.incrementAndGet();
+                if (event instanceof priceEvent)
+                    latest.put(((priceEvent) event).key, ((priceEvent) event).price);
+            }
+        });
+        
+        instance.trigger(new priceEvent(-1, 0));
+        Thread.sleep(100); // first event is now being delivered
+        for (int i = 0; i < 1000; i++)
+            instance.trigger(new priceEvent(i % 3, i));
+        instance.trigger(new SimpleEvent() {}); // not keyed, queued as usual
+        assertEquals(997, instance.getCoalescedEvents());
+        
+        release.countDown();
+        Thread.sleep(500); // give async event time to run
+        assertEquals(0, instance.getDroppedEvents());
+        assertEquals(5, receivedEvents.get());
+        assertEquals(999, (int) latest.get(0));
+        assertEquals(997, (int) latest.get(1));
+        assertEquals(998, (int) latest.get(2));
+        
+        instance.setAsyncConflation(false);
+        assertFalse(instance.isAsyncConflation());
+        instance.setAsyncMailbox(0, SimpleOverflowPolicy.COALESCE);
+        assertTrue(instance.isAsyncConflation());
+    }
+    
+    /**
+     * Test of listener isolation, retries and dead letters, of class SimpleEventPipe.
+     */
+    @Test
+    public void testListenerIsolation() throws InterruptedException {
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        final AtomicLong failedAttempts = new AtomicLong(0);
+        final List<SimpleDeadLetterEvent> deadLetters = java.util.Collections.synchronizedList(new java.util.ArrayList<SimpleDeadLetterEvent>());
+        System.out.println("listener isolation");
+        
+        SimpleEventPipe deadLetterPipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        deadLetterPipe.listen(SimpleDeadLetterEvent.class, new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                deadLetters.add((SimpleDeadLetterEvent) event);
+            }
+        });
+        
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.setDeadLetterPipe(deadLetterPipe);
+        final SimpleEventListener failingListen = new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                throw new IllegalStateException("failing listener");
+            }
+        };
+        instance.listen(failingListen);
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        
+        // Without isolation the exception reaches the caller
+        try {
+            instance.trigger(new SimpleEvent() {});
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+        }
+        assertEquals(0, receivedEvents.get());
+        assertTrue(deadLetters.isEmpty());
+        
+        // With isolation the other listeners still receive the event
+        instance.setListenerIsolation(true);
+        assertTrue(instance.isListenerIsolation());
         SimpleEvent event = new SimpleEvent() {};
-                
-        long startTs = 0;
-        long endTs = 0; 
-        // Increase number of tests until it takes more than 1 second to run
-        while (endTs - startTs < 1000) {
-            receivedEvents.set(0);
-            startTs = System.currentTimeMillis();            
-            for (int i = 0; i < tests; i++) {
-                instance.trigger(event);
-            }        
-            endTs = System.currentTimeMillis();
-            if (endTs - startTs < 1000)
-                tests = tests * 2;
-        }        
-        assertEquals(receivedEvents.get(), tests);
-        
-        System.out.println((tests / (double)((endTs - startTs)/1000.0)) + " sync. events per second (ran " + tests + " tests for " + ((endTs - startTs)/1000.0) + " seconds)");
+        instance.trigger(event);
+        assertEquals(1, receivedEvents.get());
+        assertEquals(1, deadLetters.size());
+        assertSame(event, deadLetters.get(0).getEvent());
+        assertSame(failingListen, deadLetters.get(0).getListener());
+        assertSame(instance, deadLetters.get(0).getPipe());
+        assertTrue(deadLetters.get(0).getException() instanceof IllegalStateException);
+        assertEquals(1, instance.getFailedDeliveries());
+        instance.unlisten(failingListen);
+        deadLetters.clear();
+        
+        // Async listener failing twice before succeeding
+        instance.setAsyncRetry(2, 10);
+        assertEquals(2, instance.getAsyncRetries());
+        assertEquals(10, instance.getAsyncRetryBackoff());
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                if (failedAttempts.incrementAndGet() <= 2)
+                    throw new IllegalStateException("failing listener");
+                receivedEvents.incrementAndGet();
+            }
+        });
+        instance.trigger(new SimpleEvent() {});
+        Thread.sleep(500); // give async event time to run
+        assertEquals(3, receivedEvents.get());
+        assertTrue(deadLetters.isEmpty());
+        
+        // Async listener always failing
+        SimpleEventPipe asyncInstance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        asyncInstance.setDeadLetterPipe(deadLetterPipe);
+        asyncInstance.setAsyncRetry(2, 10);
+        asyncInstance.setAsyncOrdered(true);
+        asyncInstance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                throw new IllegalStateException("failing listener");
+            }
+        });
+        asyncInstance.trigger(new SimpleEvent() {});
+        asyncInstance.trigger(new SimpleEvent() {});
+        Thread.sleep(500); // give async event time to run
+        assertEquals(2, deadLetters.size());
+        assertEquals(3, deadLetters.get(0).getAttempts());
+        assertEquals(2, asyncInstance.getFailedDeliveries());
+    }
+    
+    /**
+     * Test of setParallelSyncPool method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testParallelSync() throws InterruptedException {
+        System.out.println("parallelSync");
+        final AtomicInteger receivedEvents = new AtomicInteger(0);
+        final Map<Thread, Boolean> threads = new ConcurrentHashMap<Thread, Boolean>();
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        ForkJoinPool pool = new ForkJoinPool(8);
+        instance.setParallelSyncPool(pool);
+        assertSame(pool, instance.getParallelSyncPool());
+        
+        for (int i = 0; i < 8; i++) {
+            instance.listen(new SimpleEventListener() {
+                @Override
+                public void receiveEvent(SimpleEvent event) {
+                    threads.put(Thread.currentThread(), Boolean.TRUE);
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ex) {
+                    }
+                    receivedEvents.incrementAndGet();
+                }
+            });
+        }
+        
+        // All listeners are done when trigger returns, in less than the sum of their times
+        long startTs = System.currentTimeMillis();
+        instance.trigger(new SimpleEvent() {});
+        long elapsed = System.currentTimeMillis() - startTs;
+        assertEquals(8, receivedEvents.get());
+        assertTrue(elapsed < 1000);
+        assertTrue(threads.size() > 1);
+        assertTrue(threads.containsKey(Thread.currentThread()));
+        
+        // Exceptions are thrown to the caller after the running listeners are done
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                throw new IllegalStateException("failing listener");
+            }
+        });
+        try {
+            instance.trigger(new SimpleEvent() {});
+            fail("Expected listener exception");
+        } catch (IllegalStateException ex) {
+        }
+        int received = receivedEvents.get();
+        Thread.sleep(500);
+        assertEquals(received, receivedEvents.get());
+        
+        // Isolated listeners all receive the event
+        instance.setListenerIsolation(true);
+        receivedEvents.set(0);
+        instance.trigger(new SimpleEvent() {});
+        assertEquals(8, receivedEvents.get());
+        assertEquals(1, instance.getFailedDeliveries());
+        
+        // An interrupted caller still waits for the listeners and keeps the interrupt
+        SimpleEventPipe busyInstance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        busyInstance.setParallelSyncPool(pool);
+        receivedEvents.set(0);
+        for (int i = 0; i < 4; i++) {
+            busyInstance.listen(new SimpleEventListener() {
+                @Override
+                public void receiveEvent(SimpleEvent event) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+                    while (System.nanoTime() < deadline)
+                        Thread.yield();
+                    receivedEvents.incrementAndGet();
+                }
+            });
+        }
+        Thread.currentThread().interrupt();
+        busyInstance.trigger(new SimpleEvent() {});
+        assertTrue(Thread.interrupted());
+        assertEquals(4, receivedEvents.get());
+        pool.shutdown();
+    }
+    
+    /**
+     * Test of triggerAsync method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testTriggerAsync() throws Exception {
+        System.out.println("triggerAsync");
+        final AtomicInteger receivedEvents = new AtomicInteger(0);
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        for (int i = 0; i < 4; i++) {
+            instance.listen(new SimpleAsyncEventListener() {
+                @Override
+                public void receiveEvent(SimpleEvent event) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ex) {
+                    }
+                    receivedEvents.incrementAndGet();
+                }
+            });
+        }
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        
+        CompletableFuture<Void> future = instance.triggerAsync(new SimpleEvent() {});
+        assertFalse(future.isDone());
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(5, receivedEvents.get());
+        
+        // No listeners
+        assertTrue(new SimpleEventPipe(Executors.newCachedThreadPool()).triggerAsync(new SimpleEvent() {}).isDone());
+        
+        // Failures from all listeners are collected
+        instance.setAsyncOrdered(true);
+        for (int i = 0; i < 2; i++) {
+            instance.listen(new SimpleAsyncEventListener() {
+                @Override
+                public void receiveEvent(SimpleEvent event) {
+                    throw new IllegalStateException("failing listener");
+                }
+            });
+        }
+        receivedEvents.set(0);
+        future = instance.triggerAsync(new SimpleEvent() {});
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected delivery exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof SimpleEventDeliveryException);
+            assertEquals(2, ((SimpleEventDeliveryException) ex.getCause()).getFailures().size());
+        }
+        assertEquals(5, receivedEvents.get());
+        assertEquals(0, instance.getPendingDeliveries());
+    }
+    
+    static class PriceRequest extends SimpleRequestEvent<Integer> {
+        final String item;
+
+        PriceRequest(String item) {
+            this.item = item;
+        }
+    }
+    
+    static class PriceReply implements SimpleReplyEvent {
+        final long correlationId;
+        final int price;
+
+        PriceReply(long correlationId, int price) {
+            this.correlationId = correlationId;
+            this.price = price;
+        }
+
+        @Override
+        public long getCorrelationId() {
+            return correlationId;
+        }
+
+        @Override
+        public Object getReply() {
+            return price;
+        }
+    }
+
+    /**
+     * Test of request method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testRequest() throws Exception {
+        System.out.println("request");
+        final SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.listen(PriceRequest.class, new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                PriceRequest request = (PriceRequest) event;
+                if (request.item.equals("apple"))
+                    request.reply(10);
+                else if (request.item.equals("pear"))
+                    instance.trigger(new PriceReply(request.getCorrelationId(), 20));
+                else if (request.item.equals("plum"))
+                    throw new IllegalArgumentException("unknown item");
+            }
+        });
+        
+        // Many requests in flight, answered directly and by reply events
+        List<CompletableFuture<Integer>> replies = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 1000; i++)
+            replies.add(instance.request(new PriceRequest(i % 2 == 0 ? "apple" : "pear"), 5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 2 == 0 ? 10 : 20, (int) replies.get(i).get(5, TimeUnit.SECONDS));
+        assertEquals(0, instance.getPendingRequests());
+        
+        // Failed delivery
+        try {
+            instance.request(new PriceRequest("plum"), 5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+            fail("Expected delivery exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof SimpleEventDeliveryException);
+        }
+        
+        // No reply
+        try {
+            instance.request(new PriceRequest("banana"), 100, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            fail("Expected timeout");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, instance.getPendingRequests());
+    }
+    
+    static class TradeEvent implements SimpleKeyedEvent {
+        final int account;
+        final int amount;
+
+        TradeEvent(int account, int amount) {
+            this.account = account;
+            this.amount = amount;
+        }
+
+        @Override
+        public Object getEventKey() {
+            return account;
+        }
+    }
+
+    /**
+     * Test of listen method with a filter, of class SimpleEventPipe.
+     */
+    @Test
+    public void testListenFilter() throws InterruptedException {
+        System.out.println("listen filter");
+        final int accounts = 5000;
+        final AtomicInteger[] received = new AtomicInteger[accounts];
+        final AtomicInteger misrouted = new AtomicInteger(0);
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        
+        // One indexed listener per account
+        for (int i = 0; i < accounts; i++) {
+            final int account = i;
+            received[i] = new AtomicInteger(0);
+            instance.listen(TradeEvent.class, SimpleEventFilter.whereKeyEquals(account), new SimpleAsyncEventListener() {
+                @Override
+                public void receiveEvent(SimpleEvent event) {
+                    if (((TradeEvent) event).account != account)
+                        misrouted.incrementAndGet();
+                    received[account].incrementAndGet();
+                }
+            });
+        }
+        
+        // Large trades on account 7 only, combining the index with a predicate
+        final AtomicInteger largeTrades = new AtomicInteger(0);
+        SimpleEventFilter<TradeEvent> large = SimpleEventFilter.where(new Predicate<TradeEvent>() {
+            @Override
+            public boolean test(TradeEvent event) {
+                return event.amount >= 100;
+            }
+        });
+        instance.listen(TradeEvent.class, large.and(SimpleEventFilter.whereKeyEquals(7)), new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                largeTrades.incrementAndGet();
+            }
+        });
+        
+        // Predicate only
+        final AtomicInteger allLarge = new AtomicInteger(0);
+        instance.listen(TradeEvent.class, large, new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                allLarge.incrementAndGet();
+            }
+        });
+        
+        for (int i = 0; i < accounts; i++)
+            instance.trigger(new TradeEvent(i, i % 2 == 0 ? 10 : 100));
+        instance.trigger(new TradeEvent(7, 10));
+        instance.trigger(new TradeEvent(accounts, 100)); // no listener for the account
+        Thread.sleep(500); // give async event time to run
+        
+        assertEquals(0, misrouted.get());
+        for (int i = 0; i < accounts; i++)
+            assertEquals(i == 7 ? 2 : 1, received[i].get());
+        assertEquals(1, largeTrades.get());
+        assertEquals(accounts / 2 + 1, allLarge.get());
+        assertEquals(0, instance.getPendingDeliveries());
+        
+        assertTrue(large.test(new TradeEvent(1, 100)));
+        assertFalse(large.and(SimpleEventFilter.whereKeyEquals(2)).test(new TradeEvent(1, 100)));
     }
 }
@@ -0,0 +1,268 @@
+/*
+ 
+SimpleEventPoolTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventFactory;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleEventPool.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventPoolTest {
+    
+    static class PriceEvent extends SimplePooledEvent {
+        int price;
+
+        @Override
+        protected void reset() {
+            price = 0;
+        }
+    }
+    
+    static class PriceEventFactory implements SimpleEventFactory<PriceEvent> {
+        @Override
+        public PriceEvent newEvent() {
+            return new PriceEvent();
+        }
+    }
+
+    /**
+     * Test of claim and publish methods, of class SimpleEventPool.
+     */
+    @Test
+    public void testClaimAndPublish() throws InterruptedException {
+        System.out.println("claim and publish");
+        final AtomicLong syncSum = new AtomicLong(0);
+        final AtomicLong asyncSum = new AtomicLong(0);
+        
+        SimpleEventPipe pipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        pipe.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                syncSum.addAndGet(((PriceEvent) event).price);
+            }
+        });
+        pipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                assertTrue(((PriceEvent) event).getRefCount() > 0);
+                asyncSum.addAndGet(((PriceEvent) event).price);
+            }
+        });
+        pipe.setAsyncOrdered(true);
+        
+        SimpleEventPool<PriceEvent> pool = pipe.createEventPool(new PriceEventFactory(), 16);
+        for (int i = 1; i <= 1000; i++) {
+            PriceEvent event = pool.claim();
+            assertEquals(0, event.price);
+            assertEquals(1, event.getRefCount());
+            event.price = i;
+            pool.publish(event);
+        }
+        Thread.sleep(500); // give async event time to run
+        
+        assertEquals(500500, syncSum.get());
+        assertEquals(500500, asyncSum.get());
+        assertEquals(Math.min(pool.getCreatedEvents(), 16), pool.getAvailable());
+        
+        // Without asynchronous listeners, the same event is reused every time
+        SimpleEventPipe syncPipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        SimpleEventPool<PriceEvent> syncPool = syncPipe.createEventPool(new PriceEventFactory(), 16);
+        for (int i = 0; i < 1000; i++)
+            syncPool.publish(syncPool.claim());
+        assertEquals(1, syncPool.getCreatedEvents());
+        assertEquals(1, syncPool.getAvailable());
+    }
+    
+    /**
+     * Test of setDeadLetterPipe method with pooled events, of class SimpleEventPipe.
+     */
+    @Test
+    public void testDeadLetterRetainsEvent() throws InterruptedException {
+        System.out.println("dead letter retains event");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(1);
+        final AtomicLong price = new AtomicLong(0);
+        
+        SimpleEventPipe pipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        pipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        SimpleEventPipe deadLetterPipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        deadLetterPipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    release.await(); // until the failing delivery has released the event
+                } catch (InterruptedException ex) {
+                }
+                price.set(((PriceEvent) ((SimpleDeadLetterEvent) event).getEvent()).price);
+                received.countDown();
+            }
+        });
+        pipe.setDeadLetterPipe(deadLetterPipe);
+        
+        SimpleEventPool<PriceEvent> pool = pipe.createEventPool(new PriceEventFactory(), 16);
+        PriceEvent event = pool.claim();
+        event.price = 42;
+        pool.publish(event);
+        
+        // Only the dead-letter listener keeps the event
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipe.getPendingDeliveries() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, event.getRefCount());
+        assertEquals(0, pool.getAvailable());
+        
+        release.countDown();
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(42, price.get());
+        while (deadLetterPipe.getPendingDeliveries() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, event.getRefCount());
+        assertEquals(1, pool.getAvailable());
+    }
+    
+    /**
+     * Test of retain and release methods, of class SimplePooledEvent.
+     */
+    @Test
+    public void testRetainAndRelease() throws InterruptedException {
+        System.out.println("retain and release");
+        final CountDownLatch release = new CountDownLatch(1);
+        final PriceEvent[] kept = new PriceEvent[1];
+        
+        SimpleEventPipe pipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        pipe.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                kept[0] = (PriceEvent) event;
+                kept[0].retain(); // keep the event after returning
+            }
+        });
+        pipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        
+        SimpleEventPool<PriceEvent> pool = pipe.createEventPool(new PriceEventFactory(), 4);
+        PriceEvent event = pool.claim();
+        event.price = 42;
+        pool.publish(event);
+        assertEquals(2, event.getRefCount()); // sync listener and async listener
+        
+        release.countDown();
+        Thread.sleep(500); // give async event time to run
+        assertEquals(1, event.getRefCount());
+        assertEquals(0, pool.getAvailable());
+        
+        kept[0].release();
+        assertEquals(0, event.getRefCount());
+        assertEquals(1, pool.getAvailable());
+        assertEquals(0, event.price);
+        
+        try {
+            event.release();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            assertEquals(0, event.getRefCount());
+        }
+        try {
+            event.retain();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+        }
+    }
+    
+    /**
+     * Test of dropped events, of class SimpleEventPool.
+     */
+    @Test
+    public void testDroppedEventsAreReleased() throws InterruptedException {
+        System.out.println("dropped events are released");
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        SimpleEventPipe pipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        pipe.setAsyncMailbox(1, SimpleOverflowPolicy.DROP_NEWEST);
+        pipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        
+        SimpleEventPool<PriceEvent> pool = pipe.createEventPool(new PriceEventFactory(), 16);
+        for (int i = 0; i < 10; i++) {
+            pool.publish(pool.claim());
+            Thread.sleep(10);
+        }
+        assertEquals(8, pipe.getDroppedEvents()); // one in flight, one pending
+        assertEquals(3, pool.getCreatedEvents()); // dropped events are reused
+        assertEquals(1, pool.getAvailable());
+        
+        release.countDown();
+        Thread.sleep(500); // give async event time to run
+        assertEquals(pool.getCreatedEvents(), pool.getAvailable());
+    }
+    
+    /**
+     * Test of leak detection, of class SimpleEventPool.
+     */
+    @Test
+    public void testLeakDetection() throws InterruptedException {
+        System.out.println("leak detection");
+        SimpleEventPipe pipe = new SimpleEventPipe(Executors.newCachedThreadPool());
+        SimpleEventPool<PriceEvent> pool = pipe.createEventPool(new PriceEventFactory(), 4, true);
+        assertTrue(pool.isLeakDetection());
+        
+        pool.publish(pool.claim());
+        pool.claim(); // never released
+        
+        for (int i = 0; i < 50 && pool.getLeakedEvents() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeakedEvents());
+        assertNotNull(pool.getLastLeak());
+    }
+}
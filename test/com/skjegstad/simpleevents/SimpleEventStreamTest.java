@@ -0,0 +1,294 @@
+/*
+ 
+SimpleEventStreamTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleEventStream and SimpleWindowOperator.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleEventStreamTest {
+    
+    static class TradeEvent implements SimpleEvent {
+        final long account;
+        final long amount;
+        final long time;
+
+        TradeEvent(long account, long amount, long time) {
+            this.account = account;
+            this.amount = amount;
+            this.time = time;
+        }
+    }
+    
+    static class AmountEvent implements SimpleEvent {
+        final long amount;
+
+        AmountEvent(long amount) {
+            this.amount = amount;
+        }
+    }
+    
+    static final ToLongFunction<TradeEvent> ACCOUNT = new ToLongFunction<TradeEvent>() {
+        @Override
+        public long applyAsLong(TradeEvent event) {
+            return event.account;
+        }
+    };
+    
+    static final ToLongFunction<TradeEvent> AMOUNT = new ToLongFunction<TradeEvent>() {
+        @Override
+        public long applyAsLong(TradeEvent event) {
+            return event.amount;
+        }
+    };
+    
+    static final ToLongFunction<TradeEvent> TIME = new ToLongFunction<TradeEvent>() {
+        @Override
+        public long applyAsLong(TradeEvent event) {
+            return event.time;
+        }
+    };
+    
+    static final LongBinaryOperator SUM = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return left + right;
+        }
+    };
+    
+    static <E extends SimpleEvent> List<E> collect(SimpleEventPipe pipe, Class<E> type) {
+        final List<E> events = Collections.synchronizedList(new ArrayList<E>());
+        final Class<E> t = type;
+        pipe.listen(type, new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                events.add(t.cast(event));
+            }
+        });
+        return events;
+    }
+
+    /**
+     * Test of filter and map methods, of class SimpleEventStream.
+     */
+    @Test
+    public void testFilterAndMap() {
+        System.out.println("filter and map");
+        SimpleEventPipe source = new SimpleEventPipe(Executors.newCachedThreadPool());
+        SimpleEventPipe target = new SimpleEventPipe(Executors.newCachedThreadPool());
+        List<AmountEvent> amounts = collect(target, AmountEvent.class);
+        
+        SimpleEventListener listener = SimpleEventStream.from(source, TradeEvent.class)
+                .filter(new Predicate<TradeEvent>() {
+                    @Override
+                    public boolean test(TradeEvent event) {
+                        return event.account == 1;
+                    }
+                })
+                .map(new Function<TradeEvent, AmountEvent>() {
+                    @Override
+                    public AmountEvent apply(TradeEvent event) {
+                        return new AmountEvent(event.amount * 2);
+                    }
+                })
+                .to(target);
+        
+        source.trigger(new TradeEvent(1, 10, 0));
+        source.trigger(new TradeEvent(2, 20, 0));
+        source.trigger(new AmountEvent(30)); // not in the stream
+        source.trigger(new TradeEvent(1, 40, 0));
+        assertEquals(2, amounts.size());
+        assertEquals(20, amounts.get(0).amount);
+        assertEquals(80, amounts.get(1).amount);
+        
+        source.unlisten(listener);
+        source.trigger(new TradeEvent(1, 10, 0));
+        assertEquals(2, amounts.size());
+    }
+    
+    /**
+     * Test of tumbling windows, of class SimpleWindowOperator.
+     */
+    @Test
+    public void testTumblingWindow() {
+        System.out.println("tumbling window");
+        SimpleEventManager manager = new SimpleEventManager();
+        List<SimpleWindowResult> results = collect(manager.getPipe("trades.per-account"), SimpleWindowResult.class);
+        
+        SimpleWindowOperator<TradeEvent> operator = manager.stream("trades", TradeEvent.class)
+                .keyBy(ACCOUNT)
+                .window(SimpleEventWindow.tumbling(1, TimeUnit.SECONDS), TIME)
+                .sum(AMOUNT)
+                .to(manager, "trades.per-account");
+        
+        SimpleEventPipe trades = manager.getPipe("trades");
+        for (int account = 0; account < 1000; account++)
+            for (int i = 0; i < 3; i++)
+                trades.trigger(new TradeEvent(account, account + i, 100 + i));
+        assertTrue(results.isEmpty());
+        
+        // First event in the next window closes the first
+        trades.trigger(new TradeEvent(0, 5, 1500));
+        assertEquals(1000, results.size());
+        for (SimpleWindowResult result : results) {
+            assertEquals(0, result.getWindowStart());
+            assertEquals(1000, result.getWindowEnd());
+            assertEquals(3 * result.getKey() + 3, result.getValue());
+        }
+        
+        // Late event
+        trades.trigger(new TradeEvent(0, 5, 999));
+        assertEquals(1, operator.getLateEvents());
+        
+        // Closing emits the open window
+        results.clear();
+        operator.close();
+        assertEquals(1, results.size());
+        assertEquals(0, results.get(0).getKey());
+        assertEquals(1000, results.get(0).getWindowStart());
+        assertEquals(5, results.get(0).getValue());
+        trades.trigger(new TradeEvent(0, 5, 3000));
+        assertEquals(1, results.size());
+        manager.shutdown();
+    }
+    
+    /**
+     * Test of tumbling windows with concurrent producers, of class SimpleWindowOperator.
+     */
+    @Test
+    public void testConcurrentWindow() throws InterruptedException {
+        System.out.println("concurrent window");
+        final SimpleEventPipe source = new SimpleEventPipe(Executors.newCachedThreadPool());
+        SimpleEventPipe target = new SimpleEventPipe(Executors.newCachedThreadPool());
+        List<SimpleWindowResult> results = collect(target, SimpleWindowResult.class);
+        SimpleWindowOperator<TradeEvent> counts = SimpleEventStream.from(source, TradeEvent.class)
+                .keyBy(ACCOUNT)
+                .window(SimpleEventWindow.tumbling(10, TimeUnit.MILLISECONDS), TIME)
+                .count()
+                .to(target);
+        
+        // Producers race on the window boundaries, every event is either counted or late
+        final int producers = 4;
+        final int tests = 50000;
+        final AtomicLong clock = new AtomicLong(0);
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < tests; i++)
+                        source.trigger(new TradeEvent(i % 8, 1, clock.getAndIncrement() / 4));
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        counts.close();
+        
+        long counted = 0;
+        for (SimpleWindowResult result : results)
+            counted += result.getValue();
+        assertEquals(producers * tests, counted + counts.getLateEvents());
+    }
+    
+    /**
+     * Test of sliding windows, of class SimpleWindowOperator.
+     */
+    @Test
+    public void testSlidingWindow() {
+        System.out.println("sliding window");
+        SimpleEventPipe source = new SimpleEventPipe(Executors.newCachedThreadPool());
+        SimpleEventPipe target = new SimpleEventPipe(Executors.newCachedThreadPool());
+        List<SimpleWindowResult> results = collect(target, SimpleWindowResult.class);
+        
+        SimpleWindowOperator<TradeEvent> counts = SimpleEventStream.from(source, TradeEvent.class)
+                .keyBy(ACCOUNT)
+                .window(SimpleEventWindow.sliding(300, 100, TimeUnit.MILLISECONDS), TIME)
+                .count()
+                .to(target);
+        
+        // One event per 100 ms slide
+        for (int i = 0; i < 5; i++)
+            source.trigger(new TradeEvent(7, 1, i * 100 + 50));
+        counts.advanceTo(500);
+        
+        // Windows ending at 100, 200, ..., 500
+        assertEquals(5, results.size());
+        long[] expected = { 1, 2, 3, 3, 3 };
+        for (int i = 0; i < 5; i++) {
+            assertEquals(7, results.get(i).getKey());
+            assertEquals((i + 1) * 100, results.get(i).getWindowEnd());
+            assertEquals(results.get(i).getWindowEnd() - 300, results.get(i).getWindowStart());
+            assertEquals(expected[i], results.get(i).getValue());
+        }
+        
+        results.clear();
+        counts.close();
+        assertEquals(2, results.size());
+        assertEquals(2, results.get(0).getValue());
+        assertEquals(1, results.get(1).getValue());
+    }
+    
+    /**
+     * Test of the incremental state, of class SimpleLongLongMap.
+     */
+    @Test
+    public void testLongLongMap() {
+        System.out.println("long long map");
+        SimpleLongLongMap map = new SimpleLongLongMap(4);
+        SimpleKeyedEventStream<TradeEvent> keyed = SimpleEventStream.from(new SimpleEventPipe(Executors.newCachedThreadPool()), TradeEvent.class).keyBy(ACCOUNT);
+        try {
+            keyed.count();
+            fail("Expected missing window");
+        } catch (IllegalStateException ex) {
+        }
+        
+        for (long key = -5000; key < 5000; key++)
+            map.merge(key, key, SUM);
+        for (long key = -5000; key < 5000; key++)
+            map.merge(key, 1, SUM);
+        assertEquals(10000, map.size());
+        assertEquals(-4999, map.get(-5000, 0));
+        assertEquals(5000, map.get(4999, 0));
+        assertEquals(-1, map.get(5000, -1));
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(0, -1));
+    }
+}
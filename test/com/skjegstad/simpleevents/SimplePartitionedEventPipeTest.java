@@ -0,0 +1,190 @@
+/*
+ 
+SimplePartitionedEventPipeTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventPipeFactory;
+import com.skjegstad.simpleevents.interfaces.SimpleKeyedEvent;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimplePartitionedEventPipe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimplePartitionedEventPipeTest {
+    
+    static class SequenceEvent implements SimpleKeyedEvent {
+        final int key;
+        final long sequence;
+
+        SequenceEvent(int key, long sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public Object getEventKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Test of trigger method with several producers, of class SimplePartitionedEventPipe.
+     */
+    @Test
+    public void testTriggerPerKeyOrder() throws InterruptedException {
+        System.out.println("trigger per key order");
+        final int producers = 4;
+        final int keys = 64;
+        final int tests = 10000;
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        final AtomicLong outOfOrderEvents = new AtomicLong(0);
+        final AtomicLong wrongThreadEvents = new AtomicLong(0);
+        final Map<Integer, Long> lastSequence = new ConcurrentHashMap<Integer, Long>();
+        final Map<Integer, Thread> keyThreads = new ConcurrentHashMap<Integer, Thread>();
+        
+        final SimplePartitionedEventPipe instance = new SimplePartitionedEventPipe(Executors.newCachedThreadPool(), 4);
+        assertEquals(4, instance.getShardCount());
+        SimplePartitionedEventPipe defaultPipe = new SimplePartitionedEventPipe(Executors.newCachedThreadPool());
+        assertEquals(Runtime.getRuntime().availableProcessors(), defaultPipe.getShardCount());
+        defaultPipe.close();
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                SequenceEvent e = (SequenceEvent) event;
+                Long last = lastSequence.put(e.key, e.sequence);
+                if (last != null && last >= e.sequence)
+                    outOfOrderEvents.incrementAndGet();
+                Thread thread = keyThreads.put(e.key, Thread.currentThread());
+                if (thread != null && thread != Thread.currentThread())
+                    wrongThreadEvents.incrementAndGet();
+                receivedEvents.incrementAndGet();
+            }
+        });
+        
+        // Each producer owns a range of keys, so the sequence of each key is increasing
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < tests; i++)
+                        instance.trigger(new SequenceEvent(producer * keys + i % keys, i));
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        Thread.sleep(500); // give async event time to run
+        
+        assertEquals(producers * tests, receivedEvents.get());
+        assertEquals(0, outOfOrderEvents.get());
+        assertEquals(0, wrongThreadEvents.get());
+        assertEquals(0, instance.getPendingDeliveries());
+        for (int shard = 0; shard < instance.getShardCount(); shard++)
+            assertEquals(0, instance.getQueueDepth(shard));
+        
+        instance.close();
+        try {
+            instance.trigger(new SequenceEvent(0, 0));
+            fail("Expected closed pipe");
+        } catch (RejectedExecutionException ex) {
+        }
+        assertEquals(0, instance.getPendingDeliveries());
+    }
+    
+    /**
+     * Test of factory method, of class SimplePartitionedEventPipe.
+     */
+    @Test
+    public void testFactory() throws InterruptedException {
+        System.out.println("factory");
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        SimpleEventManager manager = new SimpleEventManager();
+        SimpleEventPipe pipe = manager.getPipe("partitioned", SimplePartitionedEventPipe.factory(2));
+        assertTrue(pipe instanceof SimplePartitionedEventPipe);
+        pipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 100; i++)
+            pipe.trigger(new SimpleEvent() {});
+        assertEquals(0, manager.shutdownGracefully(5, TimeUnit.SECONDS));
+        assertEquals(100, receivedEvents.get());
+        
+        // shutdown also stops the shard workers
+        manager = new SimpleEventManager();
+        pipe = manager.getPipe("partitioned", SimplePartitionedEventPipe.factory(2));
+        SimpleAsyncEventListener listener = new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+            }
+        };
+        pipe.listen(listener);
+        manager.shutdown();
+        assertEquals(0, pipe.getListenerCount());
+        pipe.listen(listener);
+        try {
+            pipe.trigger(new SimpleEvent() {});
+            fail("Expected closed pipe");
+        } catch (RejectedExecutionException ex) {
+        }
+        
+        // A pipe created by a thread that lost the race for the name is closed
+        final SimpleEventManager racingManager = new SimpleEventManager();
+        final SimpleEventPipe[] lost = new SimpleEventPipe[1];
+        SimpleEventPipe won = racingManager.getPipe("partitioned", new SimpleEventPipeFactory() {
+            @Override
+            public SimpleEventPipe createPipe(ExecutorService executorService) {
+                SimpleEventPipe created = SimplePartitionedEventPipe.factory(2).createPipe(executorService);
+                if (lost[0] == null) {
+                    lost[0] = created;
+                    racingManager.getPipe("partitioned", this); // another caller adds the pipe first
+                }
+                return created;
+            }
+        });
+        assertNotSame(lost[0], won);
+        assertSame(won, racingManager.getPipe("partitioned"));
+        lost[0].listen(listener);
+        try {
+            lost[0].trigger(new SimpleEvent() {});
+            fail("Expected closed pipe");
+        } catch (RejectedExecutionException ex) {
+        }
+        racingManager.shutdown();
+    }
+}
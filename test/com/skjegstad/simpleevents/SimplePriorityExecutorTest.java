@@ -0,0 +1,179 @@
+/*
+ 
+SimplePriorityExecutorTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimplePrioritized;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimplePriorityExecutor.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimplePriorityExecutorTest {
+    
+    static Runnable blocker(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+    }
+    
+    static Runnable recorder(final List<SimpleEventPriority> order, final SimpleEventPriority priority) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(priority);
+            }
+        };
+    }
+
+    /**
+     * Test of execute method with strict scheduling, of class SimplePriorityExecutor.
+     */
+    @Test
+    public void testStrictPriority() throws InterruptedException {
+        System.out.println("strict priority");
+        SimplePriorityExecutor executor = new SimplePriorityExecutor(Executors.newCachedThreadPool(), 1);
+        assertFalse(executor.isWeighted());
+        List<SimpleEventPriority> order = Collections.synchronizedList(new ArrayList<SimpleEventPriority>());
+        
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(blocker(started, release), SimpleEventPriority.HIGH);
+        started.await();
+        
+        for (int i = 0; i < 10; i++) {
+            executor.execute(recorder(order, SimpleEventPriority.LOW), SimpleEventPriority.LOW);
+            executor.execute(recorder(order, SimpleEventPriority.NORMAL));
+            executor.execute(recorder(order, SimpleEventPriority.HIGH), SimpleEventPriority.HIGH);
+        }
+        assertEquals(10, executor.getQueueDepth(SimpleEventPriority.LOW));
+        assertEquals(10, executor.getQueueDepth(SimpleEventPriority.NORMAL));
+        assertEquals(10, executor.getQueueDepth(SimpleEventPriority.HIGH));
+        
+        release.countDown();
+        Thread.sleep(500); // give async event time to run
+        
+        assertEquals(30, order.size());
+        for (int i = 0; i < 30; i++)
+            assertEquals(SimpleEventPriority.values()[i / 10], order.get(i));
+        assertEquals(0, executor.getQueueDepth(SimpleEventPriority.LOW));
+        assertEquals(10, executor.getWaitTime(SimpleEventPriority.LOW).getCount());
+        assertEquals(11, executor.getWaitTime(SimpleEventPriority.HIGH).getCount());
+        assertTrue(executor.getWaitTime(SimpleEventPriority.LOW).getMax() > 0);
+        executor.shutdown();
+    }
+    
+    /**
+     * Test of execute method with weighted scheduling, of class SimplePriorityExecutor.
+     */
+    @Test
+    public void testWeightedPriority() throws InterruptedException {
+        System.out.println("weighted priority");
+        SimplePriorityExecutor executor = new SimplePriorityExecutor(Executors.newCachedThreadPool(), 1, 8, 4, 1);
+        assertTrue(executor.isWeighted());
+        List<SimpleEventPriority> order = Collections.synchronizedList(new ArrayList<SimpleEventPriority>());
+        
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(blocker(started, release), SimpleEventPriority.HIGH);
+        started.await();
+        
+        for (int i = 0; i < 100; i++) {
+            executor.execute(recorder(order, SimpleEventPriority.LOW), SimpleEventPriority.LOW);
+            executor.execute(recorder(order, SimpleEventPriority.HIGH), SimpleEventPriority.HIGH);
+        }
+        
+        release.countDown();
+        Thread.sleep(500); // give async event time to run
+        
+        assertEquals(200, order.size());
+        // The low priority lane is not starved while the high lane has work
+        assertTrue(order.subList(0, 26).contains(SimpleEventPriority.LOW));
+        int high = 0;
+        for (SimpleEventPriority p : order.subList(0, 100))
+            if (p == SimpleEventPriority.HIGH)
+                high++;
+        assertTrue(high > 75);
+        executor.shutdown();
+    }
+    
+    /**
+     * Test of setPriority method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testPipePriority() throws InterruptedException {
+        System.out.println("pipe priority");
+        SimplePriorityExecutor executor = new SimplePriorityExecutor(Executors.newCachedThreadPool(), 1);
+        final List<SimpleEventPriority> order = Collections.synchronizedList(new ArrayList<SimpleEventPriority>());
+        
+        SimpleEventPipe pipe = new SimpleEventPipe(executor);
+        pipe.setPriority(SimpleEventPriority.LOW);
+        assertEquals(SimpleEventPriority.LOW, pipe.getPriority());
+        pipe.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                order.add(event instanceof SimplePrioritized ? ((SimplePrioritized) event).getPriority() : SimpleEventPriority.LOW);
+            }
+        });
+        
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(blocker(started, release));
+        started.await();
+        
+        pipe.trigger(new SimpleEvent() {});
+        pipe.trigger(new UrgentEvent());
+        assertEquals(1, executor.getQueueDepth(SimpleEventPriority.LOW));
+        assertEquals(1, executor.getQueueDepth(SimpleEventPriority.HIGH));
+        
+        release.countDown();
+        Thread.sleep(500); // give async event time to run
+        
+        assertEquals(2, order.size());
+        assertEquals(SimpleEventPriority.HIGH, order.get(0));
+        assertEquals(SimpleEventPriority.LOW, order.get(1));
+        executor.shutdown();
+    }
+    
+    static class UrgentEvent implements SimpleEvent, SimplePrioritized {
+        @Override
+        public SimpleEventPriority getPriority() {
+            return SimpleEventPriority.HIGH;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ 
+SimpleRateLimiterTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleRateLimiter and the rate limits of SimpleEventPipe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleRateLimiterTest {
+
+    /**
+     * Test of tryAcquire method, of class SimpleRateLimiter.
+     */
+    @Test
+    public void testTryAcquire() throws InterruptedException {
+        System.out.println("tryAcquire");
+        SimpleRateLimiter instance = new SimpleRateLimiter(10, 5);
+        assertEquals(10, instance.getRate(), 0.01);
+        assertEquals(5, instance.getBurst());
+        
+        for (int i = 0; i < 5; i++)
+            assertTrue(instance.tryAcquire());
+        assertFalse(instance.tryAcquire());
+        
+        // Next permit in 100 ms
+        long startTs = System.nanoTime();
+        assertTrue(instance.tryAcquire(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - startTs >= TimeUnit.MILLISECONDS.toNanos(80));
+        assertFalse(instance.tryAcquire(10, TimeUnit.MILLISECONDS));
+    }
+    
+    /**
+     * Test of setRateLimit method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testPipeRateLimit() throws Exception {
+        System.out.println("pipe rate limit");
+        final AtomicInteger receivedEvents = new AtomicInteger(0);
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        instance.setRateLimit(new SimpleRateLimiter(100, 10) {
+            @Override
+            long nanoTime() {
+                return 0; // the bucket is not refilled
+            }
+        });
+        
+        // Reject
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.FAIL);
+        int rejected = 0;
+        for (int i = 0; i < 20; i++) {
+            try {
+                instance.trigger(new SimpleEvent() {});
+            } catch (SimpleRateLimitException ex) {
+                assertTrue(ex.getRetryAfter(TimeUnit.NANOSECONDS) > 0);
+                rejected++;
+            }
+        }
+        assertEquals(10, rejected);
+        assertEquals(10, receivedEvents.get());
+        assertEquals(rejected, instance.getThrottledEvents());
+        
+        // Shed, signalled through triggerAsync
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.DROP_NEWEST);
+        CompletableFuture<Void> future = instance.triggerAsync(new SimpleEvent() {});
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Expected shed event");
+        } catch (ExecutionException ex) {
+            SimpleEventDeliveryException cause = (SimpleEventDeliveryException) ex.getCause();
+            assertTrue(cause.getFailures().get(0) instanceof SimpleRateLimitException);
+        }
+        
+        // Block until within the limit, the events after the burst wait 1 to 10 ms
+        instance.setRateLimit(new SimpleRateLimiter(1000, 10) {
+            @Override
+            long nanoTime() {
+                return 0;
+            }
+        });
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.BLOCK);
+        receivedEvents.set(0);
+        long startTs = System.nanoTime();
+        for (int i = 0; i < 20; i++)
+            instance.trigger(new SimpleEvent() {});
+        assertEquals(20, receivedEvents.get());
+        assertTrue(System.nanoTime() - startTs >= TimeUnit.MILLISECONDS.toNanos(55));
+        assertTrue(instance.getBlockedNanos() >= TimeUnit.MILLISECONDS.toNanos(55));
+        
+        try {
+            instance.setRateLimitPolicy(SimpleOverflowPolicy.COALESCE);
+            fail("Expected unsupported policy");
+        } catch (IllegalArgumentException ex) {
+        }
+        instance.setRateLimit(null);
+        for (int i = 0; i < 1000; i++)
+            instance.trigger(new SimpleEvent() {});
+    }
+    
+    /**
+     * Test of setProducerRateLimit method, of class SimpleEventPipe.
+     */
+    @Test
+    public void testProducerRateLimit() throws InterruptedException {
+        System.out.println("producer rate limit");
+        final AtomicInteger receivedEvents = new AtomicInteger(0);
+        final SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        instance.setProducerRateLimit(1, 10);
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.DROP_NEWEST);
+        assertEquals(1, instance.getProducerRateLimit(), 0.01);
+        
+        // Each producer gets its own burst
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int p = 0; p < 4; p++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++)
+                        instance.trigger(new SimpleEvent() {});
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(40, receivedEvents.get());
+        assertEquals(360, instance.getThrottledEvents());
+    }
+    
+    /**
+     * Test of setRateLimitPolicy method, of class SimpleEventPipe, when
+     * interrupted while blocked.
+     */
+    @Test
+    public void testInterruptedRateLimit() {
+        System.out.println("interrupted rate limit");
+        final AtomicInteger receivedEvents = new AtomicInteger(0);
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        instance.setRateLimit(new SimpleRateLimiter(1, 1) {
+            @Override
+            long nanoTime() {
+                return 0;
+            }
+        });
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.BLOCK);
+        instance.trigger(new SimpleEvent() {});
+        
+        // The next permit is a second away, the interrupt ends the wait
+        Thread.currentThread().interrupt();
+        try {
+            instance.trigger(new SimpleEvent() {});
+            fail("Expected rejected event");
+        } catch (SimpleRateLimitException ex) {
+        }
+        assertTrue(Thread.interrupted());
+        assertEquals(1, receivedEvents.get());
+        assertEquals(1, instance.getRejectedEvents());
+        assertEquals(1, instance.getThrottledEvents());
+        
+        // The permit of the rejected event was given back
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.FAIL);
+        try {
+            instance.trigger(new SimpleEvent() {});
+            fail("Expected rejected event");
+        } catch (SimpleRateLimitException ex) {
+            assertEquals(1000, ex.getRetryAfter(TimeUnit.MILLISECONDS));
+        }
+    }
+    
+    /**
+     * Test of setProducerRateLimit method, of class SimpleEventPipe, with a
+     * pipe limit.
+     */
+    @Test
+    public void testProducerRefund() {
+        System.out.println("producer refund");
+        final AtomicInteger receivedEvents = new AtomicInteger(0);
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        instance.setProducerRateLimit(0.01, 10);
+        instance.setRateLimit(new SimpleRateLimiter(100, 5) {
+            @Override
+            long nanoTime() {
+                return 0;
+            }
+        });
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 10; i++)
+            instance.trigger(new SimpleEvent() {});
+        assertEquals(5, receivedEvents.get());
+        
+        // Events rejected by the pipe did not use up the producer's permits
+        instance.setRateLimit(null);
+        for (int i = 0; i < 10; i++)
+            instance.trigger(new SimpleEvent() {});
+        assertEquals(10, receivedEvents.get());
+        assertEquals(10, instance.getThrottledEvents());
+    }
+    
+    /**
+     * Test of update method, of class SimpleAdaptiveThrottle.
+     */
+    @Test
+    public void testAdaptiveThrottle() throws InterruptedException {
+        System.out.println("adaptive throttle");
+        final CountDownLatch release = new CountDownLatch(1);
+        SimpleEventPipe instance = new SimpleEventPipe(Executors.newCachedThreadPool());
+        instance.setAsyncOrdered(true);
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        SimpleAdaptiveThrottle throttle = new SimpleAdaptiveThrottle(10, 100000, 100, 50, 10, TimeUnit.MILLISECONDS);
+        instance.setRateLimit(throttle);
+        instance.setRateLimitPolicy(SimpleOverflowPolicy.DROP_NEWEST);
+        assertEquals(100000, throttle.getRate(), 1);
+        
+        // The listener is stuck, so the queue grows past the target and the rate drops
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline && throttle.getRate() > 1000) {
+            instance.trigger(new SimpleEvent() {});
+            Thread.sleep(1);
+        }
+        assertTrue(throttle.isOverloaded());
+        assertTrue(throttle.getRate() <= 1000);
+        
+        // Recovers once the queue drains
+        release.countDown();
+        double reduced = throttle.getRate();
+        deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline && throttle.getRate() <= reduced) {
+            instance.trigger(new SimpleEvent() {});
+            Thread.sleep(1);
+        }
+        assertFalse(throttle.isOverloaded());
+        assertTrue(throttle.getRate() > reduced);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ 
+SimpleRingBufferEventPipeTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleAsyncEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleRingBufferEventPipe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleRingBufferEventPipeTest {
+
+    /**
+     * Test of trigger method with a single producer, of class SimpleRingBufferEventPipe.
+     */
+    @Test
+    public void testTriggerSingleProducer() throws InterruptedException {
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        final AtomicLong outOfOrderEvents = new AtomicLong(0);
+        System.out.println("trigger single producer");
+        
+        class numberedEvent implements SimpleEvent {
+            final long number;
+            numberedEvent(long number) {
+                this.number = number;
+            }
+        }
+        
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        SimpleRingBufferEventPipe instance = new SimpleRingBufferEventPipe(executorService, 64, SimpleWaitStrategies.YIELD, false);
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                if (((numberedEvent) event).number != receivedEvents.getAndIncrement())
+                    outOfOrderEvents.incrementAndGet();
+            }
+        });
+        
+        int tests = 10000; // more than the buffer size, so the producer has to wait for the consumer
+        for (int i = 0; i < tests; i++)
+            instance.trigger(new numberedEvent(i));
+        Thread.sleep(500); // give async event time to run
+        assertEquals(tests, receivedEvents.get());
+        assertEquals(0, outOfOrderEvents.get());
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Test of trigger method with several producers, of class SimpleRingBufferEventPipe.
+     */
+    @Test
+    public void testTriggerMultiProducer() throws InterruptedException {
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        final AtomicLong receivedTypedEvents = new AtomicLong(0);
+        final AtomicLong receivedSyncEvents = new AtomicLong(0);
+        System.out.println("trigger multi producer");
+        
+        class myEvent implements SimpleEvent {}
+        
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        final SimpleRingBufferEventPipe instance = new SimpleRingBufferEventPipe(executorService, 128, SimpleWaitStrategies.PARK, true);
+        instance.listen(new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        });
+        instance.listen(myEvent.class, new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedTypedEvents.incrementAndGet();
+            }
+        });
+        instance.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedSyncEvents.incrementAndGet();
+            }
+        });
+        
+        final int producers = 4;
+        final int tests = 10000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < tests; i++)
+                        instance.trigger(i % 2 == 0 ? new myEvent() : new SimpleEvent() {});
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        Thread.sleep(500); // give async event time to run
+        assertEquals(producers * tests, receivedSyncEvents.get());
+        assertEquals(producers * tests, receivedEvents.get());
+        assertEquals(producers * tests / 2, receivedTypedEvents.get());
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Test of unlisten method, of class SimpleRingBufferEventPipe.
+     */
+    @Test
+    public void testUnlisten() throws Exception {
+        final AtomicLong receivedEvents = new AtomicLong(0);
+        System.out.println("unlisten");
+        
+        SimpleAsyncEventListener asyncListen = new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                receivedEvents.incrementAndGet();
+            }
+        };
+        
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        SimpleRingBufferEventPipe instance = new SimpleRingBufferEventPipe(executorService, 16, SimpleWaitStrategies.PARK, false);
+        instance.listen(asyncListen);
+        instance.trigger(new SimpleEvent() {});
+        Thread.sleep(200); // give async event time to run
+        assertEquals(1, receivedEvents.get());
+        
+        assertTrue(instance.unlisten(asyncListen));
+        for (int i = 0; i < 100; i++) // more than the buffer size, must not block without consumers
+            instance.trigger(new SimpleEvent() {});
+        Thread.sleep(200);
+        assertEquals(1, receivedEvents.get());
+        assertEquals(0, instance.getPendingDeliveries());
+        
+        // Events counted for a listener are settled when it is removed while they are queued
+        final CountDownLatch release = new CountDownLatch(1);
+        SimpleAsyncEventListener slowListen = new SimpleAsyncEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        instance = new SimpleRingBufferEventPipe(executorService, 16, SimpleWaitStrategies.PARK, true);
+        instance.listen(slowListen);
+        CompletableFuture<Void> future = null;
+        for (int i = 0; i < 10; i++)
+            future = instance.triggerAsync(new SimpleEvent() {});
+        assertTrue(instance.unlisten(slowListen));
+        release.countDown();
+        future.get(1, TimeUnit.SECONDS);
+        assertEquals(0, instance.getPendingDeliveries());
+        executorService.shutdownNow();
+    }
+}
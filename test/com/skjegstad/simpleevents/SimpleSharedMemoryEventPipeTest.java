@@ -0,0 +1,345 @@
+/*
+ 
+SimpleSharedMemoryEventPipeTest.java
+ 
+Copyright (C) 2011 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ 
+*/
+package com.skjegstad.simpleevents;
+
+import com.skjegstad.simpleevents.interfaces.SimpleEvent;
+import com.skjegstad.simpleevents.interfaces.SimpleEventListener;
+import com.skjegstad.simpleevents.interfaces.SimpleEventSerializer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Tests for SimpleSharedMemoryEventPipe.
+ * 
+ * @author Magnus Skjegstad
+ */
+public class SimpleSharedMemoryEventPipeTest {
+    private File file;
+    private ExecutorService executorService;
+    
+    static class SequenceEvent implements SimpleEvent {
+        final int producer;
+        final int sequence;
+        SequenceEvent(int producer, int sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+    }
+    
+    static class SequenceEventSerializer implements SimpleEventSerializer {
+        @Override
+        public void write(SimpleEvent event, ByteBuffer buffer) {
+            buffer.putInt(((SequenceEvent) event).producer);
+            buffer.putInt(((SequenceEvent) event).sequence);
+        }
+
+        @Override
+        public SimpleEvent read(ByteBuffer buffer) {
+            return new SequenceEvent(buffer.getInt(), buffer.getInt());
+        }
+    }
+    
+    /**
+     * Listener verifying that the events of each producer arrive in order.
+     */
+    static class OrderListener implements SimpleEventListener {
+        final int[] next;
+        final CountDownLatch latch;
+        volatile boolean ordered = true;
+        
+        OrderListener(int producers, int events) {
+            next = new int[producers];
+            latch = new CountDownLatch(producers * events);
+        }
+        
+        @Override
+        public void receiveEvent(SimpleEvent event) {
+            SequenceEvent e = (SequenceEvent) event;
+            if (next[e.producer]++ != e.sequence)
+                ordered = false;
+            latch.countDown();
+        }
+    }
+    
+    /**
+     * Consumer process started by testCrossProcess. Prints the number of
+     * events received in order.
+     */
+    public static class ConsumerProcess {
+        public static void main(String[] args) throws Exception {
+            ExecutorService executorService = Executors.newCachedThreadPool();
+            SimpleSharedMemoryEventPipe pipe = SimpleSharedMemoryEventPipe.openConsumer(executorService, new File(args[0]), 
+                    new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+            int producers = Integer.parseInt(args[1]);
+            int events = Integer.parseInt(args[2]);
+            OrderListener listener = new OrderListener(producers, events);
+            pipe.listen(listener);
+            System.out.println("ready");
+            listener.latch.await(30, TimeUnit.SECONDS);
+            long received = producers * events - listener.latch.getCount();
+            System.out.println(listener.ordered ? "received " + received : "out of order");
+            pipe.close();
+            executorService.shutdownNow();
+            System.exit(0);
+        }
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        File shm = new File("/dev/shm");
+        file = File.createTempFile("simpleevents-pipe", ".shm", shm.isDirectory() ? shm : null);
+        executorService = Executors.newCachedThreadPool();
+    }
+    
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+        file.delete();
+    }
+    
+    private void produce(final SimpleSharedMemoryEventPipe pipe, int producers, final int events) throws InterruptedException {
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < events; i++)
+                        pipe.trigger(new SequenceEvent(producer, i));
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    /**
+     * Test of trigger method, of class SimpleSharedMemoryEventPipe.
+     */
+    @Test
+    public void testTrigger() throws Exception {
+        System.out.println("trigger");
+        // Small buffer, so the producers wrap around and wait for the consumer
+        SimpleSharedMemoryEventPipe producer = SimpleSharedMemoryEventPipe.createProducer(executorService, file, 1024, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        SimpleSharedMemoryEventPipe consumer = SimpleSharedMemoryEventPipe.openConsumer(executorService, file, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        assertTrue(producer.isProducer());
+        assertFalse(consumer.isProducer());
+        
+        OrderListener listener = new OrderListener(4, 10000);
+        consumer.listen(listener);
+        produce(producer, 4, 10000);
+        
+        assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.ordered);
+        consumer.close();
+    }
+    
+    /**
+     * Test of trigger method with an empty serialized event, of class SimpleSharedMemoryEventPipe.
+     */
+    @Test
+    public void testTriggerEmpty() throws Exception {
+        System.out.println("triggerEmpty");
+        SimpleEventSerializer emptySerializer = new SimpleEventSerializer() {
+            @Override
+            public void write(SimpleEvent event, ByteBuffer buffer) {
+                if (event instanceof SequenceEvent)
+                    new SequenceEventSerializer().write(event, buffer);
+            }
+
+            @Override
+            public SimpleEvent read(ByteBuffer buffer) {
+                return new SequenceEventSerializer().read(buffer);
+            }
+        };
+        SimpleSharedMemoryEventPipe producer = SimpleSharedMemoryEventPipe.createProducer(executorService, file, 1024, 
+                emptySerializer, SimpleWaitStrategies.YIELD);
+        SimpleSharedMemoryEventPipe consumer = SimpleSharedMemoryEventPipe.openConsumer(executorService, file, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        OrderListener listener = new OrderListener(1, 1);
+        consumer.listen(listener);
+        
+        try {
+            producer.trigger(new SimpleEvent() {});
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+        }
+        
+        // Later records are not blocked
+        producer.trigger(new SequenceEvent(0, 0));
+        assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+        consumer.close();
+    }
+    
+    /**
+     * Test of consume method with a failing listener, of class SimpleSharedMemoryEventPipe.
+     */
+    @Test
+    public void testConsumeListenerFailure() throws Exception {
+        System.out.println("consumeListenerFailure");
+        SimpleSharedMemoryEventPipe producer = SimpleSharedMemoryEventPipe.createProducer(executorService, file, 1024, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        SimpleSharedMemoryEventPipe consumer = SimpleSharedMemoryEventPipe.openConsumer(executorService, file, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        SimpleEventPipe deadLetterPipe = new SimpleEventPipe(executorService);
+        final CountDownLatch deadLetters = new CountDownLatch(1);
+        deadLetterPipe.listen(SimpleDeadLetterEvent.class, new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                deadLetters.countDown();
+            }
+        });
+        consumer.setDeadLetterPipe(deadLetterPipe);
+        final CountDownLatch received = new CountDownLatch(2);
+        consumer.listen(new SimpleEventListener() {
+            @Override
+            public void receiveEvent(SimpleEvent event) {
+                if (((SequenceEvent) event).sequence == 0)
+                    throw new IllegalStateException("failed");
+                received.countDown();
+            }
+        });
+        
+        // The exception is not isolated, but the consumer continues with the next events
+        for (int i = 0; i < 3; i++)
+            producer.trigger(new SequenceEvent(0, i));
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertTrue(deadLetters.await(10, TimeUnit.SECONDS));
+        assertEquals(1, consumer.getFailedDeliveries());
+        consumer.close();
+    }
+    
+    /**
+     * Test of trigger method with a rate limit, of class SimpleSharedMemoryEventPipe.
+     */
+    @Test
+    public void testTriggerRateLimited() throws Exception {
+        System.out.println("triggerRateLimited");
+        SimpleSharedMemoryEventPipe producer = SimpleSharedMemoryEventPipe.createProducer(executorService, file, 1024, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        SimpleSharedMemoryEventPipe consumer = SimpleSharedMemoryEventPipe.openConsumer(executorService, file, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        OrderListener listener = new OrderListener(1, 2);
+        consumer.listen(listener);
+        producer.setRateLimit(new SimpleRateLimiter(1, 1) {
+            @Override
+            long nanoTime() {
+                return 0;
+            }
+        });
+        
+        // Shed and rejected events are not written to the ring buffer
+        producer.setRateLimitPolicy(SimpleOverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 10; i++)
+            producer.trigger(new SequenceEvent(0, 0));
+        producer.setRateLimitPolicy(SimpleOverflowPolicy.FAIL);
+        try {
+            producer.trigger(new SequenceEvent(0, 1));
+            fail("Expected SimpleRateLimitException");
+        } catch (SimpleRateLimitException ex) {
+        }
+        producer.setRateLimit(null);
+        producer.trigger(new SequenceEvent(0, 1));
+        
+        assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.ordered);
+        Thread.sleep(100);
+        assertEquals(2, listener.next[0]);
+        consumer.close();
+    }
+    
+    /**
+     * Test of trigger method after shutdown, of class SimpleSharedMemoryEventPipe.
+     */
+    @Test
+    public void testTriggerShutdown() throws Exception {
+        System.out.println("triggerShutdown");
+        SimpleSharedMemoryEventPipe producer = SimpleSharedMemoryEventPipe.createProducer(executorService, file, 1024, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        SimpleSharedMemoryEventPipe consumer = SimpleSharedMemoryEventPipe.openConsumer(executorService, file, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        OrderListener listener = new OrderListener(1, 1);
+        consumer.listen(listener);
+        producer.trigger(new SequenceEvent(0, 0));
+        assertTrue(listener.latch.await(10, TimeUnit.SECONDS));
+        
+        // A rejected event is not written to the ring buffer
+        producer.stopTriggers();
+        try {
+            producer.trigger(new SequenceEvent(0, 1));
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException ex) {
+        }
+        Thread.sleep(100);
+        assertEquals(1, listener.next[0]);
+        consumer.close();
+    }
+    
+    /**
+     * Test of openConsumer method, of class SimpleSharedMemoryEventPipe.
+     */
+    @Test(expected = IOException.class)
+    public void testOpenConsumerInvalidFile() throws Exception {
+        System.out.println("openConsumerInvalidFile");
+        SimpleSharedMemoryEventPipe.openConsumer(executorService, file, new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+    }
+    
+    /**
+     * Test of delivery between two processes, of class SimpleSharedMemoryEventPipe.
+     */
+    @Test
+    public void testCrossProcess() throws Exception {
+        System.out.println("crossProcess");
+        SimpleSharedMemoryEventPipe producer = SimpleSharedMemoryEventPipe.createProducer(executorService, file, 4096, 
+                new SequenceEventSerializer(), SimpleWaitStrategies.YIELD);
+        
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), 
+                ConsumerProcess.class.getName(), file.getPath(), "2", "50000");
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            assertEquals("ready", reader.readLine());
+            produce(producer, 2, 50000);
+            assertEquals("received 100000", reader.readLine());
+            assertEquals(0, process.waitFor());
+        } finally {
+            process.destroy();
+        }
+    }
+}